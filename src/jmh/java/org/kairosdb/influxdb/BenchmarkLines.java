@@ -0,0 +1,104 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Resources;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ Line sets shared by the benchmarks
+ */
+final class BenchmarkLines
+{
+	static final String TELEGRAF = "telegraf";
+	static final String HIGH_TAGS = "high_tags";
+	static final String ESCAPED = "escaped";
+
+	private BenchmarkLines()
+	{
+	}
+
+	static List<String> load(String lineSet)
+	{
+		switch (lineSet)
+		{
+			case TELEGRAF:
+				return telegraf();
+			case HIGH_TAGS:
+				return highTags();
+			case ESCAPED:
+				return escaped();
+			default:
+				throw new IllegalArgumentException("Unknown line set " + lineSet);
+		}
+	}
+
+	static byte[] body(String lineSet)
+	{
+		return String.join("\n", load(lineSet)).getBytes(UTF_8);
+	}
+
+	/**
+	 Output of a Telegraf agent from src/test/resources/examples.txt.gz
+	 */
+	@SuppressWarnings("UnstableApiUsage")
+	private static List<String> telegraf()
+	{
+		try (InputStream input = new GZIPInputStream(Resources.getResource("examples.txt.gz").openStream()))
+		{
+			List<String> lines = new ArrayList<>();
+			for (String line : new String(ByteStreams.toByteArray(input), UTF_8).split("\n"))
+			{
+				if (!line.isEmpty())
+					lines.add(line);
+			}
+			return lines;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 Lines with 30 tags and a few fields, many distinct series
+	 */
+	private static List<String> highTags()
+	{
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < 200; i++)
+		{
+			StringBuilder sb = new StringBuilder("kubernetes_pod_container");
+			for (int tag = 0; tag < 30; tag++)
+				sb.append(",label_").append(tag).append("=value_").append((i + tag) % 17);
+			sb.append(",pod=pod-").append(i);
+			sb.append(" cpu_usage_nanocores=").append(i * 1000).append("i,memory_usage_bytes=").append(i * 4096)
+					.append("i,restarts_total=").append(i % 3).append("i 1547510150000000000");
+			lines.add(sb.toString());
+		}
+		return lines;
+	}
+
+	/**
+	 Lines with escaped characters and quoted string fields that take the slow
+	 path of the tokenizers
+	 */
+	private static List<String> escaped()
+	{
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < 200; i++)
+		{
+			lines.add("win_perf_counters,host=web\\ " + i + ",objectname=Logical\\ Disk,instance=C:\\,path " +
+					"Percent_Disk_Time=" + (i * 0.37) + ",Current_Disk_Queue_Length=" + (i % 5) + "i," +
+					"message=\"disk \\\"C\\\" is busy, queue " + i + "\" 1547510150000000000");
+		}
+		return lines;
+	}
+}
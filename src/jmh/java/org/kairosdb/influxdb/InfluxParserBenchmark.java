@@ -0,0 +1,86 @@
+package org.kairosdb.influxdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ Parses every line of the line set with a shared parser, reports lines per
+ second.  Run with -t to measure contention on the shared caches.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InfluxParserBenchmark
+{
+	@State(Scope.Benchmark)
+	public static class Parser
+	{
+		@Param({BenchmarkLines.TELEGRAF, BenchmarkLines.HIGH_TAGS, BenchmarkLines.ESCAPED})
+		public String lineSet;
+
+		private final InfluxParser m_parser = new InfluxParser();
+		private String[] m_lines;
+		private byte[][] m_byteLines;
+
+		@Setup
+		public void setup()
+		{
+			List<String> lines = BenchmarkLines.load(lineSet);
+			m_lines = lines.toArray(new String[0]);
+			m_byteLines = new byte[m_lines.length][];
+			for (int i = 0; i < m_lines.length; i++)
+				m_byteLines[i] = m_lines[i].getBytes(UTF_8);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor
+	{
+		private int m_next;
+		private PointSink m_sink;
+
+		@Setup
+		public void setup(Blackhole blackhole)
+		{
+			m_sink = (metricName, tags, dataPoint) -> blackhole.consume(dataPoint);
+		}
+
+		private int nextLine(int count)
+		{
+			int line = m_next;
+			m_next = line + 1 == count ? 0 : line + 1;
+			return line;
+		}
+	}
+
+	@Benchmark
+	public int parseString(Parser parser, Cursor cursor) throws ParseException
+	{
+		String line = parser.m_lines[cursor.nextLine(parser.m_lines.length)];
+		return parser.m_parser.parseLine(line, TimeUnit.NANOSECONDS, null, cursor.m_sink);
+	}
+
+	@Benchmark
+	public int parseBytes(Parser parser, Cursor cursor) throws ParseException
+	{
+		byte[] line = parser.m_byteLines[cursor.nextLine(parser.m_byteLines.length)];
+		return parser.m_parser.parseLine(line, 0, line.length, TimeUnit.NANOSECONDS, null, cursor.m_sink);
+	}
+}
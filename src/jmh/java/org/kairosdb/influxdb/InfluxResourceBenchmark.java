@@ -0,0 +1,133 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableList;
+import org.kairosdb.core.KairosRootConfig;
+import org.kairosdb.eventbus.EventBusConfiguration;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ Posts a whole request body to v1Write with a writer that discards the points,
+ reports requests per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InfluxResourceBenchmark
+{
+	@Param({BenchmarkLines.TELEGRAF, BenchmarkLines.HIGH_TAGS, BenchmarkLines.ESCAPED})
+	public String lineSet;
+
+	@Param({"false", "true"})
+	public boolean gzip;
+
+	private InfluxResource m_resource;
+	private HttpHeaders m_headers;
+	private byte[] m_body;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		FilterEventBus eventBus = new FilterEventBus(new EventBusConfiguration(new KairosRootConfig()));
+		m_resource = new InfluxResource(new NoopMetricWriter(eventBus), new InfluxParser(), "influxdb");
+
+		m_body = BenchmarkLines.body(lineSet);
+		if (gzip)
+		{
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			try (GZIPOutputStream out = new GZIPOutputStream(compressed))
+			{
+				out.write(m_body);
+			}
+			m_body = compressed.toByteArray();
+		}
+		m_headers = new Headers(gzip ? ImmutableList.of("gzip") : null);
+	}
+
+	@Benchmark
+	public int v1Write() throws IOException
+	{
+		Response response = m_resource.v1Write(m_headers, "db", "ns", new ByteArrayInputStream(m_body));
+		return response.getStatus();
+	}
+
+	private static class Headers implements HttpHeaders
+	{
+		private final List<String> m_contentEncoding;
+
+		private Headers(List<String> contentEncoding)
+		{
+			m_contentEncoding = contentEncoding;
+		}
+
+		@Override
+		public List<String> getRequestHeader(String name)
+		{
+			return "Content-Encoding".equals(name) ? m_contentEncoding : null;
+		}
+
+		@Override
+		public MultivaluedMap<String, String> getRequestHeaders()
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<MediaType> getAcceptableMediaTypes()
+		{
+			return Collections.emptyList();
+		}
+
+		@Override
+		public List<Locale> getAcceptableLanguages()
+		{
+			return Collections.emptyList();
+		}
+
+		@Override
+		public MediaType getMediaType()
+		{
+			return null;
+		}
+
+		@Override
+		public Locale getLanguage()
+		{
+			return null;
+		}
+
+		@Override
+		public Map<String, Cookie> getCookies()
+		{
+			return Collections.emptyMap();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.events.DataPointEvent;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ Writer for the benchmarks that only counts the points
+ */
+class NoopMetricWriter extends MetricWriter
+{
+	private final LongAdder m_points = new LongAdder();
+
+	NoopMetricWriter(FilterEventBus eventBus)
+	{
+		super(eventBus);
+	}
+
+	@Override
+	public void write(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint)
+	{
+		m_points.increment();
+	}
+
+	@Override
+	public void writeBatch(List<DataPointEvent> events)
+	{
+		m_points.add(events.size());
+	}
+
+	long getPoints()
+	{
+		return m_points.sum();
+	}
+}
@@ -0,0 +1,124 @@
+package org.kairosdb.influxdb;
+
+import org.kairosdb.core.KairosRootConfig;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.eventbus.EventBusConfiguration;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ Sends the same bodies as InfluxResourceBenchmark over a TCP connection per
+ benchmark thread and waits until the points are written, reports bodies per
+ second so the results compare with v1Write.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TcpListenerBenchmark
+{
+	@Param({BenchmarkLines.TELEGRAF, BenchmarkLines.HIGH_TAGS, BenchmarkLines.ESCAPED})
+	public String lineSet;
+
+	private final AtomicLong m_sent = new AtomicLong();
+	private NoopMetricWriter m_writer;
+	private TcpListener m_listener;
+	private byte[] m_body;
+	private long m_bodyPoints;
+
+	@Setup
+	public void setup() throws IOException, KairosDBException
+	{
+		FilterEventBus eventBus = new FilterEventBus(new EventBusConfiguration(new KairosRootConfig()));
+		m_writer = new NoopMetricWriter(eventBus);
+		InfluxParser parser = new InfluxParser();
+		InfluxResource resource = new InfluxResource(m_writer, parser, "influxdb");
+
+		for (String line : BenchmarkLines.load(lineSet))
+		{
+			try
+			{
+				m_bodyPoints += parser.parseLine(line, TimeUnit.NANOSECONDS, "db").size();
+			}
+			catch (ParseException e)
+			{
+				//Not written either way
+			}
+		}
+
+		byte[] body = BenchmarkLines.body(lineSet);
+		m_body = Arrays.copyOf(body, body.length + 1);
+		m_body[body.length] = '\n';
+
+		int port;
+		try (ServerSocket socket = new ServerSocket(0))
+		{
+			port = socket.getLocalPort();
+		}
+		int processors = Runtime.getRuntime().availableProcessors();
+		m_listener = new TcpListener(resource, parser, port, 2, processors, processors * 2, 64 * 1024);
+		m_listener.start();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		m_listener.stop();
+	}
+
+	@State(Scope.Thread)
+	public static class Connection
+	{
+		private SocketChannel m_channel;
+
+		@Setup(Level.Trial)
+		public void connect(TcpListenerBenchmark benchmark) throws IOException
+		{
+			InetSocketAddress address = (InetSocketAddress) benchmark.m_listener.getLocalAddress();
+			m_channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", address.getPort()));
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws IOException
+		{
+			m_channel.close();
+		}
+	}
+
+	@Benchmark
+	public long tcpWrite(Connection connection) throws IOException
+	{
+		ByteBuffer body = ByteBuffer.wrap(m_body);
+		while (body.hasRemaining())
+			connection.m_channel.write(body);
+
+		//Counted across threads so each waits until as many points as were sent are written
+		long target = m_sent.addAndGet(m_bodyPoints);
+		while (m_writer.getPoints() < target)
+			Thread.yield();
+		return target;
+	}
+}
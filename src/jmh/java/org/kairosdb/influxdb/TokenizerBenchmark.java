@@ -0,0 +1,84 @@
+package org.kairosdb.influxdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.CharacterIterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ Tokenizes every line of the line set, reports lines per second
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TokenizerBenchmark
+{
+	@Param({BenchmarkLines.TELEGRAF, BenchmarkLines.HIGH_TAGS, BenchmarkLines.ESCAPED})
+	public String lineSet;
+
+	private String[] m_lines;
+	private byte[][] m_byteLines;
+	private final Tokenizer m_tokenizer = new Tokenizer();
+	private final ByteTokenizer m_byteTokenizer = new ByteTokenizer();
+	private int m_next;
+
+	@Setup
+	public void setup()
+	{
+		List<String> lines = BenchmarkLines.load(lineSet);
+		m_lines = lines.toArray(new String[0]);
+		m_byteLines = new byte[m_lines.length][];
+		for (int i = 0; i < m_lines.length; i++)
+			m_byteLines[i] = m_lines[i].getBytes(UTF_8);
+	}
+
+	private int nextLine()
+	{
+		int line = m_next;
+		m_next = line + 1 == m_lines.length ? 0 : line + 1;
+		return line;
+	}
+
+	@Benchmark
+	public void tokenizeString(Blackhole blackhole) throws ParseException
+	{
+		m_tokenizer.reset(m_lines[nextLine()]);
+		consumeTokens(m_tokenizer, blackhole);
+	}
+
+	@Benchmark
+	public void tokenizeBytes(Blackhole blackhole) throws ParseException
+	{
+		byte[] line = m_byteLines[nextLine()];
+		m_byteTokenizer.reset(line, 0, line.length);
+		consumeTokens(m_byteTokenizer, blackhole);
+	}
+
+	private static void consumeTokens(LineTokenizer tokenizer, Blackhole blackhole) throws ParseException
+	{
+		while (true)
+		{
+			blackhole.consume(tokenizer.tokenHashCode());
+			if (tokenizer.getChar() == CharacterIterator.DONE)
+				break;
+			tokenizer.next();
+		}
+	}
+}
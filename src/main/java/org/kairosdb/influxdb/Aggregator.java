@@ -0,0 +1,568 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.annotation.InjectProperty;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.events.DataPointEvent;
+import org.kairosdb.metrics4j.MetricSourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Aggregates the points of matching metrics into one point per series per
+ window before they are written.
+ <p>
+ Each rule is a metric name pattern, a function and a window length.  Windows
+ are aligned to the point timestamps and the aggregated point gets the
+ timestamp of the start of its window.  A window of a series is written when
+ the first point of a later window of the series arrives, or when the series
+ stops reporting, two window lengths after the first point of the window
+ arrived.  The second case is driven by a timer wheel ticked once a second.
+ <p>
+ Points older than the current window of their series are dropped and
+ counted, as are points of a window that was already written.  A series keeps
+ the start of its last written window for CLOSED_WINDOWS windows after it
+ stops reporting so late points don't reopen a written window, which would
+ write a second point with its timestamp.
+ <p>
+ The state of each series is kept in primitive arrays indexed by a slot
+ number.  Series are spread over stripes by hash and each stripe has its own
+ lock, slots and timer wheel so request threads rarely wait on each other.
+ All windows are written when the service is stopped.
+ */
+public class Aggregator implements KairosDBService
+{
+	private static final Logger logger = LoggerFactory.getLogger(Aggregator.class);
+
+	public static final String RULES_PROP = "kairosdb.influx.aggregate.rules";
+
+	private static final int STRIPES = 16;
+	private static final long TICK_MILLIS = 1000;
+	private static final int WHEEL_SIZE = 4096;
+	private static final int MAX_CACHED_RULES = 100_000;
+	//Windows a series that stopped reporting is remembered for
+	private static final int CLOSED_WINDOWS = 10;
+
+	public enum Function
+	{
+		LAST,
+		MIN,
+		MAX,
+		SUM,
+		COUNT,
+		AVG
+	}
+
+	private static final Rule NO_RULE = new Rule(null, null, 0);
+
+	private final MetricWriter m_writer;
+	private final Stripe[] m_stripes = new Stripe[STRIPES];
+	private final LongAdder m_pointsIn = new LongAdder();
+	private final LongAdder m_pointsOut = new LongAdder();
+	private final LongAdder m_latePoints = new LongAdder();
+	private volatile ImmutableList<Rule> m_rules = ImmutableList.of();
+	//Rule of each metric name, NO_RULE when none match
+	private volatile ConcurrentHashMap<String, Rule> m_ruleCache = new ConcurrentHashMap<>();
+	private volatile boolean m_running;
+	private ScheduledExecutorService m_flusher;
+
+	@Inject
+	public Aggregator(MetricWriter writer)
+	{
+		m_writer = checkNotNull(writer, "writer must not be null");
+		for (int i = 0; i < m_stripes.length; i++)
+			m_stripes[i] = new Stripe();
+
+		ImmutableMap<String, String> tags = ImmutableMap.of();
+		String className = InfluxStats.class.getName();
+		MetricSourceManager.addSource(className, "aggregatedPointsIn", tags, "Points added to aggregation windows", m_pointsIn::sum);
+		MetricSourceManager.addSource(className, "aggregatedPointsOut", tags, "Aggregated points written", m_pointsOut::sum);
+		MetricSourceManager.addSource(className, "aggregatedSeries", tags, "Series with an open aggregation window", this::getSeriesCount);
+		MetricSourceManager.addSource(className, "aggregatedLatePoints", tags, "Points dropped because their window was already written", m_latePoints::sum);
+	}
+
+	/**
+	 Each entry is a metric name pattern, a function and a window in seconds
+	 separated by colons, ie "cpu\\..*:avg:60".  Functions are last, min, max,
+	 sum, count and avg.  The first matching rule is used.
+	 */
+	@InjectProperty(prop = RULES_PROP, optional = true)
+	public void setupRules(@Named(RULES_PROP) List<String> rules)
+	{
+		ImmutableList.Builder<Rule> builder = ImmutableList.builder();
+		for (String entry : rules)
+		{
+			//The pattern may contain colons, the function and window are after the last two
+			int windowColon = entry.lastIndexOf(':');
+			int functionColon = windowColon > 0 ? entry.lastIndexOf(':', windowColon - 1) : -1;
+			try
+			{
+				checkArgument(functionColon > 0);
+				Function function = Function.valueOf(entry.substring(functionColon + 1, windowColon).trim().toUpperCase());
+				long windowSeconds = Long.parseLong(entry.substring(windowColon + 1).trim());
+				checkArgument(windowSeconds > 0);
+				Pattern pattern = Pattern.compile(entry.substring(0, functionColon));
+				builder.add(new Rule(pattern, function, TimeUnit.SECONDS.toMillis(windowSeconds)));
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new IllegalArgumentException("Invalid " + RULES_PROP + " entry '" + entry + "', expected pattern:function:seconds", e);
+			}
+		}
+
+		m_rules = builder.build();
+		m_ruleCache = new ConcurrentHashMap<>();
+	}
+
+	public boolean isEnabled()
+	{
+		return !m_rules.isEmpty();
+	}
+
+	@Override
+	public void start()
+	{
+		if (!isEnabled())
+			return;
+
+		logger.info("Aggregating points of {} rules", m_rules.size());
+		m_running = true;
+		m_flusher = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("influx-aggregate-%d").setDaemon(true).build());
+		m_flusher.scheduleAtFixedRate(() -> flushExpired(System.currentTimeMillis() / TICK_MILLIS),
+				TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 Writes all open windows, points added afterwards are written as they are
+	 */
+	@Override
+	public void stop()
+	{
+		if (!m_running)
+			return;
+
+		m_running = false;
+		m_flusher.shutdown();
+		try
+		{
+			m_flusher.awaitTermination(30, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		for (Stripe stripe : m_stripes)
+		{
+			List<DataPointEvent> events = new ArrayList<>();
+			synchronized (stripe)
+			{
+				stripe.flushAll(events);
+			}
+			write(events);
+		}
+	}
+
+	/**
+	 Adds the point to the window of its series if it matches a rule.
+	 @param metricName name the rules are matched against
+	 @param prefixedName name the aggregated points are written with
+	 @param out windows closed by this point are added here to be written
+	 @return false if the point is not aggregated and should be written as is,
+	 true if it was added to a window or dropped as late
+	 */
+	public boolean add(String metricName, String prefixedName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint,
+			List<DataPointEvent> out)
+	{
+		if (!m_running || !(dataPoint.isLong() || dataPoint.isDouble()))
+			return false;
+
+		Rule rule = getRule(metricName);
+		if (rule == NO_RULE)
+			return false;
+
+		int hash = prefixedName.hashCode() * 31 + tags.hashCode();
+		Stripe stripe = m_stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+		synchronized (stripe)
+		{
+			//Checked under the lock so no point is added after stop() flushed the stripe
+			if (!m_running)
+				return false;
+			return stripe.add(rule, prefixedName, tags, hash, dataPoint, out);
+		}
+	}
+
+	private Rule getRule(String metricName)
+	{
+		ConcurrentHashMap<String, Rule> cache = m_ruleCache;
+		Rule rule = cache.get(metricName);
+		if (rule != null)
+			return rule;
+
+		rule = NO_RULE;
+		for (Rule candidate : m_rules)
+		{
+			if (candidate.pattern.matcher(metricName).matches())
+			{
+				rule = candidate;
+				break;
+			}
+		}
+
+		if (cache.size() >= MAX_CACHED_RULES)
+			cache.clear();
+		cache.put(metricName, rule);
+		return rule;
+	}
+
+	/**
+	 Writes the windows of series that stopped reporting
+	 @param tick current time in seconds
+	 */
+	void flushExpired(long tick)
+	{
+		for (Stripe stripe : m_stripes)
+		{
+			List<DataPointEvent> events = new ArrayList<>();
+			synchronized (stripe)
+			{
+				stripe.flushExpired(tick, events);
+			}
+			write(events);
+		}
+	}
+
+	private void write(List<DataPointEvent> events)
+	{
+		if (events.isEmpty())
+			return;
+
+		try
+		{
+			m_writer.writeBatch(events);
+		}
+		catch (Exception e)
+		{
+			logger.error("Error writing " + events.size() + " aggregated points", e);
+		}
+	}
+
+	public long getSeriesCount()
+	{
+		long count = 0;
+		for (Stripe stripe : m_stripes)
+		{
+			synchronized (stripe)
+			{
+				count += stripe.m_openCount;
+			}
+		}
+		return count;
+	}
+
+	private static class Rule
+	{
+		private final Pattern pattern;
+		private final Function function;
+		private final long windowMillis;
+
+		private Rule(Pattern pattern, Function function, long windowMillis)
+		{
+			this.pattern = pattern;
+			this.function = function;
+			this.windowMillis = windowMillis;
+		}
+	}
+
+	private static class SeriesId
+	{
+		private String name;
+		private ImmutableSortedMap<String, String> tags;
+		private int hash;
+
+		private SeriesId set(String name, ImmutableSortedMap<String, String> tags, int hash)
+		{
+			this.name = name;
+			this.tags = tags;
+			this.hash = hash;
+			return this;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof SeriesId))
+				return false;
+			SeriesId other = (SeriesId) o;
+			return hash == other.hash && name.equals(other.name) && tags.equals(other.tags);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+
+	/**
+	 Windows of a share of the series, guarded by the stripe's monitor
+	 */
+	private class Stripe
+	{
+		private final Map<SeriesId, Integer> m_slots = new HashMap<>();
+		private final SeriesId m_probe = new SeriesId();
+		private final TimerWheel m_wheel = new TimerWheel(WHEEL_SIZE, System.currentTimeMillis() / TICK_MILLIS);
+
+		//Slot state
+		private SeriesId[] m_ids = new SeriesId[16];
+		private Rule[] m_rules = new Rule[16];
+		private int[] m_generations = new int[16];  //Changes when a window is written so stale timer entries are skipped
+		private long[] m_windowStarts = new long[16];
+		private long[] m_deadlines = new long[16];  //Tick the window is written if the series stops reporting
+		private long[] m_counts = new long[16];
+		private double[] m_mins = new double[16];
+		private double[] m_maxes = new double[16];
+		private double[] m_sums = new double[16];
+		private double[] m_lasts = new double[16];
+		private long[] m_longSums = new long[16];
+		//Kept apart from the doubles so longs past 2^53 aggregate exactly
+		private long[] m_longMins = new long[16];
+		private long[] m_longMaxes = new long[16];
+		private long[] m_longLasts = new long[16];
+		private boolean[] m_allLongs = new boolean[16];
+		//False once the window was written, m_windowStarts is then the start of the written window
+		private boolean[] m_open = new boolean[16];
+		private int m_openCount = 0;
+
+		private int[] m_free = new int[16];
+		private int m_freeCount = 0;
+		private int m_used = 0;
+
+		private boolean add(Rule rule, String name, ImmutableSortedMap<String, String> tags, int hash, DataPoint dataPoint,
+				List<DataPointEvent> out)
+		{
+			long windowStart = Math.floorDiv(dataPoint.getTimestamp(), rule.windowMillis) * rule.windowMillis;
+
+			Integer found = m_slots.get(m_probe.set(name, tags, hash));
+			int slot;
+			if (found == null)
+			{
+				slot = allocate(new SeriesId().set(name, tags, hash), rule);
+				startWindow(slot, windowStart);
+			}
+			else
+			{
+				slot = found;
+				if (m_rules[slot] != rule || windowStart > m_windowStarts[slot])
+				{
+					if (m_open[slot])
+						out.add(emit(slot));
+					m_rules[slot] = rule;
+					startWindow(slot, windowStart);
+				}
+				else if (windowStart < m_windowStarts[slot] || !m_open[slot])
+				{
+					//Late point, writing it would mix a raw point into the aggregates
+					//or write a second point for a window that was already written
+					m_latePoints.increment();
+					return true;
+				}
+			}
+
+			m_counts[slot]++;
+			if (dataPoint.isLong())
+			{
+				long value = dataPoint.getLongValue();
+				m_mins[slot] = Math.min(m_mins[slot], value);
+				m_maxes[slot] = Math.max(m_maxes[slot], value);
+				m_sums[slot] += value;
+				m_lasts[slot] = value;
+				m_longMins[slot] = Math.min(m_longMins[slot], value);
+				m_longMaxes[slot] = Math.max(m_longMaxes[slot], value);
+				m_longSums[slot] += value;
+				m_longLasts[slot] = value;
+			}
+			else
+			{
+				double value = dataPoint.getDoubleValue();
+				m_mins[slot] = Math.min(m_mins[slot], value);
+				m_maxes[slot] = Math.max(m_maxes[slot], value);
+				m_sums[slot] += value;
+				m_lasts[slot] = value;
+				m_allLongs[slot] = false;
+			}
+
+			m_pointsIn.increment();
+			return true;
+		}
+
+		private int allocate(SeriesId id, Rule rule)
+		{
+			int slot;
+			if (m_freeCount > 0)
+				slot = m_free[--m_freeCount];
+			else
+			{
+				if (m_used == m_ids.length)
+					grow(m_used * 2);
+				slot = m_used++;
+			}
+
+			m_ids[slot] = id;
+			m_rules[slot] = rule;
+			m_slots.put(id, slot);
+			return slot;
+		}
+
+		private void grow(int size)
+		{
+			m_ids = Arrays.copyOf(m_ids, size);
+			m_rules = Arrays.copyOf(m_rules, size);
+			m_generations = Arrays.copyOf(m_generations, size);
+			m_windowStarts = Arrays.copyOf(m_windowStarts, size);
+			m_deadlines = Arrays.copyOf(m_deadlines, size);
+			m_counts = Arrays.copyOf(m_counts, size);
+			m_mins = Arrays.copyOf(m_mins, size);
+			m_maxes = Arrays.copyOf(m_maxes, size);
+			m_sums = Arrays.copyOf(m_sums, size);
+			m_lasts = Arrays.copyOf(m_lasts, size);
+			m_longSums = Arrays.copyOf(m_longSums, size);
+			m_longMins = Arrays.copyOf(m_longMins, size);
+			m_longMaxes = Arrays.copyOf(m_longMaxes, size);
+			m_longLasts = Arrays.copyOf(m_longLasts, size);
+			m_allLongs = Arrays.copyOf(m_allLongs, size);
+			m_open = Arrays.copyOf(m_open, size);
+			m_free = Arrays.copyOf(m_free, size);
+		}
+
+		private void startWindow(int slot, long windowStart)
+		{
+			m_generations[slot]++;
+			m_windowStarts[slot] = windowStart;
+			m_counts[slot] = 0;
+			m_mins[slot] = Double.POSITIVE_INFINITY;
+			m_maxes[slot] = Double.NEGATIVE_INFINITY;
+			m_sums[slot] = 0;
+			m_longSums[slot] = 0;
+			m_longMins[slot] = Long.MAX_VALUE;
+			m_longMaxes[slot] = Long.MIN_VALUE;
+			m_allLongs[slot] = true;
+			if (!m_open[slot])
+			{
+				m_open[slot] = true;
+				m_openCount++;
+			}
+
+			long windowTicks = (m_rules[slot].windowMillis + TICK_MILLIS - 1) / TICK_MILLIS;
+			m_deadlines[slot] = System.currentTimeMillis() / TICK_MILLIS + windowTicks * 2;
+			m_wheel.schedule(((long) slot << 32) | (m_generations[slot] & 0xFFFFFFFFL), m_deadlines[slot]);
+		}
+
+		private DataPointEvent emit(int slot)
+		{
+			long timestamp = m_windowStarts[slot];
+			boolean allLong = m_allLongs[slot];
+			DataPoint dataPoint;
+			switch (m_rules[slot].function)
+			{
+				case LAST:
+					dataPoint = allLong ? new LongDataPoint(timestamp, m_longLasts[slot]) : new DoubleDataPoint(timestamp, m_lasts[slot]);
+					break;
+				case MIN:
+					dataPoint = allLong ? new LongDataPoint(timestamp, m_longMins[slot]) : new DoubleDataPoint(timestamp, m_mins[slot]);
+					break;
+				case MAX:
+					dataPoint = allLong ? new LongDataPoint(timestamp, m_longMaxes[slot]) : new DoubleDataPoint(timestamp, m_maxes[slot]);
+					break;
+				case SUM:
+					dataPoint = allLong ? new LongDataPoint(timestamp, m_longSums[slot]) : new DoubleDataPoint(timestamp, m_sums[slot]);
+					break;
+				case COUNT:
+					dataPoint = new LongDataPoint(timestamp, m_counts[slot]);
+					break;
+				default:
+					dataPoint = new DoubleDataPoint(timestamp, m_sums[slot] / m_counts[slot]);
+					break;
+			}
+
+			m_pointsOut.increment();
+			m_open[slot] = false;
+			m_openCount--;
+			SeriesId id = m_ids[slot];
+			return new DataPointEvent(id.name, id.tags, dataPoint);
+		}
+
+		private void free(int slot)
+		{
+			if (m_open[slot])
+			{
+				m_open[slot] = false;
+				m_openCount--;
+			}
+			m_slots.remove(m_ids[slot]);
+			m_ids[slot] = null;
+			m_rules[slot] = null;
+			m_generations[slot]++;
+			m_free[m_freeCount++] = slot;
+		}
+
+		private void flushExpired(long tick, List<DataPointEvent> out)
+		{
+			m_wheel.advance(tick, (entry, current) ->
+			{
+				int slot = (int) (entry >>> 32);
+				if (m_generations[slot] != (int) entry)
+					return -1;  //Window was already written
+				if (m_deadlines[slot] > current)
+					return m_deadlines[slot];
+
+				if (!m_open[slot])
+				{
+					//Remembered long enough, points of the written window are no longer expected
+					free(slot);
+					return -1;
+				}
+
+				//Written but remembered, a new window starting reschedules with a new generation
+				out.add(emit(slot));
+				long windowTicks = (m_rules[slot].windowMillis + TICK_MILLIS - 1) / TICK_MILLIS;
+				m_deadlines[slot] = current + windowTicks * CLOSED_WINDOWS;
+				return m_deadlines[slot];
+			});
+		}
+
+		private void flushAll(List<DataPointEvent> out)
+		{
+			for (int slot : new ArrayList<>(m_slots.values()))
+			{
+				if (m_open[slot])
+					out.add(emit(slot));
+				free(slot);
+			}
+		}
+	}
+}
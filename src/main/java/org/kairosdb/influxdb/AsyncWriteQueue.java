@@ -0,0 +1,205 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.metrics4j.MetricSourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Queue of write requests that have been accepted but not yet parsed.
+ <p>
+ When enabled InfluxResource reads the body of a write request, submits it
+ here and returns 204 right away.  The bodies are parsed and written by a pool
+ of worker threads so request latency does not depend on how fast the rest of
+ Kairos accepts data points.  The queue is bounded both by the number of
+ requests and the number of bytes held, once either limit is reached submit()
+ returns false and the resource answers 429 so the client backs off.  A body
+ larger than the byte limit can never be queued, the resource stops reading it
+ at the limit and answers 413.
+ */
+public class AsyncWriteQueue implements KairosDBService
+{
+	private static final Logger logger = LoggerFactory.getLogger(AsyncWriteQueue.class);
+
+	public static final String ENABLED_PROP = "kairosdb.influx.async.enabled";
+	public static final String THREADS_PROP = "kairosdb.influx.async.threads";
+	public static final String MAX_REQUESTS_PROP = "kairosdb.influx.async.max_queued_requests";
+	public static final String MAX_BYTES_PROP = "kairosdb.influx.async.max_queued_bytes";
+	public static final String RETRY_AFTER_PROP = "kairosdb.influx.async.retry_after_seconds";
+
+	private final AtomicLong m_queuedBytes = new AtomicLong();
+	private volatile ThreadPoolExecutor m_executor;
+
+	@Inject(optional = true)
+	@Named(ENABLED_PROP)
+	private boolean m_enabled = false;
+
+	@Inject(optional = true)
+	@Named(THREADS_PROP)
+	private int m_threads = 2;
+
+	@Inject(optional = true)
+	@Named(MAX_REQUESTS_PROP)
+	private int m_maxRequests = 1000;
+
+	@Inject(optional = true)
+	@Named(MAX_BYTES_PROP)
+	private long m_maxBytes = 256L * 1024 * 1024;
+
+	@Inject(optional = true)
+	@Named(RETRY_AFTER_PROP)
+	private int m_retryAfterSeconds = 1;
+
+	public AsyncWriteQueue()
+	{
+		ImmutableMap<String, String> tags = ImmutableMap.of();
+		String className = InfluxStats.class.getName();
+		MetricSourceManager.addSource(className, "asyncQueuedRequests", tags, "Write requests waiting to be parsed", this::getQueuedRequests);
+		MetricSourceManager.addSource(className, "asyncQueuedBytes", tags, "Bytes of write requests waiting to be parsed", m_queuedBytes::get);
+	}
+
+	public AsyncWriteQueue(boolean enabled, int threads, int maxRequests, long maxBytes, int retryAfterSeconds)
+	{
+		this();
+		m_enabled = enabled;
+		m_threads = threads;
+		m_maxRequests = maxRequests;
+		m_maxBytes = maxBytes;
+		m_retryAfterSeconds = retryAfterSeconds;
+	}
+
+	@Override
+	public void start()
+	{
+		if (!m_enabled)
+			return;
+
+		checkArgument(m_threads > 0, THREADS_PROP + " must be greater than 0");
+		checkArgument(m_maxRequests > 0, MAX_REQUESTS_PROP + " must be greater than 0");
+		checkArgument(m_maxBytes > 0, MAX_BYTES_PROP + " must be greater than 0");
+
+		logger.info("Starting async influx writes with {} threads", m_threads);
+		m_executor = new ThreadPoolExecutor(m_threads, m_threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(m_maxRequests),
+				new ThreadFactoryBuilder().setNameFormat("influx-write-%d").setDaemon(true).build());
+	}
+
+	/**
+	 Stops accepting requests and waits for the queued requests to be written
+	 */
+	@Override
+	public void stop()
+	{
+		ThreadPoolExecutor executor = m_executor;
+		if (executor == null)
+			return;
+
+		m_executor = null;
+		executor.shutdown();
+		try
+		{
+			if (!executor.awaitTermination(30, TimeUnit.SECONDS))
+				logger.warn("Timed out waiting for {} queued influx writes", executor.getQueue().size());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public boolean isEnabled()
+	{
+		return m_executor != null;
+	}
+
+	public int getRetryAfterSeconds()
+	{
+		return m_retryAfterSeconds;
+	}
+
+	/**
+	 Largest body that can be queued, bodies are read into an array so this is
+	 also capped below the largest array
+	 */
+	public long getMaxBytes()
+	{
+		return Math.min(m_maxBytes, Integer.MAX_VALUE - 8);
+	}
+
+	/**
+	 Checks if a body of the given size would fit in the queue right now, used to
+	 turn requests away before their body is read.
+	 */
+	public boolean hasRoom(long bytes)
+	{
+		ThreadPoolExecutor executor = m_executor;
+		return executor != null && executor.getQueue().remainingCapacity() != 0 &&
+				m_queuedBytes.get() + bytes <= getMaxBytes();
+	}
+
+	/**
+	 Queues the write to run on a worker thread.
+	 @param bytes size of the request body held by the write
+	 @return false if the queue is full or not running
+	 */
+	public boolean submit(int bytes, Runnable write)
+	{
+		checkNotNull(write, "write must not be null");
+		ThreadPoolExecutor executor = m_executor;
+		if (executor == null)
+			return false;
+
+		long queued;
+		do
+		{
+			queued = m_queuedBytes.get();
+			if (queued + bytes > getMaxBytes())
+				return false;
+		} while (!m_queuedBytes.compareAndSet(queued, queued + bytes));
+
+		try
+		{
+			executor.execute(() ->
+			{
+				try
+				{
+					write.run();
+				}
+				finally
+				{
+					m_queuedBytes.addAndGet(-bytes);
+				}
+			});
+			return true;
+		}
+		catch (RejectedExecutionException e)
+		{
+			m_queuedBytes.addAndGet(-bytes);
+			return false;
+		}
+	}
+
+	public long getQueuedRequests()
+	{
+		ThreadPoolExecutor executor = m_executor;
+		return executor == null ? 0 : executor.getQueue().size();
+	}
+
+	public long getQueuedBytes()
+	{
+		return m_queuedBytes.get();
+	}
+}
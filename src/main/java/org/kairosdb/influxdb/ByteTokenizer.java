@@ -0,0 +1,343 @@
+package org.kairosdb.influxdb;
+
+import java.nio.ByteBuffer;
+import java.text.CharacterIterator;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ Tokenizer that works directly on UTF-8 encoded bytes.
+ <p>
+ The delimiters in the line protocol are ASCII and UTF-8 never uses ASCII
+ values within a multi-byte sequence so the bytes can be scanned without
+ decoding them.  Strings are only created for the tokens that are asked for.
+ The exception is whitespace above ASCII, which splits the same as in
+ Tokenizer.  Those characters are all three bytes in UTF-8 so only sequences
+ starting with 0xE1 to 0xE3 are decoded.
+ <p>
+ Lines without escapes or double quotes are tokenized in place in the callers
+ array, so the array must not be modified until the line has been parsed.
+ Other lines are unescaped into an internal buffer.
+ <p>
+ Like Tokenizer, a ByteTokenizer can be reused by calling reset() and is not
+ thread safe.
+ */
+public class ByteTokenizer implements LineTokenizer
+{
+	private static final int INITIAL_SIZE = 256;
+
+	private byte[] m_parsedInput = new byte[INITIAL_SIZE];
+	private byte[] m_directCopy = new byte[0];
+	private byte[] m_input;  //Either the callers array or m_parsedInput
+	private int m_start;
+	private byte[] m_rawInput;
+	private int m_rawStart;
+	private int m_seriesKeyEnd;  //Index in m_rawInput of the first unescaped whitespace
+	private int m_end;
+	private int[] m_tokens = new int[INITIAL_SIZE / 4];
+	private char[] m_wideDelimiters = new char[INITIAL_SIZE / 4];  //Delimiter of each token that ends at non-ASCII whitespace
+	private int m_tokenCount;
+	private int m_tokenIteratorPos;
+	private int m_lastTokenPos;
+
+	public ByteTokenizer()
+	{
+	}
+
+	public ByteTokenizer(byte[] input, int offset, int length) throws ParseException
+	{
+		reset(input, offset, length);
+	}
+
+	/**
+	 Tokenizes a new line reusing the buffers from the previous line.
+	 */
+	public void reset(byte[] input, int offset, int length) throws ParseException
+	{
+		m_tokenCount = 0;
+		m_tokenIteratorPos = 0;
+		m_rawInput = input;
+		m_rawStart = offset;
+		m_seriesKeyEnd = -1;
+
+		int end = offset + length;
+		if (tokenizeFast(input, offset, end))
+			return;
+
+		//Slow path, start over tracking quotes and escapes
+		m_tokenCount = 0;
+		//A trailing \ takes three bytes, see below
+		if (m_parsedInput.length < length + 2)
+			m_parsedInput = new byte[Math.max(length + 2, m_parsedInput.length * 2)];
+
+		m_input = m_parsedInput;
+		m_start = 0;
+		m_lastTokenPos = -1;
+
+		int insertPos = 0;
+		boolean startQuote = false;
+
+		for (int i = offset; i < end; i++)
+		{
+			byte b = input[i];
+
+			char wide = !startQuote && b < 0 ? wideWhitespace(input, i, end) : 0;
+			if (wide != 0)
+			{
+				if (m_seriesKeyEnd == -1)
+					m_seriesKeyEnd = i;
+				addToken(insertPos);
+				m_wideDelimiters[m_tokenCount - 1] = wide;
+
+				//The lead byte stands in for the whole character, getChar() returns the delimiter
+				m_parsedInput[insertPos] = b;
+				insertPos ++;
+				i += 2;
+				continue;
+			}
+
+			if (!startQuote && (b == ',' || b == '=' || isWhitespace(b)))
+			{
+				if (m_seriesKeyEnd == -1 && isWhitespace(b))
+					m_seriesKeyEnd = i;
+				addToken(insertPos);
+			}
+
+			if (b == '"')
+				startQuote = !startQuote;
+
+			if (b == '\\')
+			{
+				if (i + 1 < end)
+				{
+					//move past the \ and place the next in the buffer
+					i++;
+					b = input[i];
+				}
+				else
+				{
+					//Nothing to escape, Tokenizer puts CharacterIterator.DONE in its place
+					m_parsedInput[insertPos++] = (byte)0xEF;
+					m_parsedInput[insertPos++] = (byte)0xBF;
+					b = (byte)0xBF;
+				}
+			}
+
+			m_parsedInput[insertPos] = b;
+			insertPos ++;
+		}
+
+		if (startQuote)
+		{
+			throw new ParseException(ParseException.Reason.UNTERMINATED_QUOTE, "Invalid syntax: unterminated double quote");
+		}
+
+		m_end = insertPos;
+		addToken(insertPos);
+	}
+
+	/**
+	 Tokenizes the remaining bytes of the buffer without changing its position.
+	 Buffers that are not backed by an array are first copied into a reused buffer.
+	 */
+	public void reset(ByteBuffer input) throws ParseException
+	{
+		if (input.hasArray())
+		{
+			reset(input.array(), input.arrayOffset() + input.position(), input.remaining());
+		}
+		else
+		{
+			int length = input.remaining();
+			if (m_directCopy.length < length)
+				m_directCopy = new byte[Math.max(length, m_directCopy.length * 2)];
+
+			input.duplicate().get(m_directCopy, 0, length);
+			reset(m_directCopy, 0, length);
+		}
+	}
+
+	/**
+	 Scans the line in place for delimiters.  Gives up as soon as an escape or
+	 quote is found as those lines need to be unescaped into m_parsedInput.
+	 */
+	private boolean tokenizeFast(byte[] input, int offset, int end)
+	{
+		for (int i = offset; i < end; i++)
+		{
+			byte b = input[i];
+			if (b >= 0)
+			{
+				byte charClass = ASCII_CLASS[b];
+				if (charClass == DELIMITER)
+				{
+					if (m_seriesKeyEnd == -1 && b != ',' && b != '=')
+						m_seriesKeyEnd = i;
+					addToken(i);
+				}
+				else if (charClass == ESCAPE_OR_QUOTE)
+				{
+					m_seriesKeyEnd = -1;
+					return false;
+				}
+			}
+			else if (b >= (byte)0xE1 && b <= (byte)0xE3 && wideWhitespace(input, i, end) != 0)
+			{
+				//Rare enough to leave to the slow path
+				m_seriesKeyEnd = -1;
+				return false;
+			}
+		}
+
+		m_input = input;
+		m_end = end;
+		m_start = offset;
+		m_lastTokenPos = offset - 1;
+		addToken(end);
+		return true;
+	}
+
+	/**
+	 Same as Character.isWhitespace for the ASCII range.  Bytes that are part of
+	 a multi-byte sequence are never whitespace.
+	 */
+	private static boolean isWhitespace(byte b)
+	{
+		return b == ' ' || (b >= 0x09 && b <= 0x0D) || (b >= 0x1C && b <= 0x1F);
+	}
+
+	/**
+	 Decodes the three byte sequence at index.
+	 @return the character if Character.isWhitespace() is true for it, otherwise 0
+	 */
+	private static char wideWhitespace(byte[] input, int index, int end)
+	{
+		byte lead = input[index];
+		if (lead < (byte)0xE1 || lead > (byte)0xE3 || index + 2 >= end)
+			return 0;
+
+		byte b1 = input[index + 1];
+		byte b2 = input[index + 2];
+		if ((b1 & 0xC0) != 0x80 || (b2 & 0xC0) != 0x80)
+			return 0;
+
+		char c = (char)(((lead & 0x0F) << 12) | ((b1 & 0x3F) << 6) | (b2 & 0x3F));
+		return Character.isWhitespace(c) ? c : 0;
+	}
+
+	private void addToken(int pos)
+	{
+		if (m_tokenCount == m_tokens.length)
+		{
+			m_tokens = Arrays.copyOf(m_tokens, m_tokens.length * 2);
+			m_wideDelimiters = Arrays.copyOf(m_wideDelimiters, m_tokens.length);
+		}
+
+		m_tokens[m_tokenCount++] = pos;
+	}
+
+	@Override
+	public void next() throws ParseException
+	{
+		m_lastTokenPos = m_tokens[m_tokenIteratorPos];
+		m_tokenIteratorPos++;
+		if (m_tokenIteratorPos == m_tokenCount)
+			throw new ParseException(ParseException.Reason.PREMATURE_END, "Premature end of input.");
+	}
+
+	@Override
+	public char getChar()
+	{
+		int pos = m_tokens[m_tokenIteratorPos];
+		if (pos == m_end)
+			return CharacterIterator.DONE;
+
+		//Tokens only end at a multi-byte lead when the delimiter is non-ASCII whitespace
+		byte b = m_input[pos];
+		return b < 0 ? m_wideDelimiters[m_tokenIteratorPos] : (char)b;
+	}
+
+	@Override
+	public String getString()
+	{
+		int stringStart = m_lastTokenPos+1;
+		return new String(m_input, stringStart, m_tokens[m_tokenIteratorPos] - stringStart, UTF_8);
+	}
+
+	@Override
+	public int getLength()
+	{
+		return m_tokens[m_tokenIteratorPos] - (m_lastTokenPos+1);
+	}
+
+	@Override
+	public char charAt(int index)
+	{
+		return (char)(m_input[m_lastTokenPos + 1 + index] & 0xFF);
+	}
+
+	/**
+	 For ASCII tokens each byte is one char so the hash can be computed from the
+	 bytes.  Anything else is decoded first.
+	 */
+	@Override
+	public int tokenHashCode()
+	{
+		int hash = 0;
+		int end = m_tokens[m_tokenIteratorPos];
+		for (int i = m_lastTokenPos+1; i < end; i++)
+		{
+			byte b = m_input[i];
+			if (b < 0)
+				return getString().hashCode();
+			hash = 31 * hash + b;
+		}
+		return hash;
+	}
+
+	@Override
+	public boolean tokenEquals(String value)
+	{
+		int start = m_lastTokenPos+1;
+		int length = m_tokens[m_tokenIteratorPos] - start;
+		if (length != value.length())
+		{
+			//Lengths can only differ if there are multi-byte characters
+			return length > value.length() && getString().equals(value);
+		}
+
+		for (int i = 0; i < length; i++)
+		{
+			byte b = m_input[start + i];
+			if (b < 0)
+				return getString().equals(value);
+			if (b != value.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int getPosition()
+	{
+		return m_tokenIteratorPos;
+	}
+
+	@Override
+	public void setPosition(int position)
+	{
+		m_tokenIteratorPos = position;
+		m_lastTokenPos = position == 0 ? m_start - 1 : m_tokens[position - 1];
+	}
+
+	@Override
+	public boolean getSeriesKey(SeriesKey key, String bucket)
+	{
+		if (m_seriesKeyEnd == -1)
+			return false;
+
+		key.set(m_rawInput, m_rawStart, m_seriesKeyEnd - m_rawStart, bucket);
+		return true;
+	}
+}
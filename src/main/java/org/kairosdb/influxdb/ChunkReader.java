@@ -0,0 +1,137 @@
+package org.kairosdb.influxdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Splits a stream of newline delimited input into chunks of up to chunkSize
+ bytes that each end at a newline (except the last), so every chunk holds
+ whole lines and can be parsed on its own.
+ <p>
+ Buffers start small and only grow to the chunk size while there is more
+ input, so a small body is held in a buffer about its own size.  Chunks handed
+ back with release() are reused for the following chunks.  A line longer than
+ the chunk size ends up in a chunk of its own that is as long as the line, up
+ to maxLineLength.  Instances are not thread safe.
+ */
+public class ChunkReader
+{
+	//Size of the first buffer when there is none to reuse
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private final InputStream m_input;
+	private final int m_chunkSize;
+	private final int m_maxLineLength;
+	private final Deque<byte[]> m_freeBuffers = new ArrayDeque<>();
+	private byte[] m_carry = new byte[0];  //Start of a line that did not fit in the previous chunk
+	private int m_carryLength = 0;
+	private boolean m_endOfStream = false;
+
+	public ChunkReader(InputStream input, int chunkSize)
+	{
+		this(input, chunkSize, LineReader.DEFAULT_MAX_LINE_LENGTH);
+	}
+
+	public ChunkReader(InputStream input, int chunkSize, int maxLineLength)
+	{
+		checkArgument(chunkSize > 0, "chunkSize must be greater than 0");
+		checkArgument(maxLineLength > 0, "maxLineLength must be greater than 0");
+		m_input = checkNotNull(input, "input must not be null");
+		m_chunkSize = chunkSize;
+		m_maxLineLength = maxLineLength;
+	}
+
+	/**
+	 @return the next chunk, the limit of the buffer is the length of the chunk.
+	 The array belongs to the caller until it is passed to release().  Null when
+	 there is no more input
+	 @throws LineTooLongException if a line is longer than maxLineLength
+	 */
+	public ByteBuffer next() throws IOException
+	{
+		if (isDone())
+			return null;
+
+		byte[] buffer = m_freeBuffers.poll();
+		if (buffer == null || buffer.length <= m_carryLength)
+			buffer = new byte[Math.max(Math.min(m_chunkSize, INITIAL_BUFFER_SIZE), m_carryLength + 1)];
+
+		System.arraycopy(m_carry, 0, buffer, 0, m_carryLength);
+		int length = m_carryLength;
+		int scanStart = m_carryLength;  //Carry has no newline
+		m_carryLength = 0;
+
+		while (true)
+		{
+			while (length < buffer.length && !m_endOfStream)
+			{
+				int read = m_input.read(buffer, length, buffer.length - length);
+				if (read == -1)
+					m_endOfStream = true;
+				else
+					length += read;
+			}
+
+			if (m_endOfStream)
+			{
+				if (length != 0)
+					return ByteBuffer.wrap(buffer, 0, length);
+
+				release(ByteBuffer.wrap(buffer));
+				return null;
+			}
+
+			//Keep reading until the chunk is full
+			if (length < m_chunkSize)
+			{
+				buffer = Arrays.copyOf(buffer, (int) Math.min(length * 2L, m_chunkSize));
+				continue;
+			}
+
+			for (int i = length - 1; i >= scanStart; i--)
+			{
+				if (buffer[i] == '\n')
+				{
+					m_carryLength = length - (i + 1);
+					if (m_carry.length < m_carryLength)
+						m_carry = new byte[m_carryLength];
+					System.arraycopy(buffer, i + 1, m_carry, 0, m_carryLength);
+					return ByteBuffer.wrap(buffer, 0, i + 1);
+				}
+			}
+
+			//No newline in the whole buffer, the line is longer than a chunk
+			if (length > m_maxLineLength)
+				throw new LineTooLongException(m_maxLineLength);
+
+			scanStart = length;
+			buffer = Arrays.copyOf(buffer, (int) Math.min(length * 2L, m_maxLineLength + 1L));
+		}
+	}
+
+	/**
+	 Hands the array of a chunk back to be reused by next().  Arrays that grew
+	 past the chunk size to hold a long line are not kept.
+	 */
+	public void release(ByteBuffer chunk)
+	{
+		byte[] buffer = chunk.array();
+		if (buffer.length <= m_chunkSize)
+			m_freeBuffers.push(buffer);
+	}
+
+	/**
+	 True once all of the input has been returned
+	 */
+	public boolean isDone()
+	{
+		return m_endOfStream && m_carryLength == 0;
+	}
+}
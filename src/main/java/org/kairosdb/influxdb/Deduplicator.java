@@ -0,0 +1,279 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.StringDataPoint;
+import org.kairosdb.metrics4j.MetricSourceManager;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ Suppresses points that were already written recently, such as the points of
+ a batch Telegraf resends after a timeout.
+ <p>
+ A point is identified by a 64 bit hash of its metric name, tags, timestamp
+ and value.  Hashes are kept in two generations of open addressing tables, the
+ current generation and the one before it.  The generations rotate every
+ window so a point is remembered for at least one window and at most two.
+ If the current generation fills up before the window is over it is rotated
+ early, which bounds the memory at about 32 bytes per entry but shortens the
+ window under heavy load.  Two different points can share a hash, with 64 bit
+ hashes that is rare enough to ignore.
+ <p>
+ Hashes are spread over stripes, each with its own lock and tables.  A hash
+ is remembered as soon as it is checked so duplicates within a request are
+ caught too, callers forget() the hashes of points they then failed to write
+ so a retry of those points isn't suppressed.
+ */
+public class Deduplicator
+{
+	public static final String WINDOW_MINUTES_PROP = "kairosdb.influx.dedup.window_minutes";
+	public static final String MAX_ENTRIES_PROP = "kairosdb.influx.dedup.max_entries";
+
+	private static final int STRIPES = 16;
+
+	private final LongAdder m_suppressed = new LongAdder();
+	private final LongAdder m_earlyRotations = new LongAdder();
+	private volatile Stripe[] m_stripes;
+
+	@Inject(optional = true)
+	@Named(WINDOW_MINUTES_PROP)
+	private long m_windowMinutes = 0;
+
+	@Inject(optional = true)
+	@Named(MAX_ENTRIES_PROP)
+	private int m_maxEntries = 1_000_000;
+
+	public Deduplicator()
+	{
+		ImmutableMap<String, String> tags = ImmutableMap.of();
+		String className = InfluxStats.class.getName();
+		MetricSourceManager.addSource(className, "dedupSuppressed", tags, "Points suppressed as duplicates", m_suppressed::sum);
+		MetricSourceManager.addSource(className, "dedupEarlyRotations", tags,
+				"Times the de-duplication window was cut short because it was full", m_earlyRotations::sum);
+	}
+
+	public Deduplicator(long windowMinutes, int maxEntries)
+	{
+		this();
+		m_windowMinutes = windowMinutes;
+		m_maxEntries = maxEntries;
+	}
+
+	public boolean isEnabled()
+	{
+		return m_windowMinutes > 0;
+	}
+
+	/**
+	 Hash that identifies a point for isDuplicate()
+	 */
+	public static long hash(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint)
+	{
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		hasher.putUnencodedChars(metricName);
+		for (Map.Entry<String, String> tag : tags.entrySet())
+		{
+			hasher.putChar(',').putUnencodedChars(tag.getKey()).putChar('=').putUnencodedChars(tag.getValue());
+		}
+		hasher.putLong(dataPoint.getTimestamp());
+		if (dataPoint.isLong())
+			hasher.putByte((byte) 'l').putLong(dataPoint.getLongValue());
+		else if (dataPoint.isDouble())
+			hasher.putByte((byte) 'd').putDouble(dataPoint.getDoubleValue());
+		else if (dataPoint instanceof StringDataPoint)
+			hasher.putByte((byte) 's').putUnencodedChars(((StringDataPoint) dataPoint).getValue());
+		else
+			hasher.putByte((byte) 'o').putUnencodedChars(dataPoint.toString());
+		return hasher.hash().asLong();
+	}
+
+	/**
+	 Returns true if the point with the hash from hash() was seen within the
+	 window, otherwise remembers it and returns false.  A point that is then
+	 not written must be forgotten with forget()
+	 */
+	public boolean isDuplicate(long hash)
+	{
+		return isDuplicate(hash, System.currentTimeMillis());
+	}
+
+	/*package*/ boolean isDuplicate(long hash, long now)
+	{
+		//0 marks an empty table entry
+		if (hash == 0)
+			hash = 1;
+
+		Stripe stripe = getStripes()[(int) (hash >>> 60) & (STRIPES - 1)];
+		if (stripe.isDuplicate(hash, now))
+		{
+			m_suppressed.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 Forgets a hash remembered by isDuplicate(), for points that were not written
+	 */
+	public void forget(long hash)
+	{
+		if (hash == 0)
+			hash = 1;
+
+		getStripes()[(int) (hash >>> 60) & (STRIPES - 1)].forget(hash);
+	}
+
+	private Stripe[] getStripes()
+	{
+		//Created on first use so the injected properties are set
+		Stripe[] stripes = m_stripes;
+		if (stripes == null)
+		{
+			synchronized (this)
+			{
+				stripes = m_stripes;
+				if (stripes == null)
+				{
+					checkArgument(m_maxEntries > 0, MAX_ENTRIES_PROP + " must be greater than 0");
+					int capacity = Math.max(1, m_maxEntries / STRIPES);
+					long windowMillis = TimeUnit.MINUTES.toMillis(m_windowMinutes);
+					stripes = new Stripe[STRIPES];
+					for (int i = 0; i < STRIPES; i++)
+						stripes[i] = new Stripe(capacity, windowMillis);
+					m_stripes = stripes;
+				}
+			}
+		}
+		return stripes;
+	}
+
+	public long getSuppressed()
+	{
+		return m_suppressed.sum();
+	}
+
+	private class Stripe
+	{
+		private final int m_capacity;
+		private final long m_windowMillis;
+		//Tables are at most half full so probes stay short
+		private long[] m_current;
+		private long[] m_previous;
+		private int m_currentSize;
+		private long m_rotateTime;
+
+		private Stripe(int capacity, long windowMillis)
+		{
+			m_capacity = capacity;
+			m_windowMillis = windowMillis;
+			int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+			m_current = new long[tableSize];
+			m_previous = new long[tableSize];
+			m_rotateTime = Long.MIN_VALUE;
+		}
+
+		private synchronized boolean isDuplicate(long hash, long now)
+		{
+			if (now >= m_rotateTime)
+			{
+				//Nothing in the current generation is recent enough to keep either
+				if (now >= m_rotateTime + m_windowMillis)
+				{
+					Arrays.fill(m_current, 0);
+					m_currentSize = 0;
+				}
+				rotate(now);
+			}
+
+			if (contains(m_current, hash) || contains(m_previous, hash))
+				return true;
+
+			if (m_currentSize >= m_capacity)
+			{
+				m_earlyRotations.increment();
+				rotate(now);
+			}
+
+			insert(m_current, hash);
+			m_currentSize++;
+			return false;
+		}
+
+		private synchronized void forget(long hash)
+		{
+			if (remove(m_current, hash))
+				m_currentSize--;
+			else
+				remove(m_previous, hash);
+		}
+
+		private void rotate(long now)
+		{
+			long[] recycled = m_previous;
+			Arrays.fill(recycled, 0);
+			m_previous = m_current;
+			m_current = recycled;
+			m_currentSize = 0;
+			m_rotateTime = now + m_windowMillis;
+		}
+
+		private boolean contains(long[] table, long hash)
+		{
+			int mask = table.length - 1;
+			for (int i = (int) hash & mask; ; i = (i + 1) & mask)
+			{
+				long entry = table[i];
+				if (entry == hash)
+					return true;
+				if (entry == 0)
+					return false;
+			}
+		}
+
+		private void insert(long[] table, long hash)
+		{
+			int mask = table.length - 1;
+			int i = (int) hash & mask;
+			while (table[i] != 0)
+				i = (i + 1) & mask;
+			table[i] = hash;
+		}
+
+		private boolean remove(long[] table, long hash)
+		{
+			int mask = table.length - 1;
+			int hole = (int) hash & mask;
+			while (table[hole] != hash)
+			{
+				if (table[hole] == 0)
+					return false;
+				hole = (hole + 1) & mask;
+			}
+
+			//Move later entries of the run back into the hole when the hole is
+			//between them and their home slot, so lookups don't stop at it
+			for (int i = (hole + 1) & mask; table[i] != 0; i = (i + 1) & mask)
+			{
+				int home = (int) table[i] & mask;
+				if (((i - home) & mask) >= ((i - hole) & mask))
+				{
+					table[hole] = table[i];
+					hole = i;
+				}
+			}
+			table[hole] = 0;
+			return true;
+		}
+	}
+}
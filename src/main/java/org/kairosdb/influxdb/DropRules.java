@@ -0,0 +1,127 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.kairosdb.metrics4j.MetricSourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ A set of regular expressions used to drop metrics or tags by name.
+ <p>
+ The expressions are compiled into a single NameMatcher.  The same names are
+ checked over and over so the decision for each name is also remembered and
+ the matcher is only run the first time a name is seen.
+ The decision cache is replaced along with the rules when setPatterns() is called
+ and is cleared if it grows past maxSize.
+ <p>
+ Hits, misses and the size of the cache are reported as
+ kairosdb.influx.drop_cache_* metrics tagged with the rule set name.
+ */
+public class DropRules
+{
+	private static final Logger logger = LoggerFactory.getLogger(DropRules.class);
+
+	private volatile int m_maxSize;
+	private final LongAdder m_hits = new LongAdder();
+	private final LongAdder m_misses = new LongAdder();
+	private volatile Rules m_rules = new Rules(ImmutableList.of());
+
+	public DropRules(String name, int maxSize)
+	{
+		checkNotNull(name, "name must not be null");
+		checkArgument(maxSize > 0, "maxSize must be greater than 0");
+		m_maxSize = maxSize;
+
+		ImmutableMap<String, String> tags = ImmutableMap.of("rules", name);
+		String className = InfluxStats.class.getName();
+		MetricSourceManager.addSource(className, "dropCacheHits", tags, "Drop decisions found in the cache", m_hits::sum);
+		MetricSourceManager.addSource(className, "dropCacheMisses", tags, "Drop decisions that ran the regular expressions", m_misses::sum);
+		MetricSourceManager.addSource(className, "dropCacheSize", tags, "Number of cached drop decisions", this::size);
+	}
+
+	/**
+	 Replaces the current rules, clearing any cached decisions.
+	 */
+	public void setPatterns(List<String> patterns)
+	{
+		ImmutableList.Builder<Pattern> compiled = ImmutableList.builder();
+		for (String pattern : patterns)
+		{
+			logger.info("Pattern: {}", pattern);
+			compiled.add(Pattern.compile(pattern));
+		}
+
+		m_rules = new Rules(compiled.build());
+	}
+
+	public void setMaxSize(int maxSize)
+	{
+		checkArgument(maxSize > 0, "maxSize must be greater than 0");
+		m_maxSize = maxSize;
+	}
+
+	public boolean isEmpty()
+	{
+		return m_rules.matcher.isEmpty();
+	}
+
+	/**
+	 @return true if the name matches any of the patterns
+	 */
+	public boolean drop(String name)
+	{
+		Rules rules = m_rules;
+		if (rules.matcher.isEmpty())
+			return false;
+
+		Boolean decision = rules.decisions.get(name);
+		if (decision != null)
+		{
+			m_hits.increment();
+			return decision;
+		}
+
+		m_misses.increment();
+		boolean drop = rules.matches(name);
+
+		if (rules.decisions.size() >= m_maxSize)
+			rules.decisions.clear();
+		rules.decisions.put(name, drop);
+
+		return drop;
+	}
+
+	public int size()
+	{
+		return m_rules.decisions.size();
+	}
+
+	/**
+	 Patterns and the decisions made with them, replaced as a unit so a decision
+	 from old rules is never cached with new ones.
+	 */
+	private static class Rules
+	{
+		private final NameMatcher matcher;
+		private final ConcurrentHashMap<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+		private Rules(ImmutableList<Pattern> patterns)
+		{
+			this.matcher = NameMatcher.compile(patterns);
+		}
+
+		private boolean matches(String name)
+		{
+			return matcher.matches(name);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package org.kairosdb.influxdb;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ HyperLogLog sketch that estimates the number of distinct 64 bit hashes
+ offered to it using 2^precision registers.  The standard error of the
+ estimate is about 1.04 / sqrt(2^precision).
+ <p>
+ Thread safe and lock free.  The register sum used by the estimate is kept up
+ to date as registers change so estimate() does not have to scan them.
+ */
+public class HyperLogLog
+{
+	private final int m_precision;
+	//Ranks are capped so the scaled register sum below fits in a long, a higher
+	//rank has less than a 2^-46 chance per hash
+	private final int m_maxRank;
+	private final double m_scale;
+	private final int m_registerCount;
+	private final AtomicIntegerArray m_registers;
+	private final LongAdder m_zeros = new LongAdder();
+	//Sum of (1 - 2^-register) over all registers scaled by 2^maxRank, exact as it only holds integers
+	private final LongAdder m_scaledSum = new LongAdder();
+	private final double m_alphaMM;
+
+	public HyperLogLog(int precision)
+	{
+		checkArgument(precision >= 4 && precision <= 16, "precision must be between 4 and 16");
+		m_precision = precision;
+		m_registerCount = 1 << precision;
+		m_maxRank = 63 - precision;
+		m_scale = 1L << m_maxRank;
+		m_registers = new AtomicIntegerArray(m_registerCount);
+		m_zeros.add(m_registerCount);
+
+		double alpha;
+		if (m_registerCount == 16)
+			alpha = 0.673;
+		else if (m_registerCount == 32)
+			alpha = 0.697;
+		else if (m_registerCount == 64)
+			alpha = 0.709;
+		else
+			alpha = 0.7213 / (1 + 1.079 / m_registerCount);
+		m_alphaMM = alpha * m_registerCount * m_registerCount;
+	}
+
+	private int index(long hash)
+	{
+		return (int) (hash >>> (64 - m_precision));
+	}
+
+	private int rank(long hash)
+	{
+		//The guard bit limits the rank when the remaining bits are all 0
+		int rank = Long.numberOfLeadingZeros((hash << m_precision) | (1L << (m_precision - 1))) + 1;
+		return Math.min(rank, m_maxRank);
+	}
+
+	private long scaled(int register)
+	{
+		return (1L << m_maxRank) - (1L << (m_maxRank - register));
+	}
+
+	/**
+	 Adds the hash to the sketch.
+	 @return true if the sketch changed, which means the hash was never offered
+	 before.  False does not mean it was, only that the sketch can't tell
+	 */
+	public boolean offer(long hash)
+	{
+		int index = index(hash);
+		int rank = rank(hash);
+		int current = m_registers.get(index);
+		while (rank > current)
+		{
+			if (m_registers.compareAndSet(index, current, rank))
+			{
+				if (current == 0)
+					m_zeros.decrement();
+				m_scaledSum.add(scaled(rank) - scaled(current));
+				return true;
+			}
+			current = m_registers.get(index);
+		}
+		return false;
+	}
+
+	/**
+	 Estimated number of distinct hashes offered
+	 */
+	public long estimate()
+	{
+		double registerSum = m_registerCount - m_scaledSum.sum() / m_scale;
+		double estimate = m_alphaMM / registerSum;
+
+		//Linear counting is more accurate for small counts
+		long zeros = m_zeros.sum();
+		if (estimate <= 2.5 * m_registerCount && zeros > 0)
+			estimate = m_registerCount * Math.log((double) m_registerCount / zeros);
+
+		return Math.round(estimate);
+	}
+}
@@ -2,13 +2,49 @@ package org.kairosdb.influxdb;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Singleton;
+import org.kairosdb.core.KairosRootConfig;
 
 public class InfluxModule extends AbstractModule
 {
+    private final boolean m_useRingBuffer;
+    private final boolean m_useSpool;
+
+    public InfluxModule()
+    {
+        m_useRingBuffer = false;
+        m_useSpool = false;
+    }
+
+    public InfluxModule(KairosRootConfig config)
+    {
+        m_useRingBuffer = Boolean.parseBoolean(config.getProperty(RingBufferMetricWriter.ENABLED_PROP));
+        m_useSpool = Boolean.parseBoolean(config.getProperty(SpoolMetricWriter.ENABLED_PROP));
+    }
+
     protected void configure()
     {
         bind(InfluxResource.class).in(Singleton.class);
         bind(InfluxParser.class).in(Singleton.class);
-        bind(MetricWriter.class).in(Singleton.class);
+        if (m_useSpool)
+        {
+            //Takes the place of the ring buffer, the replay thread already keeps posting off the request threads
+            bind(SpoolMetricWriter.class).in(Singleton.class);
+            bind(MetricWriter.class).to(SpoolMetricWriter.class);
+        }
+        else if (m_useRingBuffer)
+        {
+            //Bound under its own type as well so Kairos starts it as a service
+            bind(RingBufferMetricWriter.class).in(Singleton.class);
+            bind(MetricWriter.class).to(RingBufferMetricWriter.class);
+        }
+        else
+            bind(MetricWriter.class).in(Singleton.class);
+        bind(AsyncWriteQueue.class).in(Singleton.class);
+        bind(SeriesLimiter.class).in(Singleton.class);
+        bind(Aggregator.class).in(Singleton.class);
+        bind(Deduplicator.class).in(Singleton.class);
+        bind(WriteRateLimiter.class).in(Singleton.class);
+        bind(UdpListener.class).in(Singleton.class);
+        bind(TcpListener.class).in(Singleton.class);
     }
 }
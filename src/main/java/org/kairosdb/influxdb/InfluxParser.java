@@ -1,7 +1,10 @@
 package org.kairosdb.influxdb;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableList.Builder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
@@ -14,15 +17,15 @@ import org.kairosdb.metrics4j.MetricSourceManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.text.CharacterIterator;
-import java.text.StringCharacterIterator;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.kairosdb.influxdb.InfluxResource.BUCKET_TAG_PROP;
@@ -41,12 +44,34 @@ public class InfluxParser
 
 	private static final String DROP_METRICS_PROP = "kairosdb.influx.dropMetrics";
 	private static final String DROP_TAGS_PROP = "kairosdb.influx.dropTags";
+	private static final String DROP_MEASUREMENTS_PROP = "kairosdb.influx.dropMeasurements";
+	private static final String KEEP_FIELDS_PROP = "kairosdb.influx.keepFields";
+	private static final String SERIES_CACHE_SIZE_PROP = "kairosdb.influx.series_cache_size";
+	private static final String METRIC_NAME_CACHE_SIZE_PROP = "kairosdb.influx.metric_name_cache_size";
+	private static final String DROP_CACHE_SIZE_PROP = "kairosdb.influx.drop_cache_size";
+
+	private static final int DEFAULT_SERIES_CACHE_SIZE = 100_000;
+	private static final int DEFAULT_METRIC_NAME_CACHE_SIZE = 100_000;
+	private static final int DEFAULT_DROP_CACHE_SIZE = 100_000;
 
 	//static final String METRICS_DROPPED_METRIC = "kairosdb.influx.metrics-dropped.count";
 	//static final String TAGS_DROPPED_METRIC = "kairosdb.influx.tags-dropped.count";
 
-	private final Set<Pattern> m_dropMetricsRegex = new HashSet<>();
-	private final Set<Pattern> m_dropTagsRegex = new HashSet<>();
+	private final DropRules m_dropMetrics = new DropRules("metrics", DEFAULT_DROP_CACHE_SIZE);
+	private final DropRules m_dropTags = new DropRules("tags", DEFAULT_DROP_CACHE_SIZE);
+	private final DropRules m_dropMeasurements = new DropRules("measurements", DEFAULT_DROP_CACHE_SIZE);
+	//Measurement to the metric names (measurement.field) kept for it, measurements not in the map keep all fields
+	private volatile ImmutableMap<String, ImmutableSet<String>> m_keepFields = ImmutableMap.of();
+
+	//The parser is a singleton shared by the request threads so each thread gets its own reusable tokenizers
+	private final ThreadLocal<ParseContext> m_context = ThreadLocal.withInitial(ParseContext::new);
+
+	//Agents send the same series over and over so the parsed tags are cached by the raw bytes of the series
+	private volatile Cache<SeriesKey, Series> m_seriesCache = createSeriesCache(DEFAULT_SERIES_CACHE_SIZE);
+	//Metric names are the same for every point of a series so they are built once
+	private volatile MetricNameCache m_nameCache = new MetricNameCache(DEFAULT_METRIC_NAME_CACHE_SIZE);
+
+	private volatile SeriesLimiter m_seriesLimiter;
 
 	@Inject(optional = true)
 	@Named(INCLUDE_BUCKET_PROP)
@@ -60,109 +85,282 @@ public class InfluxParser
 	@InjectProperty(prop = DROP_METRICS_PROP, optional = true)
 	public void setupDroppedMetrics(@Named(DROP_METRICS_PROP) List<String> droppedMetrics)
 	{
-		createRegexPatterns(droppedMetrics, m_dropMetricsRegex);
+		m_dropMetrics.setPatterns(droppedMetrics);
 	}
 
 	@InjectProperty(prop = DROP_TAGS_PROP, optional = true)
 	public void setupDroppedTags(@Named(DROP_TAGS_PROP) List<String> droppedTags)
 	{
-		createRegexPatterns(droppedTags, m_dropTagsRegex);
+		m_dropTags.setPatterns(droppedTags);
+		m_seriesCache.invalidateAll();
 	}
 
+	/**
+	 Lines for measurements matching any of these expressions are dropped as soon
+	 as the measurement name is read, the rest of the line is not parsed.
+	 */
+	@InjectProperty(prop = DROP_MEASUREMENTS_PROP, optional = true)
+	public void setupDroppedMeasurements(@Named(DROP_MEASUREMENTS_PROP) List<String> droppedMeasurements)
+	{
+		m_dropMeasurements.setPatterns(droppedMeasurements);
+		m_seriesCache.invalidateAll();
+	}
 
+	/**
+	 Each entry is a measurement and the fields to keep for it separated by a
+	 colon, ie "cpu:usage_user,usage_system".  Only the listed fields are kept for
+	 the measurement and the values of the other fields are never parsed.
+	 Measurements without an entry keep all of their fields.
+	 */
+	@InjectProperty(prop = KEEP_FIELDS_PROP, optional = true)
+	public void setupKeptFields(@Named(KEEP_FIELDS_PROP) List<String> keptFields)
+	{
+		Map<String, ImmutableSet.Builder<String>> builders = new HashMap<>();
+		for (String entry : keptFields)
+		{
+			//Measurement names may contain colons, field lists are split on the last one
+			int colon = entry.lastIndexOf(':');
+			if (colon < 1 || colon == entry.length() - 1)
+				throw new IllegalArgumentException("Invalid " + KEEP_FIELDS_PROP + " entry '" + entry + "', expected measurement:field1,field2");
+
+			String measurement = entry.substring(0, colon);
+			ImmutableSet.Builder<String> names = builders.computeIfAbsent(measurement, m -> ImmutableSet.builder());
+			for (String field : entry.substring(colon + 1).split(","))
+			{
+				if (!field.trim().isEmpty())
+					names.add(measurement + "." + field.trim());
+			}
+		}
 
-	public ImmutableList<Metric> parseLine(String line, TimeUnit precision, String bucket)
-			throws ParseException
+		ImmutableMap.Builder<String, ImmutableSet<String>> keepFields = ImmutableMap.builder();
+		builders.forEach((measurement, names) -> keepFields.put(measurement, names.build()));
+		m_keepFields = keepFields.build();
+		m_seriesCache.invalidateAll();
+	}
+
+	@Inject
+	public void setSeriesLimiter(SeriesLimiter seriesLimiter)
 	{
-		int metricsDropped = 0;
-		int tagsDropped = 0;
+		m_seriesLimiter = seriesLimiter;
+		//Cached series may not have a hash for the limiter
+		m_seriesCache.invalidateAll();
+	}
 
-		Builder<Metric> metrics = ImmutableList.builder();
+	@Inject(optional = true)
+	public void setDropCacheSize(@Named(DROP_CACHE_SIZE_PROP) int size)
+	{
+		m_dropMetrics.setMaxSize(size);
+		m_dropTags.setMaxSize(size);
+		m_dropMeasurements.setMaxSize(size);
+	}
 
-		Tokenizer tokenizer = new Tokenizer(line);
-		String metricName = tokenizer.getString();
-		Utils.checkParsing(!metricName.isEmpty(), "Invalid syntax. Measurement name was not specified.");
-		//check errors
+	@Inject(optional = true)
+	public void setMetricNameCacheSize(@Named(METRIC_NAME_CACHE_SIZE_PROP) int size)
+	{
+		m_nameCache = new MetricNameCache(size);
+	}
 
+	/**
+	 Name cache shared with InfluxResource for adding the prefix to metric names
+	 */
+	public MetricNameCache getMetricNameCache()
+	{
+		return m_nameCache;
+	}
 
-		ImmutableSortedMap.Builder<String, String> tagBuilder = ImmutableSortedMap.naturalOrder();
-		if (tokenizer.getChar() == ',')
-		{
-			//parse out some tags
+	@Inject(optional = true)
+	public void setSeriesCacheSize(@Named(SERIES_CACHE_SIZE_PROP) int size)
+	{
+		m_seriesCache = createSeriesCache(size);
+	}
 
-			while (!Character.isWhitespace(tokenizer.getChar()))
-			{
-				tokenizer.next();
-				Utils.checkParsing(tokenizer.getChar() == '=', "Invalid syntax. Invalid tag set.");
+	private static Cache<SeriesKey, Series> createSeriesCache(int size)
+	{
+		return CacheBuilder.newBuilder().maximumSize(size).build();
+	}
 
-				String tagName = tokenizer.getString();
 
-				tokenizer.next();
-				Utils.checkParsing(
-						tokenizer.getChar() == ',' || Character.isWhitespace(tokenizer.getChar()),
-						"Invalid syntax. Invalid tag set.");
 
-				String tagValue = tokenizer.getString();
+	/**
+	 Parses the line and returns the metrics sorted by name.  This collects the
+	 points passed to parseLine(String, TimeUnit, String, PointSink), the sink
+	 version should be used when the points are just going to be written.
+	 */
+	public ImmutableList<Metric> parseLine(String line, TimeUnit precision, String bucket)
+			throws ParseException
+	{
+		MetricCollector collector = new MetricCollector();
+		parseLine(line, precision, bucket, collector);
+		return collector.getMetrics();
+	}
+
+	public ImmutableList<Metric> parseLine(byte[] line, int offset, int length, TimeUnit precision, String bucket)
+			throws ParseException
+	{
+		MetricCollector collector = new MetricCollector();
+		parseLine(line, offset, length, precision, bucket, collector);
+		return collector.getMetrics();
+	}
 
-				Utils.checkParsing(!tagName.isEmpty() && !tagValue.isEmpty(), "Invalid syntax. Invalid tag set.");
+	public ImmutableList<Metric> parseLine(ByteBuffer line, TimeUnit precision, String bucket)
+			throws ParseException
+	{
+		MetricCollector collector = new MetricCollector();
+		parseLine(line, precision, bucket, collector);
+		return collector.getMetrics();
+	}
 
-				if (!drop(tagName, m_dropTagsRegex))
-				{
-					tagBuilder.put(tagName, tagValue);
-				}
-				else
-				{
-					tagsDropped++;
-					if (logger.isDebugEnabled())
-					{
-						logger.debug("Tag {} was dropped because it matched the drop tag regex for metric {}", tagName, metricName);
-					}
-				}
+	/**
+	 Parses the line and passes each point to the sink.  Points are only passed
+	 to the sink once the whole line has parsed successfully so a line that fails
+	 to parse writes nothing.
+	 @return number of points passed to the sink
+	 */
+	public int parseLine(String line, TimeUnit precision, String bucket, PointSink sink)
+			throws ParseException
+	{
+		ParseContext context = m_context.get();
+		context.tokenizer.reset(line);
+		return parse(context, context.tokenizer, precision, bucket, sink);
+	}
 
-			}
+	/**
+	 Parses a line of UTF-8 encoded bytes without first decoding it to a String.
+	 Strings are only created for the names and values that are kept.  Results are
+	 the same as parseLine(String, TimeUnit, String, PointSink).
+	 */
+	public int parseLine(byte[] line, int offset, int length, TimeUnit precision, String bucket, PointSink sink)
+			throws ParseException
+	{
+		ParseContext context = m_context.get();
+		context.byteTokenizer.reset(line, offset, length);
+		return parse(context, context.byteTokenizer, precision, bucket, sink);
+	}
+
+	/**
+	 Parses the remaining bytes of the buffer as a UTF-8 encoded line.  The position
+	 of the buffer is not changed.
+	 */
+	public int parseLine(ByteBuffer line, TimeUnit precision, String bucket, PointSink sink)
+			throws ParseException
+	{
+		ParseContext context = m_context.get();
+		context.byteTokenizer.reset(line);
+		return parse(context, context.byteTokenizer, precision, bucket, sink);
+	}
+
+	private int parse(ParseContext context, LineTokenizer tokenizer, TimeUnit precision, String bucket, PointSink sink)
+			throws ParseException
+	{
+		int metricsDropped = 0;
+
+		Series series = null;
+		SeriesKey seriesKey = context.seriesKey;
+		String keyBucket = m_useBucket && m_bucketTag != null ? bucket : null;
+		boolean cacheable = tokenizer.getSeriesKey(seriesKey, keyBucket);
+		if (cacheable)
+			series = m_seriesCache.getIfPresent(seriesKey);
+
+		if (series != null)
+		{
+			//Skip over the tags, the cached series was parsed from identical bytes
+			tokenizer.setPosition(series.tokenPosition);
+		}
+		else
+		{
+			series = parseSeries(tokenizer, bucket);
+			if (cacheable)
+				m_seriesCache.put(seriesKey.copy(), series);
 		}
 
-		if (m_useBucket && m_bucketTag != null)
+		if (series.dropped)
 		{
-			tagBuilder.put(m_bucketTag, bucket);
+			stats.measurementsDropped().put(1);
+			if (logger.isDebugEnabled())
+			{
+				logger.debug("Line was dropped because measurement {} matched the drop measurement regex", series.measurement);
+			}
+			return 0;
 		}
 
-		ImmutableSortedMap<String, String> tags = tagBuilder.build();
+		SeriesLimiter seriesLimiter = m_seriesLimiter;
+		if (seriesLimiter != null && seriesLimiter.isEnabled() && !seriesLimiter.allow(series.measurement, bucket, series.seriesHash))
+		{
+			if (logger.isDebugEnabled())
+			{
+				logger.debug("Line was dropped because measurement {} is over its series limit", series.measurement);
+			}
+			return 0;
+		}
 
-		ImmutableSortedMap.Builder<String, String> fieldBuilder = ImmutableSortedMap.naturalOrder();
+		String metricName = series.measurement;
+		ImmutableSortedMap<String, String> tags = series.tags;
+		int tagsDropped = series.tagsDropped;
+		ImmutableSet<String> keepFields = series.keepFields;
 
+		//Field values are parsed once the timestamp is known, for now just remember where they are.
+		//Fields that are dropped are skipped here so their values are never parsed
+		int nameCacheHits = 0;
+		int nameCacheMisses = 0;
+		context.fieldCount = 0;
 		do
 		{
 			tokenizer.next();
-			Utils.checkParsing(tokenizer.getChar() == '=', "Invalid syntax. Invalid field set.");
+			Utils.checkParsing(tokenizer.getChar() == '=', ParseException.Reason.INVALID_FIELD_SET, "Invalid syntax. Invalid field set.");
 
-			String fieldName = tokenizer.getString();
+			Utils.checkParsing(tokenizer.getLength() != 0, ParseException.Reason.INVALID_FIELD_SET, "Invalid syntax. Invalid field set.");
+			String name = m_nameCache.getMetricName(metricName, context.probe, tokenizer);
+			if (context.probe.isHit())
+				nameCacheHits++;
+			else
+				nameCacheMisses++;
 
 			tokenizer.next();
 			Utils.checkParsing(
 					tokenizer.getChar() == ',' || Character.isWhitespace(tokenizer.getChar()) || tokenizer.getChar() == CharacterIterator.DONE,
-					"Invalid syntax. Invalid field set.");
+					ParseException.Reason.INVALID_FIELD_SET, "Invalid syntax. Invalid field set.");
 
-			String fieldValue = tokenizer.getString();
+			Utils.checkParsing(tokenizer.getLength() != 0, ParseException.Reason.INVALID_FIELD_SET, "Invalid syntax. Invalid field set.");
 
-			Utils.checkParsing(!fieldName.isEmpty() && !fieldValue.isEmpty(), "Invalid syntax. Invalid field set.");
-			fieldBuilder.put(fieldName, fieldValue);
+			if (keepFields != null && !keepFields.contains(name))
+			{
+				metricsDropped++;
+				if (logger.isDebugEnabled())
+				{
+					logger.debug("Metric {} was dropped because it is not in the kept fields", name);
+				}
+			}
+			else if (m_dropMetrics.drop(name))
+			{
+				metricsDropped++;
+				if (logger.isDebugEnabled())
+				{
+					logger.debug("Metric was dropped because it matched the drop metric regex {}", name);
+				}
+			}
+			else
+				context.addField(name, tokenizer.getPosition());
 
 		} while (!Character.isWhitespace(tokenizer.getChar()) && tokenizer.getChar() != CharacterIterator.DONE);
 
-		ImmutableSortedMap<String, String> fields = fieldBuilder.build();
-
 		// Timestamp
 		long timestamp = System.currentTimeMillis();
 
 		if (tokenizer.getChar() != CharacterIterator.DONE)
 		{
 			tokenizer.next();
-			String timestampStr = tokenizer.getString();
 
-			if (!timestampStr.isEmpty())
+			if (tokenizer.getLength() != 0)
 			{
-				long parsedTime = Long.parseLong(timestampStr);
+				long parsedTime;
+				try
+				{
+					parsedTime = NumberParser.parseLong(tokenizer, 0);
+				}
+				catch (NumberFormatException nfe)
+				{
+					throw new ParseException(ParseException.Reason.INVALID_TIMESTAMP, "Unable to parse timestamp: " + tokenizer.getString());
+				}
 				switch (precision)
 				{
 					case NANOSECONDS:
@@ -182,21 +380,16 @@ public class InfluxParser
 		}
 
 
-		for (Map.Entry<String, String> fieldEntry : fields.entrySet())
+		for (int i = 0; i < context.fieldCount; i++)
 		{
-			String name = metricName + "." + fieldEntry.getKey();
-			if (!drop(name, m_dropMetricsRegex))
-			{
-				metrics.add(new Metric(name, tags, parseValue(timestamp, fieldEntry.getValue())));
-			}
-			else
-			{
-				metricsDropped++;
-				if (logger.isDebugEnabled())
-				{
-					logger.debug("Metric was dropped because it matched the drop metric regex {}", metricName);
-				}
-			}
+			tokenizer.setPosition(context.valuePositions[i]);
+			context.dataPoints[i] = parseValue(timestamp, tokenizer);
+		}
+
+		//Only lines that write points need tags, one whose fields are all dropped is not an error
+		if (context.fieldCount > 0)
+		{
+			Utils.checkParsing(!tags.isEmpty(), ParseException.Reason.MISSING_TAGS, "Invalid syntax. At least one tag is required.");
 		}
 
 		if (metricsDropped > 0)
@@ -207,56 +400,225 @@ public class InfluxParser
 		{
 			stats.tagsDropped().put(tagsDropped);
 		}
+		if (nameCacheHits > 0)
+		{
+			stats.metricNameCache("hit").put(nameCacheHits);
+		}
+		if (nameCacheMisses > 0)
+		{
+			stats.metricNameCache("miss").put(nameCacheMisses);
+		}
 
-		return metrics.build();
+		return context.emit(tags, sink);
 	}
 
 
-	private DataPoint parseValue(long timestamp, String valueString) throws ParseException
+	/**
+	 Parses the measurement and tag set leaving the tokenizer on the whitespace
+	 before the field set
+	 */
+	private Series parseSeries(LineTokenizer tokenizer, String bucket) throws ParseException
+	{
+		int tagsDropped = 0;
+
+		String metricName = tokenizer.getString();
+		Utils.checkParsing(!metricName.isEmpty(), ParseException.Reason.MISSING_MEASUREMENT, "Invalid syntax. Measurement name was not specified.");
+		//check errors
+
+		if (m_dropMeasurements.drop(metricName))
+			return new Series(metricName, null, null, 0, tokenizer.getPosition(), true, 0);
+
+
+		ImmutableSortedMap.Builder<String, String> tagBuilder = ImmutableSortedMap.naturalOrder();
+		if (tokenizer.getChar() == ',')
+		{
+			//parse out some tags
+
+			while (!Character.isWhitespace(tokenizer.getChar()))
+			{
+				tokenizer.next();
+				Utils.checkParsing(tokenizer.getChar() == '=', ParseException.Reason.INVALID_TAG_SET, "Invalid syntax. Invalid tag set.");
+
+				String tagName = tokenizer.getString();
+
+				tokenizer.next();
+				Utils.checkParsing(
+						tokenizer.getChar() == ',' || Character.isWhitespace(tokenizer.getChar()),
+						ParseException.Reason.INVALID_TAG_SET, "Invalid syntax. Invalid tag set.");
+
+				String tagValue = tokenizer.getString();
+
+				Utils.checkParsing(!tagName.isEmpty() && !tagValue.isEmpty(), ParseException.Reason.INVALID_TAG_SET, "Invalid syntax. Invalid tag set.");
+
+				if (!m_dropTags.drop(tagName))
+				{
+					tagBuilder.put(tagName, tagValue);
+				}
+				else
+				{
+					tagsDropped++;
+					if (logger.isDebugEnabled())
+					{
+						logger.debug("Tag {} was dropped because it matched the drop tag regex for metric {}", tagName, metricName);
+					}
+				}
+
+			}
+		}
+
+		if (m_useBucket && m_bucketTag != null)
+		{
+			tagBuilder.put(m_bucketTag, bucket);
+		}
+
+		ImmutableSortedMap<String, String> tags = tagBuilder.build();
+
+		SeriesLimiter seriesLimiter = m_seriesLimiter;
+		long seriesHash = seriesLimiter != null && seriesLimiter.isEnabled() ? SeriesLimiter.hash(metricName, tags) : 0;
+		return new Series(metricName, tags, m_keepFields.get(metricName), tagsDropped, tokenizer.getPosition(), false, seriesHash);
+	}
+
+	/**
+	 Parses the current token as a field value.  Numbers and booleans are read
+	 straight from the tokenizer, only string values create a String.
+	 */
+	private DataPoint parseValue(long timestamp, LineTokenizer tokenizer) throws ParseException
 	{
+		int length = tokenizer.getLength();
+		char first = length == 0 ? 0 : tokenizer.charAt(0);
+		char last = length == 0 ? 0 : tokenizer.charAt(length - 1);
 		try {
-			if (valueString.endsWith("i") || (valueString.endsWith("u"))) {
-				String value = valueString.substring(0, valueString.length() - 1);
-				return new LongDataPoint(timestamp, Long.parseLong(value));
+			if (last == 'i' || last == 'u') {
+				return new LongDataPoint(timestamp, NumberParser.parseLong(tokenizer, 1));
 			}
-			else if (valueString.startsWith("\"") && valueString.endsWith("\"")) {
+			else if (first == '"' && last == '"') {
+				String valueString = tokenizer.getString();
 				return new StringDataPoint(timestamp, valueString.substring(1, valueString.length() - 1));
 			}
-			else if (valueString.equalsIgnoreCase("t") || valueString.equalsIgnoreCase("true")) {
+			else if (isBoolean(tokenizer, length, "true")) {
 				return new LongDataPoint(timestamp, 1);
 			}
-			else if (valueString.equalsIgnoreCase("f") || valueString.equalsIgnoreCase("false")) {
+			else if (isBoolean(tokenizer, length, "false")) {
 				return new LongDataPoint(timestamp, 0);
 			}
 			else {
-				return new DoubleDataPoint(timestamp, Double.parseDouble(valueString));
+				return new DoubleDataPoint(timestamp, NumberParser.parseDouble(tokenizer));
 			}
 		}
 		catch (NumberFormatException nfe) {
-			throw new ParseException("Unable to parse field value: "+valueString);
+			throw new ParseException(ParseException.Reason.INVALID_FIELD_VALUE, "Unable to parse field value: "+tokenizer.getString());
+		}
+	}
+
+	/**
+	 True if the token is the first letter or all of value ignoring case
+	 */
+	private static boolean isBoolean(LineTokenizer tokenizer, int length, String value)
+	{
+		if (length != 1 && length != value.length())
+			return false;
+
+		for (int i = 0; i < length; i++)
+		{
+			if (Character.toLowerCase(tokenizer.charAt(i)) != value.charAt(i))
+				return false;
 		}
+		return true;
 	}
 
 
 
-	private static void createRegexPatterns(List<String> patterns, Set<Pattern> patternSet)
+	/**
+	 Result of parsing the measurement and tag set of a line
+	 */
+	private static class Series
 	{
-		for (String pattern : patterns)
+		private final String measurement;
+		private final ImmutableSortedMap<String, String> tags;
+		private final ImmutableSet<String> keepFields;  //null if all fields are kept
+		private final int tagsDropped;
+		private final int tokenPosition;  //Position of the tokenizer after the tag set
+		private final boolean dropped;  //Measurement matched the drop rules, tags were not parsed
+		private final long seriesHash;  //Only set when series are limited
+
+		private Series(String measurement, ImmutableSortedMap<String, String> tags, ImmutableSet<String> keepFields,
+				int tagsDropped, int tokenPosition, boolean dropped, long seriesHash)
 		{
-			logger.info("Pattern: {}", pattern);
-			patternSet.add(Pattern.compile(pattern));
+			this.measurement = measurement;
+			this.tags = tags;
+			this.keepFields = keepFields;
+			this.tagsDropped = tagsDropped;
+			this.tokenPosition = tokenPosition;
+			this.dropped = dropped;
+			this.seriesHash = seriesHash;
 		}
 	}
 
-	private static boolean drop(String value, Set<Pattern> patternSet)
+	/**
+	 Per thread state reused for each line
+	 */
+	private static class ParseContext
 	{
-		for (Pattern pattern : patternSet)
+		private final Tokenizer tokenizer = new Tokenizer();
+		private final ByteTokenizer byteTokenizer = new ByteTokenizer();
+		private final SeriesKey seriesKey = new SeriesKey();
+		private final MetricNameCache.TokenProbe probe = new MetricNameCache.TokenProbe();
+
+		private int fieldCount;
+		private String[] fieldNames = new String[16];  //measurement.field
+		private int[] valuePositions = new int[16];
+		private DataPoint[] dataPoints = new DataPoint[16];
+
+		private void addField(String metricName, int valuePosition) throws ParseException
+		{
+			//Names come from the MetricNameCache so a duplicate is normally the same instance,
+			//equals() checks that first and still catches one built again after the cache was cleared
+			for (int i = 0; i < fieldCount; i++)
+			{
+				if (fieldNames[i].equals(metricName))
+					throw new ParseException(ParseException.Reason.INVALID_FIELD_SET, "Invalid syntax. Duplicate field " + metricName + ".");
+			}
+
+			if (fieldCount == fieldNames.length)
+			{
+				fieldNames = Arrays.copyOf(fieldNames, fieldCount * 2);
+				valuePositions = Arrays.copyOf(valuePositions, fieldCount * 2);
+				dataPoints = Arrays.copyOf(dataPoints, fieldCount * 2);
+			}
+
+			fieldNames[fieldCount] = metricName;
+			valuePositions[fieldCount] = valuePosition;
+			fieldCount++;
+		}
+
+		private int emit(ImmutableSortedMap<String, String> tags, PointSink sink)
 		{
-			if (pattern.matcher(value).matches())
+			for (int i = 0; i < fieldCount; i++)
 			{
-				return true;
+				sink.onPoint(fieldNames[i], tags, dataPoints[i]);
 			}
+
+			//Don't hold on to the last line's values
+			Arrays.fill(fieldNames, 0, fieldCount, null);
+			Arrays.fill(dataPoints, 0, fieldCount, null);
+			return fieldCount;
+		}
+	}
+
+	private static class MetricCollector implements PointSink
+	{
+		private final List<Metric> m_metrics = new ArrayList<>();
+
+		@Override
+		public void onPoint(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint)
+		{
+			m_metrics.add(new Metric(metricName, tags, dataPoint));
+		}
+
+		private ImmutableList<Metric> getMetrics()
+		{
+			m_metrics.sort(Comparator.comparing(Metric::getName));
+			return ImmutableList.copyOf(m_metrics);
 		}
-		return false;
 	}
 }
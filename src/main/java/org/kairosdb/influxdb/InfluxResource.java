@@ -1,11 +1,11 @@
 package org.kairosdb.influxdb;
 
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSortedMap;
-import com.google.common.io.CharStreams;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import org.apache.commons.lang3.StringUtils;
+import org.kairosdb.core.KairosDBService;
 import org.kairosdb.core.datapoints.LongDataPoint;
 import org.kairosdb.metrics4j.MetricSourceManager;
 import org.slf4j.Logger;
@@ -16,19 +16,27 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Strings.isNullOrEmpty;
 
 @Path("api/influx")
-public class InfluxResource
+public class InfluxResource implements KairosDBService
 {
 	private static final Logger logger = LoggerFactory.getLogger(InfluxResource.class);
 	private static final InfluxStats stats = MetricSourceManager.getSource(InfluxStats.class);
@@ -37,10 +45,28 @@ public class InfluxResource
 	public static final String SEPARATOR_PROP = "kairosdb.influx.metric_separator";
 	public static final String INCLUDE_BUCKET_PROP = "kairosdb.influx.include_bucket_or_db";
 	public static final String BUCKET_TAG_PROP = "kairosdb.influx.bucket_tag";
+	public static final String WRITE_BATCH_SIZE_PROP = "kairosdb.influx.write_batch_size";
+	public static final String PARALLEL_THREADS_PROP = "kairosdb.influx.parallel.threads";
+	public static final String PARALLEL_CHUNK_SIZE_PROP = "kairosdb.influx.parallel.chunk_size";
+	public static final String ERROR_LOG_LIMIT_PROP = "kairosdb.influx.error_log_limit";
+	public static final String MAX_RESPONSE_ERRORS_PROP = "kairosdb.influx.max_response_errors";
+	public static final String MAX_LINE_LENGTH_PROP = "kairosdb.influx.max_line_length";
 
 	public static final String INGESTION_COUNT_METRIC = "kairosdb.influx.ingest_count";
 	public static final String EXCEPTIONS_METRIC = "kairosdb.influx.exception_count";
 
+	//Endpoint tag of the request stats
+	private static final String V1_ENDPOINT = "v1";
+	private static final String V2_ENDPOINT = "v2";
+
+	//Longest part of a bad line that is logged or returned
+	static final int MAX_ERROR_LINE_LENGTH = 256;
+	private static final ParseException.Reason[] PARSE_ERROR_REASONS = ParseException.Reason.values();
+
+	//Not in the JAX-RS 1.1 Response.Status enum
+	private static final int TOO_MANY_REQUESTS = 429;
+	private static final int REQUEST_ENTITY_TOO_LARGE = 413;
+
 	private final InfluxParser m_parser;
 	private final MetricWriter m_writer;
 
@@ -60,7 +86,37 @@ public class InfluxResource
 	@Named(BUCKET_TAG_PROP)
 	private String m_bucketTag;
 
+	@Inject(optional = true)
+	@Named(WRITE_BATCH_SIZE_PROP)
+	private int m_writeBatchSize = 1000;
+
+	@Inject(optional = true)
+	@Named(PARALLEL_THREADS_PROP)
+	private int m_parallelThreads = 1;
+
+	@Inject(optional = true)
+	@Named(PARALLEL_CHUNK_SIZE_PROP)
+	private int m_parallelChunkSize = 4 * 1024 * 1024;
+
+	@Inject(optional = true)
+	@Named(MAX_RESPONSE_ERRORS_PROP)
+	private int m_maxResponseErrors = 10;
+
+	@Inject(optional = true)
+	@Named(MAX_LINE_LENGTH_PROP)
+	private int m_maxLineLength = LineReader.DEFAULT_MAX_LINE_LENGTH;
+
+	private SampledLogger m_errorLog = new SampledLogger(logger, 10, 1, TimeUnit.MINUTES);
+
+	//Created on the first request large enough to be parsed in parallel
+	private volatile ForkJoinPool m_parsePool;
+	private volatile boolean m_stopped;
+
 	private String m_hostName = "localhost";
+	private AsyncWriteQueue m_writeQueue;
+	private Aggregator m_aggregator;
+	private Deduplicator m_deduplicator;
+	private WriteRateLimiter m_rateLimiter;
 
 	@Inject
 	public void setHostName(@Named("HOSTNAME") String hostname)
@@ -68,6 +124,39 @@ public class InfluxResource
 		m_hostName = hostname;
 	}
 
+	/**
+	 Number of errors logged per minute, the rest are only counted
+	 */
+	@Inject(optional = true)
+	public void setErrorLogLimit(@Named(ERROR_LOG_LIMIT_PROP) int limit)
+	{
+		m_errorLog = new SampledLogger(logger, limit, 1, TimeUnit.MINUTES);
+	}
+
+	@Inject
+	public void setWriteQueue(AsyncWriteQueue writeQueue)
+	{
+		m_writeQueue = writeQueue;
+	}
+
+	@Inject
+	public void setAggregator(Aggregator aggregator)
+	{
+		m_aggregator = aggregator;
+	}
+
+	@Inject
+	public void setDeduplicator(Deduplicator deduplicator)
+	{
+		m_deduplicator = deduplicator;
+	}
+
+	@Inject
+	public void setRateLimiter(WriteRateLimiter rateLimiter)
+	{
+		m_rateLimiter = rateLimiter;
+	}
+
 	@Inject
 	public InfluxResource(MetricWriter writer, InfluxParser parser)
 	{
@@ -143,7 +232,7 @@ public class InfluxResource
 	{
 		logger.debug("precision: {} db: {} ", precision, database);
 
-		return writeInternal(database, httpheaders, precision, stream);
+		return writeInternal(V1_ENDPOINT, database, httpheaders, precision, stream);
 	}
 
 	@SuppressWarnings("UnstableApiUsage")
@@ -162,18 +251,29 @@ public class InfluxResource
 	{
 		logger.debug("precision: {} bucket: {}", precision, bucket);
 
-		return writeInternal(bucket, httpheaders, precision, stream);
+		return writeInternal(V2_ENDPOINT, bucket, httpheaders, precision, stream);
 	}
 
 
-	private Response writeInternal(String bucket, HttpHeaders httpheaders, String precision, InputStream stream) throws IOException
+	private Response writeInternal(String endpoint, String bucket, HttpHeaders httpheaders, String precision, InputStream stream) throws IOException
 	{
-		List<String> requestHeader = httpheaders.getRequestHeader("Content-Encoding");
-		if (requestHeader != null && requestHeader.contains("gzip"))
+		long start = System.nanoTime();
+		try
+		{
+			return writeRequest(endpoint, bucket, httpheaders, precision, stream);
+		}
+		finally
 		{
-			stream = new GZIPInputStream(stream);
+			stats.requestTime(endpoint).put(Duration.ofNanos(System.nanoTime() - start));
 		}
+	}
 
+	/**
+	 Time unit of an influx precision parameter, nanoseconds if it is not set or
+	 not known
+	 */
+	static TimeUnit parsePrecision(String precision)
+	{
 		TimeUnit timePrecision = TimeUnit.NANOSECONDS;
 		if (precision != null)
 		{
@@ -186,59 +286,90 @@ public class InfluxResource
 			else if ("us".equals(precision))
 				timePrecision = TimeUnit.MICROSECONDS;
 		}
+		return timePrecision;
+	}
 
-		String data = CharStreams.toString(new InputStreamReader(stream));
+	private Response writeRequest(String endpoint, String bucket, HttpHeaders httpheaders, String precision, InputStream stream) throws IOException
+	{
+		List<String> requestHeader = httpheaders.getRequestHeader("Content-Encoding");
+		boolean gzip = requestHeader != null && requestHeader.contains("gzip");
 
-		List<String> errors = new ArrayList<>();
-		int success = 0;
-		int failed = 0;
-		try
+		TimeUnit timePrecision = parsePrecision(precision);
+
+		long contentLength = getContentLength(httpheaders);
+		WriteRateLimiter rateLimiter = m_rateLimiter;
+		WriteRateLimiter.Limit limit = rateLimiter == null ? null : rateLimiter.getLimit(bucket);
+		//Bytes taken from the limit before the body is read
+		long charged = Math.max(contentLength, 0);
+		if (limit != null)
 		{
-			String[] lines = data.split("\n");
-			for (String line : lines)
+			long retryAfter = limit.tryAcquire(charged);
+			if (retryAfter != 0)
 			{
-				logger.debug(line);
-				try
-				{
-					if (!line.isEmpty())
-					{
-						ImmutableList<Metric> metrics = m_parser.parseLine(line, timePrecision, bucket);
-						for (Metric metric : metrics)
-						{
-							publishMetric(getPrefix(bucket), metric);
-							success++;
-						}
-					}
-				}
-				catch (ParseException e)
-				{
-					failed++;
-					String msg = "Failed to parse '" + line + "' because " + e.getMessage();
-					logger.error(msg);
-					errors.add(msg);
-					//publishInternalMetric(EXCEPTIONS_METRIC, 1, "exception", e.getMessage());
-					stats.exception(e.getMessage()).put(1);
-				}
+				stats.rateLimit(limit.getBucket(), "throttled").put(1);
+				//The bucket name is left out, it comes from the client and isn't JSON escaped
+				return tooManyRequests("write rate limit exceeded", (int) Math.min(retryAfter, Integer.MAX_VALUE));
 			}
 		}
+
+		AsyncWriteQueue writeQueue = m_writeQueue;
+		if (writeQueue != null && writeQueue.isEnabled())
+			return queueWrite(writeQueue, endpoint, bucket, gzip, timePrecision, contentLength, stream, limit);
+
+		if (limit != null)
+			stats.rateLimit(limit.getBucket(), "accepted").put(1);
+
+		MeteredInputStream body = new MeteredInputStream(stream);
+		MeteredInputStream decoded = body;
+		if (gzip)
+		{
+			decoded = new MeteredInputStream(new GZIPInputStream(body));
+		}
+
+		WriteResult result = new WriteResult(m_maxResponseErrors);
+		try
+		{
+			writeBody(bucket, timePrecision, decoded, result);
+		}
+		catch (LineTooLongException e)
+		{
+			//Parse errors by reason are recorded with the request stats below
+			stats.ingest("success").put(result.success);
+			if (result.failed != 0)
+				stats.ingest("failed").put(result.failed);
+			stats.exception(e.getClass().getSimpleName()).put(1);
+			String errorMessage = "{\"code\": \"invalid\", \"message\": \"line longer than " + e.getMaxLineLength() +
+					" bytes, the rest of the body was not read (" + result.success + " written)" +
+					(result.failed != 0 ? ": " + result.getErrorMessage() : "") + "\"}";
+			Response.ResponseBuilder response = Response.status(REQUEST_ENTITY_TOO_LARGE).entity(errorMessage);
+			response.header("Content-Type", "application/json;charset=utf-8");
+			return response.build();
+		}
 		catch (Throwable e)
 		{
-			logger.error("Error processing request: " + data, e);
-			stats.exception(e.getMessage()).put(1);
+			if (m_errorLog.shouldLog())
+				logger.error("Error processing request after " + result.success + " metrics written", e);
+			stats.exception(e.getClass().getSimpleName()).put(1);
 			//publishInternalMetric(EXCEPTIONS_METRIC, 1, "exception", e.getMessage());
 
-			String errorMessage = "{\"code\": \"internal error\", \"message\": \"" + StringUtils.join(errors, ";") + "\"}";
+			String errorMessage = "{\"code\": \"internal error\", \"message\": \"" + result.getErrorMessage() + "\"}";
 			Response.ResponseBuilder response = Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity(errorMessage);
 			response.header("Content-Type", "application/json;charset=utf-8");
 			return response.build();
 		}
+		finally
+		{
+			recordRequestStats(endpoint, body, decoded, result);
+			if (limit != null)
+				limit.take(result.success, Math.max(decoded.getBytes() - charged, 0));
+		}
 
 		//publishInternalMetric(INGESTION_COUNT_METRIC, success, failed);
-		stats.ingest("success").put(success);
-		if (failed != 0)
+		stats.ingest("success").put(result.success);
+		if (result.failed != 0)
 		{
-			stats.ingest("failed").put(failed);
-			String errorMessage = "{\"code\": \"invalid\", \"message\": \"partial write error (" + success + " written): " + StringUtils.join(errors, ";") + "\"}";
+			stats.ingest("failed").put(result.failed);
+			String errorMessage = "{\"code\": \"invalid\", \"message\": \"partial write error (" + result.success + " written): " + result.getErrorMessage() + "\"}";
 			Response.ResponseBuilder response = Response.status(Response.Status.BAD_REQUEST).entity(errorMessage);
 			response.header("Content-Type", "application/json;charset=utf-8");
 			return response.build();
@@ -248,13 +379,420 @@ public class InfluxResource
 		}
 	}
 
+	/**
+	 Reads the body and queues it to be written by the async workers.  The body is
+	 kept compressed while it waits in the queue.  Parse errors can't be returned
+	 to the client at this point so they are only logged and counted.
+	 */
+	private Response queueWrite(AsyncWriteQueue writeQueue, String endpoint, String bucket, boolean gzip, TimeUnit timePrecision,
+			long contentLength, InputStream stream, WriteRateLimiter.Limit limit) throws IOException
+	{
+		//Bytes taken from the limit when the request was let in, given back if it is turned away
+		long charged = Math.max(contentLength, 0);
+
+		//Turn the request away before reading a body that can't be queued
+		long maxBytes = writeQueue.getMaxBytes();
+		if (contentLength > maxBytes)
+			return rejectQueued(limit, charged, queuedBodyTooLarge(maxBytes));
+
+		if (!writeQueue.hasRoom(charged))
+		{
+			stats.asyncRejected().put(1);
+			return rejectQueued(limit, charged, tooManyRequests("write queue is full", writeQueue.getRetryAfterSeconds()));
+		}
+
+		//Without a Content-Length the body is read up to one byte past the limit
+		byte[] body = ByteStreams.toByteArray(ByteStreams.limit(stream, maxBytes + 1));
+		if (body.length > maxBytes)
+			return rejectQueued(limit, charged, queuedBodyTooLarge(maxBytes));
+
+		//Without a Content-Length the bytes weren't taken when the request was let in
+		if (limit != null && contentLength < 0)
+		{
+			limit.take(0, body.length);
+			charged = body.length;
+		}
+		long takenBytes = charged;
+
+		boolean queued = writeQueue.submit(body.length, () ->
+		{
+			//Errors are not returned to the client so none are kept
+			WriteResult result = new WriteResult(0);
+			MeteredInputStream bodyStream = new MeteredInputStream(new ByteArrayInputStream(body));
+			MeteredInputStream decoded = bodyStream;
+			try
+			{
+				if (gzip)
+					decoded = new MeteredInputStream(new GZIPInputStream(bodyStream));
+				writeBody(bucket, timePrecision, decoded, result);
+			}
+			catch (Throwable e)
+			{
+				if (m_errorLog.shouldLog())
+					logger.error("Error processing queued request after " + result.success + " metrics written", e);
+				stats.exception(e.getClass().getSimpleName()).put(1);
+			}
+			recordRequestStats(endpoint, bodyStream, decoded, result);
+			if (limit != null)
+				limit.take(result.success, Math.max(decoded.getBytes() - takenBytes, 0));
+
+			stats.ingest("success").put(result.success);
+			if (result.failed != 0)
+				stats.ingest("failed").put(result.failed);
+		});
+
+		if (!queued)
+		{
+			stats.asyncRejected().put(1);
+			return rejectQueued(limit, charged, tooManyRequests("write queue is full", writeQueue.getRetryAfterSeconds()));
+		}
+
+		if (limit != null)
+			stats.rateLimit(limit.getBucket(), "accepted").put(1);
+		return Response.status(Response.Status.NO_CONTENT).build();
+	}
+
+	/**
+	 Gives the bytes taken from the limit back when the queue turns a request
+	 away, so retries against a full queue don't use up the rate limit
+	 */
+	private static Response rejectQueued(WriteRateLimiter.Limit limit, long charged, Response response)
+	{
+		if (limit != null)
+			limit.giveBack(charged);
+		return response;
+	}
+
+	private static Response queuedBodyTooLarge(long maxBytes)
+	{
+		stats.asyncRejected().put(1);
+		String errorMessage = "{\"code\": \"invalid\", \"message\": \"request body larger than the " + maxBytes +
+				" bytes the write queue holds\"}";
+		Response.ResponseBuilder response = Response.status(REQUEST_ENTITY_TOO_LARGE).entity(errorMessage);
+		response.header("Content-Type", "application/json;charset=utf-8");
+		return response.build();
+	}
+
+	/**
+	 @return length of the request body, -1 if the client didn't send it
+	 */
+	private static long getContentLength(HttpHeaders httpheaders)
+	{
+		List<String> header = httpheaders.getRequestHeader(HttpHeaders.CONTENT_LENGTH);
+		if (header == null || header.isEmpty())
+			return -1;
+
+		try
+		{
+			return Long.parseLong(header.get(0).trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	private static Response tooManyRequests(String message, int retryAfterSeconds)
+	{
+		String errorMessage = "{\"code\": \"too many requests\", \"message\": \"" + message + "\"}";
+		Response.ResponseBuilder response = Response.status(TOO_MANY_REQUESTS).entity(errorMessage);
+		response.header("Content-Type", "application/json;charset=utf-8");
+		response.header("Retry-After", retryAfterSeconds);
+		return response.build();
+	}
+
+	/**
+	 Reports the size of the request and the time spent in each stage.
+	 @param body stream of the body as sent by the client
+	 @param decoded stream the lines were read from, the same as body if the
+	 request was not compressed
+	 */
+	private static void recordRequestStats(String endpoint, MeteredInputStream body, MeteredInputStream decoded, WriteResult result)
+	{
+		stats.requestBytes(endpoint, "uncompressed").put(decoded.getBytes());
+		if (decoded != body)
+		{
+			stats.requestBytes(endpoint, "compressed").put(body.getBytes());
+			stats.stageTime(endpoint, "decompress").put(Duration.ofNanos(decoded.getReadNanos()));
+		}
+		for (int i = 0; i < result.parseErrors.length; i++)
+		{
+			if (result.parseErrors[i] != 0)
+				stats.parseErrors(PARSE_ERROR_REASONS[i].getCode()).put(result.parseErrors[i]);
+		}
+		stats.requestLines(endpoint).put(result.lines);
+		stats.requestPoints(endpoint).put(result.success);
+		stats.stageTime(endpoint, "parse").put(Duration.ofNanos(result.parseNanos));
+		stats.stageTime(endpoint, "publish").put(Duration.ofNanos(result.publishNanos));
+	}
+
+	/**
+	 Writes the request body.  Bodies larger than one chunk are split into chunks
+	 at line boundaries that are parsed in parallel on the parse pool, smaller
+	 bodies are parsed on the calling thread.  Results of the chunks are merged in
+	 order so the counts and errors are the same as parsing the body in one go.
+	 */
+	private void writeBody(String bucket, TimeUnit timePrecision, InputStream stream, WriteResult result) throws IOException
+	{
+		if (m_parallelThreads <= 1 || m_stopped)
+		{
+			write(bucket, timePrecision, stream, result);
+			return;
+		}
+
+		ChunkReader chunks = new ChunkReader(stream, m_parallelChunkSize, m_maxLineLength);
+		ByteBuffer chunk = chunks.next();
+		if (chunk == null)
+			return;
+
+		if (chunks.isDone())
+		{
+			write(bucket, timePrecision, new ByteArrayInputStream(chunk.array(), 0, chunk.limit()), result);
+			return;
+		}
+
+		ForkJoinPool pool = getParsePool();
+		Deque<ChunkTask> pending = new ArrayDeque<>();
+		try
+		{
+			while (chunk != null)
+			{
+				ByteBuffer nextChunk = chunk;
+				pending.add(new ChunkTask(nextChunk, pool.submit(() -> writeChunk(bucket, timePrecision, nextChunk))));
+
+				//Don't read the body faster than it can be parsed
+				if (pending.size() >= m_parallelThreads * 2)
+					result.merge(pending.removeFirst().join(chunks));
+
+				chunk = chunks.next();
+			}
+		}
+		finally
+		{
+			while (!pending.isEmpty())
+				result.merge(pending.removeFirst().join(chunks));
+		}
+
+		if (result.error != null)
+		{
+			Throwables.throwIfInstanceOf(result.error, IOException.class);
+			Throwables.throwIfUnchecked(result.error);
+			throw new RuntimeException(result.error);
+		}
+	}
+
+	private WriteResult writeChunk(String bucket, TimeUnit timePrecision, ByteBuffer chunk)
+	{
+		WriteResult result = new WriteResult(m_maxResponseErrors);
+		try
+		{
+			write(bucket, timePrecision, new ByteArrayInputStream(chunk.array(), 0, chunk.limit()), result);
+		}
+		catch (Throwable e)
+		{
+			result.error = e;
+		}
+		return result;
+	}
+
+	/**
+	 Chunk being parsed on the parse pool
+	 */
+	private static class ChunkTask
+	{
+		private final ByteBuffer m_chunk;
+		private final ForkJoinTask<WriteResult> m_task;
+
+		private ChunkTask(ByteBuffer chunk, ForkJoinTask<WriteResult> task)
+		{
+			m_chunk = chunk;
+			m_task = task;
+		}
+
+		/**
+		 Waits for the chunk to be parsed and hands its buffer back to the reader
+		 */
+		private WriteResult join(ChunkReader chunks)
+		{
+			WriteResult result = m_task.join();
+			chunks.release(m_chunk);
+			return result;
+		}
+	}
+
+	private ForkJoinPool getParsePool()
+	{
+		ForkJoinPool pool = m_parsePool;
+		if (pool == null)
+		{
+			synchronized (this)
+			{
+				pool = m_parsePool;
+				checkState(!m_stopped, "Influx resource is stopped");
+				if (pool == null)
+				{
+					pool = new ForkJoinPool(m_parallelThreads, p ->
+					{
+						ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+						thread.setName("influx-parse-" + thread.getPoolIndex());
+						return thread;
+					}, null, false);
+					m_parsePool = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	@Override
+	public void start()
+	{
+	}
+
+	/**
+	 Shuts down the parse pool, requests after this are parsed on their own thread
+	 */
+	@Override
+	public void stop()
+	{
+		ForkJoinPool pool;
+		synchronized (this)
+		{
+			m_stopped = true;
+			pool = m_parsePool;
+			m_parsePool = null;
+		}
 
+		if (pool == null)
+			return;
+
+		pool.shutdown();
+		try
+		{
+			if (!pool.awaitTermination(30, TimeUnit.SECONDS))
+				logger.warn("Timed out waiting for influx chunks to be parsed");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
 
-	private void publishMetric(String metricPrefix, Metric metric)
+	/**
+	 Batch that writes points under the prefix of the bucket the same way a
+	 write request does, for listeners that receive lines outside of Jersey
+	 */
+	MetricBatch createBatch(String bucket)
 	{
-		StringBuilder metricNameBuilder = new StringBuilder();
-		metricNameBuilder.append(metricPrefix).append(metric.getName());
-		m_writer.write(metricNameBuilder.toString(), metric.getTags(), metric.getDataPoint());
+		Aggregator aggregator = m_aggregator != null && m_aggregator.isEnabled() ? m_aggregator : null;
+		Deduplicator deduplicator = m_deduplicator != null && m_deduplicator.isEnabled() ? m_deduplicator : null;
+		return new MetricBatch(m_writer, m_parser.getMetricNameCache(), getPrefix(bucket), m_writeBatchSize,
+				aggregator, deduplicator);
 	}
 
+	/**
+	 Parses the lines of the stream and writes the points.  Counts and parse errors
+	 are recorded in the result as it goes so they are available if this throws.
+	 */
+	private void write(String bucket, TimeUnit timePrecision, InputStream stream, WriteResult result) throws IOException
+	{
+		//Time spent reading the stream is not parse time
+		MeteredInputStream input = new MeteredInputStream(stream);
+		LineReader reader = new LineReader(input, LineReader.DEFAULT_BUFFER_SIZE, m_maxLineLength);
+		MetricBatch batch = createBatch(bucket);
+		long start = System.nanoTime();
+
+		try
+		{
+			while (reader.nextLine())
+			{
+				if (reader.isLineEmpty())
+					continue;
+
+				result.lines++;
+
+				if (logger.isDebugEnabled())
+					logger.debug(reader.getLine());
+
+				try
+				{
+					result.success += m_parser.parseLine(reader.getBuffer(),
+							reader.getLineStart(), reader.getLineLength(), timePrecision, bucket, batch);
+				}
+				catch (ParseException e)
+				{
+					result.failed++;
+					result.parseErrors[e.getReason().ordinal()]++;
+
+					//A client sending nothing but bad lines must not cost a message per line
+					boolean log = m_errorLog.shouldLog();
+					boolean respond = result.errors.size() < result.maxErrors;
+					if (log || respond)
+					{
+						String msg = "Failed to parse '" + StringUtils.abbreviate(reader.getLine(), MAX_ERROR_LINE_LENGTH) +
+								"' because " + StringUtils.abbreviate(e.getMessage(), MAX_ERROR_LINE_LENGTH);
+						if (log)
+							logger.error(msg);
+						if (respond)
+							result.errors.add(msg);
+					}
+				}
+			}
+		}
+		finally
+		{
+			//Points from lines already parsed are written even if the request fails
+			batch.flush();
+			result.publishNanos += batch.getPublishNanos();
+			result.parseNanos += System.nanoTime() - start - input.getReadNanos() - batch.getPublishNanos();
+		}
+	}
+
+	private static class WriteResult
+	{
+		private final int maxErrors;
+		private int success;
+		private int failed;
+		private int lines;
+		private long parseNanos;  //Summed over chunks, can be more than the request took
+		private long publishNanos;
+		private final long[] parseErrors = new long[PARSE_ERROR_REASONS.length];  //Indexed by reason ordinal
+		private final List<String> errors = new ArrayList<>();  //Messages of the first maxErrors failed lines
+		private Throwable error;  //Only set for chunks, the first error stops the merge of errors
+
+		private WriteResult(int maxErrors)
+		{
+			this.maxErrors = maxErrors;
+		}
+
+		private void merge(WriteResult chunk)
+		{
+			success += chunk.success;
+			failed += chunk.failed;
+			lines += chunk.lines;
+			parseNanos += chunk.parseNanos;
+			publishNanos += chunk.publishNanos;
+			for (int i = 0; i < parseErrors.length; i++)
+				parseErrors[i] += chunk.parseErrors[i];
+			if (error == null)
+			{
+				for (String chunkError : chunk.errors)
+				{
+					if (errors.size() >= maxErrors)
+						break;
+					errors.add(chunkError);
+				}
+			}
+			if (error == null && chunk.error != null)
+				error = chunk.error;
+		}
+
+		private String getErrorMessage()
+		{
+			String message = StringUtils.join(errors, ";");
+			if (failed > errors.size())
+				message += " (" + (failed - errors.size()) + " more lines failed)";
+			return message;
+		}
+	}
 }
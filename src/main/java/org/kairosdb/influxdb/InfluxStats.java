@@ -1,12 +1,26 @@
 package org.kairosdb.influxdb;
 
 import org.kairosdb.metrics4j.annotation.Key;
+import org.kairosdb.metrics4j.collectors.DurationCollector;
 import org.kairosdb.metrics4j.collectors.LongCollector;
 
 public interface InfluxStats
 {
 	LongCollector metricsDropped();
 	LongCollector tagsDropped();
+	LongCollector measurementsDropped();
 	LongCollector exception(@Key("exception")String exception);
+	LongCollector parseErrors(@Key("reason")String reason);
 	LongCollector ingest(@Key("status")String status);
+	LongCollector metricNameCache(@Key("result")String result);
+	LongCollector asyncRejected();
+	//Write requests to a rate limited bucket, result is accepted or throttled
+	LongCollector rateLimit(@Key("bucket")String bucket, @Key("result")String result);
+
+	//Reported once per request, endpoint is v1 or v2
+	LongCollector requestBytes(@Key("endpoint")String endpoint, @Key("encoding")String encoding);
+	LongCollector requestLines(@Key("endpoint")String endpoint);
+	LongCollector requestPoints(@Key("endpoint")String endpoint);
+	DurationCollector stageTime(@Key("endpoint")String endpoint, @Key("stage")String stage);
+	DurationCollector requestTime(@Key("endpoint")String endpoint);
 }
@@ -0,0 +1,155 @@
+package org.kairosdb.influxdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ Reads newline delimited input from a stream in fixed size chunks.
+ <p>
+ Only the bytes of the chunk currently being scanned are held in memory, so
+ the memory used is bounded by the buffer size (or the longest line if a
+ single line does not fit in the buffer) rather than by the size of the stream.
+ Lines longer than maxLineLength fail with a LineTooLongException instead of
+ growing the buffer further.
+ Newlines are found by scanning the raw bytes which is safe for UTF-8 input as
+ '\n' never appears inside a multi-byte sequence.
+ <p>
+ Usage is similar to the Tokenizer, call nextLine() and then read the line
+ with getLine() or directly from the buffer.
+ */
+public class LineReader
+{
+	static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	static final int DEFAULT_MAX_LINE_LENGTH = 1024 * 1024;
+
+	private final InputStream m_input;
+	private final int m_maxLineLength;
+	private byte[] m_buffer;
+	private int m_position = 0;  //Start of data not yet returned as a line
+	private int m_scanPosition = 0;  //Where to resume looking for a newline
+	private int m_limit = 0;  //End of valid data in the buffer
+	private boolean m_endOfStream = false;
+
+	private int m_lineStart;
+	private int m_lineEnd;
+
+	public LineReader(InputStream input)
+	{
+		this(input, DEFAULT_BUFFER_SIZE);
+	}
+
+	public LineReader(InputStream input, int bufferSize)
+	{
+		this(input, bufferSize, DEFAULT_MAX_LINE_LENGTH);
+	}
+
+	public LineReader(InputStream input, int bufferSize, int maxLineLength)
+	{
+		checkArgument(bufferSize > 0, "bufferSize must be greater than 0");
+		checkArgument(maxLineLength > 0, "maxLineLength must be greater than 0");
+		m_input = checkNotNull(input, "input must not be null");
+		m_maxLineLength = maxLineLength;
+		m_buffer = new byte[Math.min(bufferSize, maxLineLength + 1)];
+	}
+
+	/**
+	 Advances to the next line of input.
+	 @return false when there are no more lines
+	 @throws LineTooLongException if the next line is longer than maxLineLength,
+	 lines before it were already returned
+	 */
+	public boolean nextLine() throws IOException
+	{
+		while (true)
+		{
+			for (int i = m_scanPosition; i < m_limit; i++)
+			{
+				if (m_buffer[i] == '\n')
+				{
+					m_lineStart = m_position;
+					m_lineEnd = i;
+					m_position = m_scanPosition = i + 1;
+					return true;
+				}
+			}
+			m_scanPosition = m_limit;
+
+			if (m_endOfStream)
+			{
+				if (m_position < m_limit)
+				{
+					//Last line was not terminated by a newline
+					m_lineStart = m_position;
+					m_lineEnd = m_limit;
+					m_position = m_scanPosition = m_limit;
+					return true;
+				}
+
+				return false;
+			}
+
+			fill();
+		}
+	}
+
+	private void fill() throws IOException
+	{
+		int remaining = m_limit - m_position;
+		if (m_position == 0 && remaining == m_buffer.length)
+		{
+			//Line is longer than the buffer, room for the newline is needed too
+			if (remaining > m_maxLineLength)
+				throw new LineTooLongException(m_maxLineLength);
+			byte[] newBuffer = new byte[(int) Math.min(m_buffer.length * 2L, m_maxLineLength + 1L)];
+			System.arraycopy(m_buffer, 0, newBuffer, 0, remaining);
+			m_buffer = newBuffer;
+		}
+		else if (m_position != 0)
+		{
+			System.arraycopy(m_buffer, m_position, m_buffer, 0, remaining);
+		}
+
+		m_scanPosition -= m_position;
+		m_position = 0;
+		m_limit = remaining;
+
+		int read = m_input.read(m_buffer, m_limit, m_buffer.length - m_limit);
+		if (read == -1)
+			m_endOfStream = true;
+		else
+			m_limit += read;
+	}
+
+	/**
+	 Buffer containing the current line.  The contents are only valid until
+	 the next call to nextLine()
+	 */
+	public byte[] getBuffer()
+	{
+		return m_buffer;
+	}
+
+	public int getLineStart()
+	{
+		return m_lineStart;
+	}
+
+	public int getLineLength()
+	{
+		return m_lineEnd - m_lineStart;
+	}
+
+	public boolean isLineEmpty()
+	{
+		return m_lineEnd == m_lineStart;
+	}
+
+	public String getLine()
+	{
+		return new String(m_buffer, m_lineStart, m_lineEnd - m_lineStart, UTF_8);
+	}
+}
@@ -0,0 +1,77 @@
+package org.kairosdb.influxdb;
+
+/**
+ Splits a single line of line protocol into tokens at unescaped ',', '=' and
+ whitespace characters that are not inside double quotes.
+ <p>
+ getChar() returns the delimiter at the end of the current token and getString()
+ returns the text between the previous delimiter and the current one.
+ getChar() returns CharacterIterator.DONE at the end of the line.
+ */
+interface LineTokenizer
+{
+	byte NORMAL = 0;
+	byte DELIMITER = 1;
+	byte ESCAPE_OR_QUOTE = 2;
+
+	/**
+	 Character class of each ASCII value, used by the fast path of the tokenizers
+	 to find delimiters with a single lookup.  Whitespace matches Character.isWhitespace.
+	 */
+	byte[] ASCII_CLASS = asciiClasses();
+
+	static byte[] asciiClasses()
+	{
+		byte[] classes = new byte[128];
+		for (char c = 0; c < 128; c++)
+		{
+			if (c == ',' || c == '=' || Character.isWhitespace(c))
+				classes[c] = DELIMITER;
+			else if (c == '\\' || c == '"')
+				classes[c] = ESCAPE_OR_QUOTE;
+		}
+		return classes;
+	}
+
+	void next() throws ParseException;
+
+	char getChar();
+
+	String getString();
+
+	/**
+	 Length of the current token
+	 */
+	int getLength();
+
+	/**
+	 Character at index of the current token, used to parse values without
+	 creating a String.  Bytes of multi-byte characters are returned as values
+	 above 127 by the byte tokenizer.
+	 */
+	char charAt(int index);
+
+	/**
+	 Same as getString().hashCode() without creating the String
+	 */
+	int tokenHashCode();
+
+	/**
+	 Same as getString().equals(value) without creating the String
+	 */
+	boolean tokenEquals(String value);
+
+	/**
+	 Position of the current token that can later be returned to with setPosition()
+	 */
+	int getPosition();
+
+	void setPosition(int position);
+
+	/**
+	 Points the key at the raw input up to the first unescaped whitespace.
+	 @return false if the line has no such whitespace or the tokenizer
+	 does not support series keys
+	 */
+	boolean getSeriesKey(SeriesKey key, String bucket);
+}
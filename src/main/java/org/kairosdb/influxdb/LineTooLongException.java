@@ -0,0 +1,24 @@
+package org.kairosdb.influxdb;
+
+import java.io.IOException;
+
+/**
+ Thrown when a line of input is longer than the reader allows
+ */
+public class LineTooLongException extends IOException
+{
+	private static final long serialVersionUID = 1L;
+
+	private final int m_maxLineLength;
+
+	public LineTooLongException(int maxLineLength)
+	{
+		super("Line longer than " + maxLineLength + " bytes");
+		m_maxLineLength = maxLineLength;
+	}
+
+	public int getMaxLineLength()
+	{
+		return m_maxLineLength;
+	}
+}
@@ -0,0 +1,109 @@
+package org.kairosdb.influxdb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ Set of longs in an open addressing table, without the boxing of a
+ HashSet&lt;Long&gt;.  Each value takes 8 to 16 bytes.  The values are expected
+ to be hashes already so they are only mixed lightly to pick a slot.
+ <p>
+ contains() and size() can be called without a lock while another thread
+ adds.  contains() sees every value added before it was called and maybe some
+ added since.  Calls to add() must be serialized by the caller.  Values are
+ only ever added, so a reader still probing a table that was just replaced by
+ a larger one finds everything that was in it.
+ */
+class LongHashSet
+{
+	private static final int MIN_CAPACITY = 16;
+
+	//0 marks an empty slot, a 0 value is kept in m_hasZero instead
+	private volatile AtomicLongArray m_table;
+	private volatile boolean m_hasZero;
+	private volatile int m_size;  //Only written by add()
+
+	LongHashSet()
+	{
+		m_table = new AtomicLongArray(MIN_CAPACITY);
+	}
+
+	/**
+	 @return true if the value was not in the set
+	 */
+	boolean add(long value)
+	{
+		if (value == 0)
+		{
+			if (m_hasZero)
+				return false;
+			m_hasZero = true;
+			m_size++;
+			return true;
+		}
+
+		AtomicLongArray table = m_table;
+		int mask = table.length() - 1;
+		for (int i = slot(value, mask); ; i = (i + 1) & mask)
+		{
+			long current = table.get(i);
+			if (current == value)
+				return false;
+			if (current == 0)
+			{
+				table.set(i, value);
+				m_size++;
+				//Kept at most half full so probes stay short
+				if (m_size * 2 > table.length())
+					grow();
+				return true;
+			}
+		}
+	}
+
+	boolean contains(long value)
+	{
+		if (value == 0)
+			return m_hasZero;
+
+		AtomicLongArray table = m_table;
+		int mask = table.length() - 1;
+		for (int i = slot(value, mask); ; i = (i + 1) & mask)
+		{
+			long current = table.get(i);
+			if (current == value)
+				return true;
+			if (current == 0)
+				return false;
+		}
+	}
+
+	int size()
+	{
+		return m_size;
+	}
+
+	private static int slot(long value, int mask)
+	{
+		return (int) (value ^ (value >>> 32)) & mask;
+	}
+
+	private void grow()
+	{
+		AtomicLongArray old = m_table;
+		AtomicLongArray table = new AtomicLongArray(old.length() * 2);
+		int mask = table.length() - 1;
+		for (int j = 0; j < old.length(); j++)
+		{
+			long value = old.get(j);
+			if (value == 0)
+				continue;
+
+			int i = slot(value, mask);
+			while (table.get(i) != 0)
+				i = (i + 1) & mask;
+			table.lazySet(i, value);
+		}
+		//Published only once it is complete
+		m_table = table;
+	}
+}
@@ -0,0 +1,71 @@
+package org.kairosdb.influxdb;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ Counts the bytes read from a stream and the time spent in the reads.  Used to
+ measure body sizes and how long reading and decompressing a request takes.
+ <p>
+ Not thread safe, a stream is read by a single thread at a time.
+ */
+public class MeteredInputStream extends FilterInputStream
+{
+	private long m_bytes;
+	private long m_readNanos;
+
+	public MeteredInputStream(InputStream in)
+	{
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		long start = System.nanoTime();
+		int read = super.read();
+		m_readNanos += System.nanoTime() - start;
+		if (read != -1)
+			m_bytes++;
+		return read;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		long start = System.nanoTime();
+		int read = super.read(b, off, len);
+		m_readNanos += System.nanoTime() - start;
+		if (read > 0)
+			m_bytes += read;
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException
+	{
+		long start = System.nanoTime();
+		long skipped = super.skip(n);
+		m_readNanos += System.nanoTime() - start;
+		m_bytes += skipped;
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported()
+	{
+		//reset() would count bytes twice
+		return false;
+	}
+
+	public long getBytes()
+	{
+		return m_bytes;
+	}
+
+	public long getReadNanos()
+	{
+		return m_readNanos;
+	}
+}
@@ -0,0 +1,121 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.events.DataPointEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Collects the points of a request and passes them to MetricWriter.writeBatch()
+ once maxSize points have been collected.  flush() must be called when the
+ request is done to write the remaining points.
+ <p>
+ Not thread safe, a batch is used by a single request.
+ */
+public class MetricBatch implements PointSink
+{
+	private final MetricWriter m_writer;
+	private final MetricNameCache m_nameCache;
+	private final String m_metricPrefix;
+	private final int m_maxSize;
+	private final Aggregator m_aggregator;
+	private final Deduplicator m_deduplicator;
+	private final List<DataPointEvent> m_events;
+	//Dedup hashes of the points in m_events, forgotten if they fail to write
+	private long[] m_hashes = new long[0];
+	private int m_hashCount;
+	private long m_publishNanos;
+
+	public MetricBatch(MetricWriter writer, MetricNameCache nameCache, String metricPrefix, int maxSize)
+	{
+		this(writer, nameCache, metricPrefix, maxSize, null, null);
+	}
+
+	/**
+	 @param aggregator points are offered to the aggregator first, only the
+	 points it doesn't take are written.  May be null
+	 @param deduplicator points it has seen recently are dropped before they
+	 reach the aggregator.  May be null
+	 */
+	public MetricBatch(MetricWriter writer, MetricNameCache nameCache, String metricPrefix, int maxSize,
+			Aggregator aggregator, Deduplicator deduplicator)
+	{
+		checkArgument(maxSize > 0, "maxSize must be greater than 0");
+		m_writer = checkNotNull(writer, "writer must not be null");
+		m_nameCache = checkNotNull(nameCache, "nameCache must not be null");
+		m_metricPrefix = checkNotNull(metricPrefix, "metricPrefix must not be null");
+		m_maxSize = maxSize;
+		m_aggregator = aggregator;
+		m_deduplicator = deduplicator;
+		m_events = new ArrayList<>(Math.min(maxSize, 1024));
+	}
+
+	@Override
+	public void onPoint(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint)
+	{
+		String prefixedName = m_nameCache.getPrefixedName(m_metricPrefix, metricName);
+		long hash = 0;
+		if (m_deduplicator != null)
+		{
+			hash = Deduplicator.hash(prefixedName, tags, dataPoint);
+			if (m_deduplicator.isDuplicate(hash))
+				return;
+		}
+
+		//The aggregator adds the windows the point closes to the batch
+		if (m_aggregator == null || !m_aggregator.add(metricName, prefixedName, tags, dataPoint, m_events))
+		{
+			m_events.add(new DataPointEvent(prefixedName, tags, dataPoint));
+			if (m_deduplicator != null)
+			{
+				if (m_hashCount == m_hashes.length)
+					m_hashes = Arrays.copyOf(m_hashes, Math.max(16, m_hashCount * 2));
+				m_hashes[m_hashCount++] = hash;
+			}
+		}
+		if (m_events.size() >= m_maxSize)
+			flush();
+	}
+
+	/**
+	 Writes any points collected since the last flush
+	 */
+	public void flush()
+	{
+		if (m_events.isEmpty())
+			return;
+
+		long start = System.nanoTime();
+		try
+		{
+			m_writer.writeBatch(m_events);
+		}
+		catch (Throwable e)
+		{
+			//A retry of these points must not be suppressed as a duplicate
+			for (int i = 0; i < m_hashCount; i++)
+				m_deduplicator.forget(m_hashes[i]);
+			throw e;
+		}
+		finally
+		{
+			m_events.clear();
+			m_hashCount = 0;
+			m_publishNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 Time spent in MetricWriter.writeBatch()
+	 */
+	public long getPublishNanos()
+	{
+		return m_publishNanos;
+	}
+}
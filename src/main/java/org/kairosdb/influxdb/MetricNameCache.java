@@ -0,0 +1,150 @@
+package org.kairosdb.influxdb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ Caches metric names so the same name is not built for every point.
+ <p>
+ Names are looked up in two steps.  The parser looks up the measurement and
+ field name to get "measurement.field", which is the name the drop rules are
+ applied to, and the resource then looks up that name with the prefix for the
+ request (prefix, separator and bucket) to get the name written to Kairos.
+ Each distinct name is stored once and the same String instance is returned for
+ every point.
+ <p>
+ Field names are looked up straight from the tokenizer with a probe key whose
+ hashCode() and equals() match the String the token would produce, so a hit
+ does not create a String.  The cache is cleared once it holds more than
+ maxSize names.
+ */
+public class MetricNameCache
+{
+	private final int m_maxSize;
+	private final AtomicInteger m_size = new AtomicInteger();
+
+	//measurement -> field -> measurement.field
+	private final ConcurrentHashMap<String, ConcurrentHashMap<Object, String>> m_metricNames = new ConcurrentHashMap<>();
+	//prefix -> measurement.field -> prefix + measurement.field
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, String>> m_prefixedNames = new ConcurrentHashMap<>();
+
+	public MetricNameCache(int maxSize)
+	{
+		checkArgument(maxSize > 0, "maxSize must be greater than 0");
+		m_maxSize = maxSize;
+	}
+
+	/**
+	 Returns "measurement.field" where the field name is the current token of the
+	 tokenizer.
+	 @param probe reusable probe, one per thread
+	 @return the name and whether it was found in the cache
+	 */
+	String getMetricName(String measurement, TokenProbe probe, LineTokenizer tokenizer)
+	{
+		ConcurrentHashMap<Object, String> fields = m_metricNames.get(measurement);
+		if (fields == null)
+		{
+			fields = new ConcurrentHashMap<>();
+			ConcurrentHashMap<Object, String> existing = m_metricNames.putIfAbsent(measurement, fields);
+			if (existing != null)
+				fields = existing;
+		}
+
+		probe.m_tokenizer = tokenizer;
+		String name = fields.get(probe);
+		probe.m_tokenizer = null;
+		if (name != null)
+		{
+			probe.m_hit = true;
+			return name;
+		}
+
+		probe.m_hit = false;
+		String field = tokenizer.getString();
+		name = measurement + "." + field;
+		String existing = fields.putIfAbsent(field, name);
+		if (existing != null)
+			return existing;
+
+		added();
+		return name;
+	}
+
+	/**
+	 Returns prefix + metricName.
+	 */
+	public String getPrefixedName(String prefix, String metricName)
+	{
+		if (prefix.isEmpty())
+			return metricName;
+
+		ConcurrentHashMap<String, String> names = m_prefixedNames.get(prefix);
+		if (names == null)
+		{
+			names = new ConcurrentHashMap<>();
+			ConcurrentHashMap<String, String> existing = m_prefixedNames.putIfAbsent(prefix, names);
+			if (existing != null)
+				names = existing;
+		}
+
+		String name = names.get(metricName);
+		if (name == null)
+		{
+			name = prefix + metricName;
+			String existing = names.putIfAbsent(metricName, name);
+			if (existing != null)
+				return existing;
+
+			added();
+		}
+
+		return name;
+	}
+
+	private void added()
+	{
+		if (m_size.incrementAndGet() > m_maxSize)
+		{
+			//Simple bound, in the normal case the set of names is much smaller than the max
+			m_metricNames.clear();
+			m_prefixedNames.clear();
+			m_size.set(0);
+		}
+	}
+
+	public int size()
+	{
+		return m_size.get();
+	}
+
+	/**
+	 Key used to look up a field name without creating a String.  Only valid as
+	 the argument to get() as equals() compares the token to a String key.
+	 */
+	static class TokenProbe
+	{
+		private LineTokenizer m_tokenizer;
+		private boolean m_hit;
+
+		boolean isHit()
+		{
+			return m_hit;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return m_tokenizer.tokenHashCode();
+		}
+
+		@SuppressWarnings("EqualsWhichDoesntCheckParameterClass")
+		@Override
+		public boolean equals(Object obj)
+		{
+			return obj instanceof String && m_tokenizer.tokenEquals((String) obj);
+		}
+	}
+}
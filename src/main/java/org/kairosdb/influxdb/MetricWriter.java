@@ -10,6 +10,7 @@ import org.kairosdb.util.Preconditions;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -31,6 +32,28 @@ public class MetricWriter
 
     public void write(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint)
     {
-        dataPointPublisher.post(new DataPointEvent(metricName, tags, dataPoint));
+        publish(new DataPointEvent(metricName, tags, dataPoint));
+    }
+
+    /**
+     Writes a batch of events collected by a MetricBatch.  The event bus only
+     accepts one event at a time so the default posts each event in turn,
+     writers that can hand off a whole batch at once override this.
+     The list is reused by the caller once this returns.
+     */
+    public void writeBatch(List<DataPointEvent> events)
+    {
+        for (DataPointEvent event : events)
+        {
+            publish(event);
+        }
+    }
+
+    /**
+     Posts the event to the event bus
+     */
+    protected void publish(DataPointEvent event)
+    {
+        dataPointPublisher.post(event);
     }
 }
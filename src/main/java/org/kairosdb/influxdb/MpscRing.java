@@ -0,0 +1,101 @@
+package org.kairosdb.influxdb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ Fixed size lock free ring buffer for many producer threads and a single
+ consumer thread.
+ <p>
+ Producers claim a sequence number with a CAS on the tail, store the item in
+ the slot for that sequence and then mark the slot as published by writing
+ sequence + 1 to it.  The consumer takes items in sequence order as long as
+ their slots are published, so a slow producer holds up the items behind it
+ but never sees a torn slot.  A slot is freed by advancing the head as soon as
+ its item has been taken, before the item is passed to the consumer.
+ */
+class MpscRing<T>
+{
+	private final Object[] m_slots;
+	private final AtomicLongArray m_published;
+	private final int m_mask;
+	private final AtomicLong m_tail = new AtomicLong();  //Next sequence to claim
+	private final AtomicLong m_head = new AtomicLong();  //Next sequence to consume, only written by the consumer
+
+	/**
+	 @param capacity rounded up to a power of 2
+	 */
+	MpscRing(int capacity)
+	{
+		checkArgument(capacity > 0 && capacity <= (1 << 30), "capacity must be between 1 and 2^30");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+
+		m_slots = new Object[size];
+		m_published = new AtomicLongArray(size);
+		m_mask = size - 1;
+	}
+
+	/**
+	 @return false if the ring is full
+	 */
+	boolean offer(T item)
+	{
+		long sequence;
+		do
+		{
+			sequence = m_tail.get();
+			if (sequence - m_head.get() >= m_slots.length)
+				return false;
+		} while (!m_tail.compareAndSet(sequence, sequence + 1));
+
+		int index = (int) sequence & m_mask;
+		m_slots[index] = item;
+		m_published.lazySet(index, sequence + 1);
+		return true;
+	}
+
+	/**
+	 Passes up to max published items to the consumer.  Must only be called from
+	 the consumer thread.
+	 @return number of items consumed
+	 */
+	@SuppressWarnings("unchecked")
+	int drain(Consumer<T> consumer, int max)
+	{
+		long head = m_head.get();
+		int count = 0;
+		while (count < max)
+		{
+			int index = (int) head & m_mask;
+			if (m_published.get(index) != head + 1)
+				break;
+
+			T item = (T) m_slots[index];
+			m_slots[index] = null;
+			head++;
+			count++;
+			//Ordered store is enough, producers only need to see the slot free eventually
+			m_head.lazySet(head);
+			consumer.accept(item);
+		}
+		return count;
+	}
+
+	/**
+	 Number of claimed slots, includes items still being stored by producers
+	 */
+	int size()
+	{
+		return (int) Math.max(0, m_tail.get() - m_head.get());
+	}
+
+	int capacity()
+	{
+		return m_slots.length;
+	}
+}
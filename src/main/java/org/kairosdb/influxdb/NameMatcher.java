@@ -0,0 +1,296 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ Matches a name against a list of regular expressions with the same result as
+ checking Pattern.matches() for each expression, but without running every
+ expression.
+ <p>
+ Each expression is sorted into one of three groups when the matcher is compiled:
+ <ul>
+ <li>Literals such as "^kernel\.interrupts$" go into a hash set.</li>
+ <li>Expressions made of literal characters and '.' wildcards, optionally ending
+ in ".*", such as "^swap.used.*$" go into a trie that is walked once for the name.</li>
+ <li>Everything else is combined into a single alternation and run as one regex.</li>
+ </ul>
+ Leading '^' and trailing '$' are ignored as the whole name has to match anyway.
+ */
+public class NameMatcher
+{
+	private static final String META_CHARACTERS = "\\[]{}()*+?^$|.";
+	private static final int ANY = -1;
+	private static final int ANY_SUFFIX = -2;
+
+	private final ImmutableSet<String> m_literals;
+	private final Node m_trie;
+	private final ImmutableList<Pattern> m_triePatterns;  //Used for names the trie can't handle
+	private final ImmutableList<Pattern> m_regex;
+
+	private NameMatcher(Set<String> literals, Node trie, List<Pattern> triePatterns, List<Pattern> regex)
+	{
+		m_literals = ImmutableSet.copyOf(literals);
+		m_trie = trie;
+		m_triePatterns = ImmutableList.copyOf(triePatterns);
+		m_regex = ImmutableList.copyOf(regex);
+	}
+
+	public static NameMatcher compile(List<Pattern> patterns)
+	{
+		Set<String> literals = new HashSet<>();
+		Node trie = new Node();
+		List<Pattern> triePatterns = new ArrayList<>();
+		List<Pattern> regex = new ArrayList<>();
+
+		for (Pattern pattern : patterns)
+		{
+			List<Integer> atoms = parseAtoms(pattern);
+			if (atoms == null)
+			{
+				regex.add(pattern);
+				continue;
+			}
+
+			boolean prefix = false;
+			if (!atoms.isEmpty() && atoms.get(atoms.size() - 1) == ANY_SUFFIX)
+			{
+				prefix = true;
+				atoms = atoms.subList(0, atoms.size() - 1);
+			}
+
+			if (!prefix && !atoms.contains(ANY))
+			{
+				StringBuilder sb = new StringBuilder();
+				for (int atom : atoms)
+					sb.append((char) atom);
+				literals.add(sb.toString());
+			}
+			else
+			{
+				trie.add(atoms, prefix);
+				triePatterns.add(pattern);
+			}
+		}
+
+		return new NameMatcher(literals, trie, triePatterns, combine(regex));
+	}
+
+	/**
+	 Combines the expressions into one alternation.  Expressions that use
+	 back references or named groups would change meaning or fail to compile
+	 when combined so they are kept on their own.
+	 */
+	private static List<Pattern> combine(List<Pattern> patterns)
+	{
+		if (patterns.size() < 2)
+			return patterns;
+
+		List<Pattern> separate = new ArrayList<>();
+		StringBuilder alternation = new StringBuilder();
+		for (Pattern pattern : patterns)
+		{
+			String regex = pattern.pattern();
+			if (pattern.flags() != 0 || regex.contains("\\k<") || regex.contains("(?<") || regex.matches(".*\\\\[1-9].*"))
+			{
+				separate.add(pattern);
+				continue;
+			}
+
+			if (alternation.length() != 0)
+				alternation.append('|');
+			alternation.append("(?:").append(regex).append(')');
+		}
+
+		if (alternation.length() != 0)
+		{
+			try
+			{
+				separate.add(Pattern.compile(alternation.toString()));
+			}
+			catch (PatternSyntaxException e)
+			{
+				return patterns;
+			}
+		}
+
+		return separate;
+	}
+
+	/**
+	 Breaks the expression into literal characters, ANY for '.' and ANY_SUFFIX
+	 for a trailing ".*"
+	 @return null if the expression uses anything else
+	 */
+	private static List<Integer> parseAtoms(Pattern pattern)
+	{
+		if (pattern.flags() != 0)
+			return null;
+
+		String regex = pattern.pattern();
+		int start = regex.startsWith("^") ? 1 : 0;
+		int end = regex.length();
+		if (end > start && regex.charAt(end - 1) == '$' && !isEscaped(regex, end - 1))
+			end--;
+
+		List<Integer> atoms = new ArrayList<>();
+		for (int i = start; i < end; i++)
+		{
+			char c = regex.charAt(i);
+			if (c == '\\')
+			{
+				i++;
+				//Only escaped punctuation is a literal, \d, \Q and friends are not
+				if (i == end || Character.isLetterOrDigit(regex.charAt(i)))
+					return null;
+				atoms.add((int) regex.charAt(i));
+			}
+			else if (c == '.' && i == end - 2 && regex.charAt(i + 1) == '*')
+			{
+				atoms.add(ANY_SUFFIX);
+				i++;
+			}
+			else if (c == '.')
+				atoms.add(ANY);
+			else if (META_CHARACTERS.indexOf(c) != -1)
+				return null;
+			else
+				atoms.add((int) c);
+		}
+
+		return atoms;
+	}
+
+	private static boolean isEscaped(String regex, int pos)
+	{
+		int backslashes = 0;
+		for (int i = pos - 1; i >= 0 && regex.charAt(i) == '\\'; i--)
+			backslashes++;
+		return backslashes % 2 == 1;
+	}
+
+	/**
+	 Same characters '.' does not match by default
+	 */
+	private static boolean isLineTerminator(char c)
+	{
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+	public boolean isEmpty()
+	{
+		return m_literals.isEmpty() && m_triePatterns.isEmpty() && m_regex.isEmpty();
+	}
+
+	public boolean matches(String name)
+	{
+		if (m_literals.contains(name))
+			return true;
+
+		if (!m_triePatterns.isEmpty() && matchesTrie(name))
+			return true;
+
+		for (Pattern pattern : m_regex)
+		{
+			if (pattern.matcher(name).matches())
+				return true;
+		}
+
+		return false;
+	}
+
+	private boolean matchesTrie(String name)
+	{
+		int lastTerminator = -1;
+		for (int i = 0; i < name.length(); i++)
+		{
+			char c = name.charAt(i);
+			if (Character.isSurrogate(c))
+			{
+				//'.' matches a whole code point, leave these to the regex
+				for (Pattern pattern : m_triePatterns)
+				{
+					if (pattern.matcher(name).matches())
+						return true;
+				}
+				return false;
+			}
+
+			if (isLineTerminator(c))
+				lastTerminator = i;
+		}
+
+		return m_trie.matches(name, 0, lastTerminator);
+	}
+
+	private static class Node
+	{
+		private final Map<Character, Node> m_children = new HashMap<>();
+		private Node m_any;  //Child for '.'
+		private boolean m_exact;  //A pattern ends here
+		private boolean m_prefix;  //A pattern ending in .* ends here
+
+		private void add(List<Integer> atoms, boolean prefix)
+		{
+			Node node = this;
+			for (int atom : atoms)
+			{
+				if (atom == ANY)
+				{
+					if (node.m_any == null)
+						node.m_any = new Node();
+					node = node.m_any;
+				}
+				else
+					node = node.m_children.computeIfAbsent((char) atom, c -> new Node());
+			}
+
+			if (prefix)
+				node.m_prefix = true;
+			else
+				node.m_exact = true;
+		}
+
+		private boolean matches(String name, int pos, int lastTerminator)
+		{
+			Node node = this;
+			while (true)
+			{
+				//.* matches the rest of the name as long as there are no line terminators
+				if (node.m_prefix && lastTerminator < pos)
+					return true;
+
+				if (pos == name.length())
+					return node.m_exact;
+
+				char c = name.charAt(pos);
+				Node child = node.m_children.get(c);
+				Node any = isLineTerminator(c) ? null : node.m_any;
+
+				if (child != null && any != null)
+				{
+					if (child.matches(name, pos + 1, lastTerminator))
+						return true;
+					node = any;
+				}
+				else if (child != null)
+					node = child;
+				else if (any != null)
+					node = any;
+				else
+					return false;
+
+				pos++;
+			}
+		}
+	}
+}
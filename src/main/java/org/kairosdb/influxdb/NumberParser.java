@@ -0,0 +1,161 @@
+package org.kairosdb.influxdb;
+
+/**
+ Parses numbers directly from the current token of a LineTokenizer so no
+ String is created for each value.
+ <p>
+ Only plain decimal numbers are handled here, anything else (too many digits,
+ hex, Infinity, non-ASCII digits, invalid input) falls back to Long.parseLong()
+ or Double.parseDouble() on the token String so results and exceptions are
+ always the same as parsing the String.
+ <p>
+ Doubles use Clinger's fast path: when the decimal mantissa fits in 53 bits and
+ the power of ten is at most 22 both are exact doubles, so a single multiply or
+ divide gives the correctly rounded result.
+ */
+final class NumberParser
+{
+	private static final int MAX_LONG_DIGITS = 18;  //Can't overflow a long
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	private static final double[] POWERS_OF_TEN = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+			1e21, 1e22};
+
+	private NumberParser()
+	{
+	}
+
+	/**
+	 Parses the current token as a long ignoring the last suffixLength characters,
+	 used to drop the 'i' or 'u' of integer fields.
+	 */
+	static long parseLong(LineTokenizer token, int suffixLength)
+	{
+		int length = token.getLength() - suffixLength;
+		int i = 0;
+		boolean negative = false;
+		if (length > 0)
+		{
+			char first = token.charAt(0);
+			if (first == '-' || first == '+')
+			{
+				negative = first == '-';
+				i = 1;
+			}
+		}
+
+		if (length - i == 0 || length - i > MAX_LONG_DIGITS)
+			return parseLongString(token, suffixLength);
+
+		long value = 0;
+		for (; i < length; i++)
+		{
+			int digit = token.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				return parseLongString(token, suffixLength);
+			value = value * 10 + digit;
+		}
+
+		return negative ? -value : value;
+	}
+
+	private static long parseLongString(LineTokenizer token, int suffixLength)
+	{
+		String value = token.getString();
+		return Long.parseLong(value.substring(0, value.length() - suffixLength));
+	}
+
+	static double parseDouble(LineTokenizer token)
+	{
+		int length = token.getLength();
+		int i = 0;
+		boolean negative = false;
+		if (length > 0)
+		{
+			char first = token.charAt(0);
+			if (first == '-' || first == '+')
+			{
+				negative = first == '-';
+				i = 1;
+			}
+		}
+
+		long mantissa = 0;
+		int significantDigits = 0;  //Leading zeros don't count
+		int exponent = 0;
+		char c = 0;
+
+		int digitsStart = i;
+		for (; i < length && isDigit(c = token.charAt(i)); i++)
+		{
+			mantissa = mantissa * 10 + (c - '0');
+			if (mantissa != 0 && ++significantDigits > MAX_LONG_DIGITS)
+				return Double.parseDouble(token.getString());
+		}
+		int digits = i - digitsStart;
+
+		if (i < length && c == '.')
+		{
+			i++;
+			int fractionStart = i;
+			for (; i < length && isDigit(c = token.charAt(i)); i++)
+			{
+				mantissa = mantissa * 10 + (c - '0');
+				exponent--;
+				if (mantissa != 0 && ++significantDigits > MAX_LONG_DIGITS)
+					return Double.parseDouble(token.getString());
+			}
+			digits += i - fractionStart;
+		}
+
+		if (digits == 0)
+			return Double.parseDouble(token.getString());
+
+		if (i < length && (c == 'e' || c == 'E'))
+		{
+			i++;
+			boolean negativeExponent = false;
+			if (i < length && (token.charAt(i) == '-' || token.charAt(i) == '+'))
+			{
+				negativeExponent = token.charAt(i) == '-';
+				i++;
+			}
+
+			int exponentStart = i;
+			int explicitExponent = 0;
+			for (; i < length && isDigit(c = token.charAt(i)); i++)
+			{
+				explicitExponent = explicitExponent * 10 + (c - '0');
+				if (i - exponentStart > 4)
+					return Double.parseDouble(token.getString());
+			}
+
+			if (i == exponentStart)
+				return Double.parseDouble(token.getString());
+
+			exponent += negativeExponent ? -explicitExponent : explicitExponent;
+		}
+
+		//Anything left over is a suffix like 'd' or invalid input
+		if (i != length)
+			return Double.parseDouble(token.getString());
+
+		double value;
+		if (mantissa == 0)
+			value = 0.0;
+		else if (mantissa > MAX_EXACT_MANTISSA || exponent < -22 || exponent > 22)
+			return Double.parseDouble(token.getString());
+		else if (exponent < 0)
+			value = (double) mantissa / POWERS_OF_TEN[-exponent];
+		else
+			value = (double) mantissa * POWERS_OF_TEN[exponent];
+
+		return negative ? -value : value;
+	}
+
+	private static boolean isDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+}
@@ -2,8 +2,45 @@ package org.kairosdb.influxdb;
 
 public class ParseException extends Throwable
 {
+    /**
+     Why a line failed to parse.  The set is fixed so the code can be used as a
+     metric tag, details of the line only go in the message.
+     */
+    public enum Reason
+    {
+        INVALID_SYNTAX,
+        MISSING_MEASUREMENT,
+        INVALID_TAG_SET,
+        MISSING_TAGS,
+        INVALID_FIELD_SET,
+        INVALID_FIELD_VALUE,
+        INVALID_TIMESTAMP,
+        UNTERMINATED_QUOTE,
+        PREMATURE_END;
+
+        private final String m_code = name().toLowerCase();
+
+        public String getCode()
+        {
+            return m_code;
+        }
+    }
+
+    private final Reason m_reason;
+
     public ParseException(String s)
+    {
+        this(Reason.INVALID_SYNTAX, s);
+    }
+
+    public ParseException(Reason reason, String s)
     {
         super(s);
+        m_reason = reason;
+    }
+
+    public Reason getReason()
+    {
+        return m_reason;
     }
 }
@@ -0,0 +1,12 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.core.DataPoint;
+
+/**
+ Receives the points parsed from a line by InfluxParser
+ */
+public interface PointSink
+{
+	void onPoint(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint);
+}
@@ -0,0 +1,367 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.events.DataPointEvent;
+import org.kairosdb.metrics4j.MetricSourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ MetricWriter that hands points to a small fixed set of publisher threads
+ through lock free ring buffers instead of posting to the event bus on the
+ request thread.
+ <p>
+ Each publisher thread has its own ring and points are routed to a ring by
+ the hash of the metric name and tags, so the points of a series are always
+ posted by the same thread in the order they were written.  When a ring is
+ full the writing thread waits for space until the offer timeout, counted
+ once for each write or batch, and then posts the point itself.  No point is
+ lost but it can get ahead of points of its series still in the ring.  The
+ rest of the batch going to that ring is posted the same way without waiting
+ again, so the points of a series that overflowed stay in order with each
+ other and a stuck publisher holds the writing thread for one timeout at most.
+ <p>
+ Points written before the service is started or once it has begun stopping
+ are posted directly on the calling thread.  stop() waits for writers that
+ are still offering to rings before the publishers post what is left.
+ */
+public class RingBufferMetricWriter extends MetricWriter implements KairosDBService
+{
+	private static final Logger logger = LoggerFactory.getLogger(RingBufferMetricWriter.class);
+
+	public static final String ENABLED_PROP = "kairosdb.influx.ring_buffer.enabled";
+	public static final String PUBLISHERS_PROP = "kairosdb.influx.ring_buffer.publishers";
+	public static final String SIZE_PROP = "kairosdb.influx.ring_buffer.size";
+	public static final String WAIT_STRATEGY_PROP = "kairosdb.influx.ring_buffer.wait_strategy";
+	public static final String OFFER_TIMEOUT_PROP = "kairosdb.influx.ring_buffer.offer_timeout_ms";
+
+	private static final int DRAIN_BATCH = 256;
+
+	/**
+	 How a thread waits for a ring to have items (publishers) or space (writers)
+	 */
+	public enum WaitStrategy
+	{
+		/** Lowest latency, burns a core per waiting thread */
+		SPIN,
+		/** Gives up the cpu to other runnable threads */
+		YIELD,
+		/** Sleeps briefly, lowest cpu use */
+		PARK;
+
+		private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+		void idle()
+		{
+			switch (this)
+			{
+				case SPIN:
+					break;
+				case YIELD:
+					Thread.yield();
+					break;
+				case PARK:
+					LockSupport.parkNanos(PARK_NANOS);
+					break;
+			}
+		}
+	}
+
+	private final LongAdder m_overflowed = new LongAdder();
+	private final LongAdder m_dropped = new LongAdder();
+	private final SampledLogger m_errorLog = new SampledLogger(logger, 10, 1, TimeUnit.MINUTES);
+	private final LongAdder m_waitNanos = new LongAdder();
+	//Writers between reading m_publishers and finishing their offers
+	private final AtomicInteger m_activeWriters = new AtomicInteger();
+
+	private volatile Publisher[] m_publishers;
+
+	@Inject(optional = true)
+	@Named(PUBLISHERS_PROP)
+	private int m_publisherCount = 2;
+
+	@Inject(optional = true)
+	@Named(SIZE_PROP)
+	private int m_ringSize = 16 * 1024;
+
+	@Inject(optional = true)
+	@Named(WAIT_STRATEGY_PROP)
+	private String m_waitStrategyName = "park";
+
+	@Inject(optional = true)
+	@Named(OFFER_TIMEOUT_PROP)
+	private long m_offerTimeoutMs = 1000;
+
+	private WaitStrategy m_waitStrategy;
+
+	@Inject
+	public RingBufferMetricWriter(FilterEventBus eventBus)
+	{
+		super(eventBus);
+
+		ImmutableMap<String, String> tags = ImmutableMap.of();
+		String className = InfluxStats.class.getName();
+		MetricSourceManager.addSource(className, "ringBufferDepth", tags, "Points waiting in the ring buffers", this::getDepth);
+		MetricSourceManager.addSource(className, "ringBufferWaitTime", tags, "Milliseconds writers spent waiting for space in the ring buffers", () -> TimeUnit.NANOSECONDS.toMillis(m_waitNanos.sum()));
+		MetricSourceManager.addSource(className, "ringBufferOverflow", tags, "Points posted by the writing thread because a ring buffer stayed full", m_overflowed::sum);
+		MetricSourceManager.addSource(className, "ringBufferDropped", tags, "Points lost because a publisher failed to post them", m_dropped::sum);
+	}
+
+	public RingBufferMetricWriter(FilterEventBus eventBus, int publisherCount, int ringSize, WaitStrategy waitStrategy, long offerTimeoutMs)
+	{
+		this(eventBus);
+		m_publisherCount = publisherCount;
+		m_ringSize = ringSize;
+		m_waitStrategyName = waitStrategy.name();
+		m_offerTimeoutMs = offerTimeoutMs;
+	}
+
+	@Override
+	public void start()
+	{
+		checkArgument(m_publisherCount > 0, PUBLISHERS_PROP + " must be greater than 0");
+		checkArgument(m_offerTimeoutMs >= 0, OFFER_TIMEOUT_PROP + " must not be negative");
+		m_waitStrategy = WaitStrategy.valueOf(m_waitStrategyName.trim().toUpperCase());
+
+		logger.info("Starting {} ring buffer publishers with {} wait strategy", m_publisherCount, m_waitStrategy);
+		Publisher[] publishers = new Publisher[m_publisherCount];
+		for (int i = 0; i < publishers.length; i++)
+		{
+			publishers[i] = new Publisher(new MpscRing<>(m_ringSize), i);
+			publishers[i].start();
+		}
+		m_publishers = publishers;
+	}
+
+	/**
+	 Stops the publishers once the points already in the rings are posted
+	 */
+	@Override
+	public void stop()
+	{
+		Publisher[] publishers = m_publishers;
+		if (publishers == null)
+			return;
+
+		//New writers post directly from here on, wait for the ones already offering
+		m_publishers = null;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (m_activeWriters.get() != 0 && System.nanoTime() - deadline < 0)
+			WaitStrategy.PARK.idle();
+
+		for (Publisher publisher : publishers)
+			publisher.m_running = false;
+
+		for (Publisher publisher : publishers)
+		{
+			LockSupport.unpark(publisher);
+			try
+			{
+				publisher.join(TimeUnit.SECONDS.toMillis(30));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void write(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint)
+	{
+		DataPointEvent event = new DataPointEvent(metricName, tags, dataPoint);
+		//Counted before m_publishers is read so stop() can't miss this writer
+		m_activeWriters.incrementAndGet();
+		try
+		{
+			Publisher[] publishers = m_publishers;
+			if (publishers == null)
+				publish(event);
+			else
+			{
+				MpscRing<DataPointEvent> ring = publishers[ringIndex(publishers, event)].m_ring;
+				if (!ring.offer(event) && !offer(ring, event, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_offerTimeoutMs)))
+					overflow(event);
+			}
+		}
+		finally
+		{
+			m_activeWriters.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void writeBatch(List<DataPointEvent> events)
+	{
+		m_activeWriters.incrementAndGet();
+		try
+		{
+			Publisher[] publishers = m_publishers;
+			if (publishers == null)
+			{
+				for (DataPointEvent event : events)
+					publish(event);
+				return;
+			}
+
+			//One deadline for the whole batch, set when a ring is first found full
+			long deadline = 0;
+			boolean waited = false;
+			boolean[] overflowed = null;  //Rings that stayed full past the deadline
+			for (DataPointEvent event : events)
+			{
+				int index = ringIndex(publishers, event);
+				if (overflowed != null && overflowed[index])
+				{
+					//Keeps the series in order behind its points already posted here
+					overflow(event);
+					continue;
+				}
+
+				MpscRing<DataPointEvent> ring = publishers[index].m_ring;
+				if (ring.offer(event))
+					continue;
+
+				if (!waited)
+				{
+					deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_offerTimeoutMs);
+					waited = true;
+				}
+
+				if (!offer(ring, event, deadline))
+				{
+					if (overflowed == null)
+						overflowed = new boolean[publishers.length];
+					overflowed[index] = true;
+					overflow(event);
+				}
+			}
+		}
+		finally
+		{
+			m_activeWriters.decrementAndGet();
+		}
+	}
+
+	private static int ringIndex(Publisher[] publishers, DataPointEvent event)
+	{
+		int hash = event.getMetricName().hashCode() * 31 + event.getTags().hashCode();
+		hash ^= (hash >>> 16);
+		return (hash & Integer.MAX_VALUE) % publishers.length;
+	}
+
+	/**
+	 Waits for the publisher to make room in a full ring
+	 @return false if the ring was still full at the deadline
+	 */
+	private boolean offer(MpscRing<DataPointEvent> ring, DataPointEvent event, long deadline)
+	{
+		long start = System.nanoTime();
+		boolean offered = false;
+		while (!offered && System.nanoTime() - deadline < 0)
+		{
+			m_waitStrategy.idle();
+			offered = ring.offer(event);
+		}
+
+		m_waitNanos.add(System.nanoTime() - start);
+		return offered;
+	}
+
+	private void overflow(DataPointEvent event)
+	{
+		//The point is acknowledged to the client so it can't be dropped
+		m_overflowed.increment();
+		publish(event);
+	}
+
+	/**
+	 Number of points waiting in all of the rings
+	 */
+	public long getDepth()
+	{
+		Publisher[] publishers = m_publishers;
+		if (publishers == null)
+			return 0;
+
+		long depth = 0;
+		for (Publisher publisher : publishers)
+			depth += publisher.m_ring.size();
+		return depth;
+	}
+
+	/**
+	 Number of points posted on the writing thread because their ring stayed full
+	 */
+	public long getOverflowed()
+	{
+		return m_overflowed.sum();
+	}
+
+	/**
+	 Number of points a publisher failed to post, they were already acknowledged
+	 so they are lost
+	 */
+	public long getDropped()
+	{
+		return m_dropped.sum();
+	}
+
+	private class Publisher extends Thread
+	{
+		private final MpscRing<DataPointEvent> m_ring;
+		private volatile boolean m_running = true;
+
+		private Publisher(MpscRing<DataPointEvent> ring, int id)
+		{
+			super("influx-publisher-" + id);
+			setDaemon(true);
+			m_ring = ring;
+		}
+
+		@Override
+		public void run()
+		{
+			while (m_running)
+			{
+				if (m_ring.drain(this::post, DRAIN_BATCH) == 0)
+					m_waitStrategy.idle();
+			}
+
+			//stop() waited for the writers, post whatever is left
+			while (m_ring.drain(this::post, DRAIN_BATCH) != 0)
+			{
+			}
+		}
+
+		private void post(DataPointEvent event)
+		{
+			try
+			{
+				publish(event);
+			}
+			catch (Exception e)
+			{
+				m_dropped.increment();
+				//A backend outage fails every point, only log a sample of them
+				if (m_errorLog.shouldLog())
+					logger.error("Error publishing data point for " + event.getMetricName(), e);
+			}
+		}
+	}
+}
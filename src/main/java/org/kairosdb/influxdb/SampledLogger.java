@@ -0,0 +1,71 @@
+package org.kairosdb.influxdb;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ Logs the first N errors of each interval and only counts the rest, so a
+ client sending a flood of bad lines can't flood the log.  The number of
+ errors that were not logged is reported when the next interval starts.
+ <p>
+ Callers check shouldLog() before building the message so suppressed errors
+ cost no more than a couple of atomic operations.
+ */
+public class SampledLogger
+{
+	private final Logger m_logger;
+	private final int m_limit;
+	private final long m_intervalNanos;
+	private final AtomicLong m_intervalStart;
+	private final AtomicInteger m_logged = new AtomicInteger();
+	private final LongAdder m_suppressed = new LongAdder();
+
+	public SampledLogger(Logger logger, int limit, long interval, TimeUnit unit)
+	{
+		checkArgument(limit >= 0, "limit must not be negative");
+		checkArgument(interval > 0, "interval must be greater than 0");
+		m_logger = checkNotNull(logger, "logger must not be null");
+		m_limit = limit;
+		m_intervalNanos = unit.toNanos(interval);
+		m_intervalStart = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 Counts an error and returns true if it should be logged
+	 */
+	public boolean shouldLog()
+	{
+		long now = System.nanoTime();
+		long start = m_intervalStart.get();
+		if (now - start >= m_intervalNanos && m_intervalStart.compareAndSet(start, now))
+		{
+			long suppressed = m_suppressed.sumThenReset();
+			m_logged.set(0);
+			if (suppressed != 0)
+				m_logger.error("{} more errors were not logged in the last {} seconds",
+						suppressed, TimeUnit.NANOSECONDS.toSeconds(now - start));
+		}
+
+		//Stop incrementing once over the limit so the count can't wrap
+		if (m_logged.get() < m_limit && m_logged.incrementAndGet() <= m_limit)
+			return true;
+
+		m_suppressed.increment();
+		return false;
+	}
+
+	/**
+	 Errors counted but not logged in the current interval
+	 */
+	public long getSuppressed()
+	{
+		return m_suppressed.sum();
+	}
+}
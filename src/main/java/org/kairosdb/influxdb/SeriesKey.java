@@ -0,0 +1,78 @@
+package org.kairosdb.influxdb;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ Raw bytes of the measurement and tag set of a line (everything before the
+ first unescaped space) along with the bucket.
+ <p>
+ A SeriesKey can point into a buffer that is being parsed so it can be used to
+ look up a cache without copying.  Use copy() to get a key that can be stored.
+ */
+class SeriesKey
+{
+	private byte[] m_bytes;
+	private int m_offset;
+	private int m_length;
+	private String m_bucket;
+	private int m_hash;
+
+	SeriesKey()
+	{
+	}
+
+	private SeriesKey(byte[] bytes, String bucket, int hash)
+	{
+		m_bytes = bytes;
+		m_length = bytes.length;
+		m_bucket = bucket;
+		m_hash = hash;
+	}
+
+	void set(byte[] bytes, int offset, int length, String bucket)
+	{
+		m_bytes = bytes;
+		m_offset = offset;
+		m_length = length;
+		m_bucket = bucket;
+
+		int hash = 1;
+		int end = offset + length;
+		for (int i = offset; i < end; i++)
+			hash = 31 * hash + bytes[i];
+
+		m_hash = 31 * hash + Objects.hashCode(bucket);
+	}
+
+	SeriesKey copy()
+	{
+		return new SeriesKey(Arrays.copyOfRange(m_bytes, m_offset, m_offset + m_length), m_bucket, m_hash);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o)
+			return true;
+		if (!(o instanceof SeriesKey))
+			return false;
+
+		SeriesKey other = (SeriesKey) o;
+		if (m_hash != other.m_hash || m_length != other.m_length || !Objects.equals(m_bucket, other.m_bucket))
+			return false;
+
+		for (int i = 0; i < m_length; i++)
+		{
+			if (m_bytes[m_offset + i] != other.m_bytes[other.m_offset + i])
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return m_hash;
+	}
+}
@@ -0,0 +1,339 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.annotation.InjectProperty;
+import org.kairosdb.metrics4j.MetricSourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ Limits the number of distinct series written for each measurement and bucket.
+ <p>
+ The series hashes of each measurement and bucket are kept in an exact set
+ of up to limit series, about 16 bytes each.  A series in the set is always
+ let through.  A series that isn't is added while the set has room and is
+ over the limit once it is full.  With the drop action lines of series over
+ the limit are dropped, with the count action they are only counted.  A
+ HyperLogLog sketch of all the series seen, in the set or not, is kept for the
+ reported estimate.  Only adding a series to a set takes a lock, lines of
+ series already in it are checked without one.
+ <p>
+ Sets and sketches start over every reset interval so the limit is on the
+ distinct series seen in an interval.  Pairs that saw no lines in an interval
+ are forgotten when the next one starts.  At most maxTracked measurement and
+ bucket pairs are tracked, lines of other pairs are let through and only
+ counted until an interval starts with room for them.
+ */
+public class SeriesLimiter
+{
+	private static final Logger logger = LoggerFactory.getLogger(SeriesLimiter.class);
+
+	public static final String MAX_SERIES_PROP = "kairosdb.influx.series_limit.max_series";
+	public static final String OVERRIDES_PROP = "kairosdb.influx.series_limit.overrides";
+	public static final String ACTION_PROP = "kairosdb.influx.series_limit.action";
+	public static final String RESET_MINUTES_PROP = "kairosdb.influx.series_limit.reset_minutes";
+	public static final String MAX_TRACKED_PROP = "kairosdb.influx.series_limit.max_tracked";
+
+	//4KB per sketch with a standard error of about 3%, only used for the estimate
+	private static final int PRECISION = 10;
+
+	public enum Action
+	{
+		DROP,
+		COUNT
+	}
+
+	//Bucket to measurement to tracker, a null bucket is stored as ""
+	private final Map<String, Map<String, Tracker>> m_trackers = new ConcurrentHashMap<>();
+	private final AtomicInteger m_trackerCount = new AtomicInteger();
+	private final LongAdder m_untracked = new LongAdder();
+	private volatile long m_resetTime;
+
+	@Inject(optional = true)
+	@Named(MAX_SERIES_PROP)
+	private long m_maxSeries = 0;
+
+	@Inject(optional = true)
+	@Named(RESET_MINUTES_PROP)
+	private long m_resetMinutes = 24 * 60;
+
+	@Inject(optional = true)
+	@Named(MAX_TRACKED_PROP)
+	private int m_maxTracked = 5000;
+
+	private Action m_action = Action.DROP;
+	private volatile ImmutableMap<String, Long> m_overrides = ImmutableMap.of();
+
+	public SeriesLimiter()
+	{
+		MetricSourceManager.addSource(InfluxStats.class.getName(), "seriesUntracked", ImmutableMap.of(),
+				"Lines let through without a series limit because too many measurements are tracked", m_untracked::sum);
+	}
+
+	public SeriesLimiter(long maxSeries, Action action, long resetMinutes, int maxTracked)
+	{
+		this();
+		m_maxSeries = maxSeries;
+		m_action = action;
+		m_resetMinutes = resetMinutes;
+		m_maxTracked = maxTracked;
+	}
+
+	@Inject(optional = true)
+	public void setAction(@Named(ACTION_PROP) String action)
+	{
+		m_action = Action.valueOf(action.trim().toUpperCase());
+	}
+
+	/**
+	 Each entry is a measurement and its limit separated by a colon, ie
+	 "procstat:50000".  A limit of 0 turns the limit off for the measurement.
+	 */
+	@InjectProperty(prop = OVERRIDES_PROP, optional = true)
+	public void setupOverrides(@Named(OVERRIDES_PROP) List<String> overrides)
+	{
+		ImmutableMap.Builder<String, Long> builder = ImmutableMap.builder();
+		for (String entry : overrides)
+		{
+			//Measurement names may contain colons, the limit is after the last one
+			int colon = entry.lastIndexOf(':');
+			try
+			{
+				checkArgument(colon > 0);
+				long limit = Long.parseLong(entry.substring(colon + 1).trim());
+				checkArgument(limit >= 0);
+				builder.put(entry.substring(0, colon), limit);
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new IllegalArgumentException("Invalid " + OVERRIDES_PROP + " entry '" + entry + "', expected measurement:limit");
+			}
+		}
+		m_overrides = builder.build();
+	}
+
+	public boolean isEnabled()
+	{
+		return m_maxSeries > 0 || !m_overrides.isEmpty();
+	}
+
+	/**
+	 Hash that identifies a series for allow()
+	 */
+	public static long hash(String measurement, ImmutableSortedMap<String, String> tags)
+	{
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		hasher.putUnencodedChars(measurement);
+		for (Map.Entry<String, String> tag : tags.entrySet())
+		{
+			hasher.putChar(',').putUnencodedChars(tag.getKey()).putChar('=').putUnencodedChars(tag.getValue());
+		}
+		return hasher.hash().asLong();
+	}
+
+	/**
+	 Counts the series and returns false if the line should be dropped because
+	 the series is new and the measurement is over its limit.
+	 @param seriesHash from hash()
+	 */
+	public boolean allow(String measurement, String bucket, long seriesHash)
+	{
+		return allow(measurement, bucket, seriesHash, System.currentTimeMillis());
+	}
+
+	/*package*/ boolean allow(String measurement, String bucket, long seriesHash, long now)
+	{
+		if (!isEnabled())
+			return true;
+
+		long limit = m_overrides.getOrDefault(measurement, m_maxSeries);
+		if (limit == 0)
+			return true;
+
+		if (now >= m_resetTime)
+			reset(now);
+
+		Tracker tracker = getTracker(measurement, bucket == null ? "" : bucket, limit);
+		if (tracker == null)
+		{
+			m_untracked.increment();
+			return true;
+		}
+
+		return tracker.allow(seriesHash);
+	}
+
+	/**
+	 @return null if too many measurements are already tracked
+	 */
+	private Tracker getTracker(String measurement, String bucket, long limit)
+	{
+		Map<String, Tracker> measurements = m_trackers.get(bucket);
+		Tracker tracker = measurements == null ? null : measurements.get(measurement);
+		if (tracker != null)
+			return tracker;
+
+		if (m_trackerCount.get() >= m_maxTracked)
+			return null;
+
+		return addTracker(measurement, bucket, limit);
+	}
+
+	/**
+	 Synchronized with reset() so a tracker isn't added to a bucket map that
+	 is being removed
+	 */
+	private synchronized Tracker addTracker(String measurement, String bucket, long limit)
+	{
+		Map<String, Tracker> measurements = m_trackers.get(bucket);
+		Tracker tracker = measurements == null ? null : measurements.get(measurement);
+		if (tracker != null)
+			return tracker;
+
+		if (m_trackerCount.get() >= m_maxTracked)
+			return null;
+
+		if (m_trackerCount.incrementAndGet() == m_maxTracked)
+			logger.warn("Tracking the series of {} measurements, the lines of new measurements are let through without a limit", m_maxTracked);
+
+		tracker = new Tracker(measurement, bucket, limit);
+		m_trackers.computeIfAbsent(bucket, b -> new ConcurrentHashMap<>()).put(measurement, tracker);
+		return tracker;
+	}
+
+	/**
+	 Starts a new interval, trackers that saw no lines in the last one are
+	 removed and the others start over
+	 */
+	private synchronized void reset(long now)
+	{
+		if (now < m_resetTime)
+			return;
+
+		Iterator<Map<String, Tracker>> buckets = m_trackers.values().iterator();
+		while (buckets.hasNext())
+		{
+			Iterator<Tracker> trackers = buckets.next().values().iterator();
+			while (trackers.hasNext())
+			{
+				Tracker tracker = trackers.next();
+				if (tracker.m_active)
+					tracker.reset();
+				else
+				{
+					trackers.remove();
+					tracker.removeSources();
+					m_trackerCount.decrementAndGet();
+				}
+			}
+		}
+		//Separate pass so a bucket map is only removed once it is empty
+		m_trackers.values().removeIf(Map::isEmpty);
+
+		m_resetTime = now + TimeUnit.MINUTES.toMillis(m_resetMinutes);
+	}
+
+	/**
+	 Estimated number of series of the measurement and bucket in the current
+	 interval, 0 if they are not tracked
+	 */
+	public long getEstimate(String measurement, String bucket)
+	{
+		Map<String, Tracker> measurements = m_trackers.get(bucket == null ? "" : bucket);
+		Tracker tracker = measurements == null ? null : measurements.get(measurement);
+		return tracker == null ? 0 : tracker.m_sketch.estimate();
+	}
+
+	private class Tracker
+	{
+		private final long m_limit;
+		private final ImmutableMap<String, String> m_tags;
+		private final LongAdder m_limited = new LongAdder();
+		private volatile HyperLogLog m_sketch = new HyperLogLog(PRECISION);
+		//Series let through in this interval, read without a lock, added to under this
+		private volatile LongHashSet m_known = new LongHashSet();
+		//Saw a line in this interval
+		private volatile boolean m_active;
+
+		private Tracker(String measurement, String bucket, long limit)
+		{
+			m_limit = limit;
+			m_tags = ImmutableMap.of("measurement", measurement, "bucket", bucket);
+
+			String className = InfluxStats.class.getName();
+			MetricSourceManager.addSource(className, "seriesEstimate", m_tags, "Estimated distinct series in the current interval", () -> m_sketch.estimate());
+			MetricSourceManager.addSource(className, "seriesLimited", m_tags, "Lines of new series over the series limit", m_limited::sum);
+		}
+
+		private void removeSources()
+		{
+			String className = InfluxStats.class.getName();
+			MetricSourceManager.removeSource(className, "seriesEstimate", m_tags);
+			MetricSourceManager.removeSource(className, "seriesLimited", m_tags);
+		}
+
+		private boolean allow(long seriesHash)
+		{
+			if (!m_active)
+				m_active = true;
+
+			m_sketch.offer(seriesHash);
+			if (isKnown(seriesHash))
+				return true;
+
+			m_limited.increment();
+			return m_action == Action.COUNT;
+		}
+
+		/**
+		 True if the series is in the set or was just added to it.  Series
+		 already in the set, nearly every line, are found without the lock.
+		 */
+		private boolean isKnown(long seriesHash)
+		{
+			LongHashSet known = m_known;
+			if (known.contains(seriesHash))
+				return true;
+			//A full set stays full until the next reset, no need for the lock to see that
+			if (known.size() >= m_limit)
+				return false;
+
+			return addKnown(seriesHash);
+		}
+
+		private synchronized boolean addKnown(long seriesHash)
+		{
+			LongHashSet known = m_known;
+			//Another thread may have added it since the unlocked check
+			if (known.contains(seriesHash))
+				return true;
+			if (known.size() >= m_limit)
+				return false;
+
+			known.add(seriesHash);
+			return true;
+		}
+
+		private synchronized void reset()
+		{
+			m_sketch = new HyperLogLog(PRECISION);
+			m_known = new LongHashSet();
+			m_active = false;
+		}
+	}
+}
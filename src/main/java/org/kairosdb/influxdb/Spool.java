@@ -0,0 +1,374 @@
+package org.kairosdb.influxdb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ Append only queue of records kept in segment files on disk.
+ <p>
+ Each record is its length and CRC32 followed by the payload.  Records are
+ appended to the newest segment until it reaches the segment size, then a new
+ segment is started.  A single reader reads the records in order and deletes
+ each segment once it has read past it.  The reader position is saved to a
+ checkpoint file by commit() so a restart continues after the last committed
+ record, records read but not committed are read again.
+ <p>
+ A record that fails its checksum, such as one cut short by a crash, ends
+ its segment, the reader counts it and moves on to the next segment.  Every
+ open starts a new segment so a partly written segment is never appended to.
+ <p>
+ append() is thread safe, next() and commit() must only be called by one
+ reader thread.
+ */
+public class Spool implements Closeable
+{
+	private static final Logger logger = LoggerFactory.getLogger(Spool.class);
+
+	/** Space append() expects in front of the payload for the length and checksum */
+	public static final int HEADER_SIZE = 8;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".spool";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final int MAX_RECORD_SIZE = 256 * 1024 * 1024;
+
+	private final Path m_directory;
+	private final long m_segmentSize;
+	private final long m_maxSize;
+	private final boolean m_fsync;
+	private final ConcurrentSkipListSet<Long> m_segments = new ConcurrentSkipListSet<>();
+	private final AtomicLong m_size = new AtomicLong();
+	private final LongAdder m_corrupt = new LongAdder();
+
+	//Guarded by this
+	private FileChannel m_writeChannel;
+	private long m_writeSegment;
+	private long m_writePosition;
+
+	//Only used by the reader
+	private final ByteBuffer m_header = ByteBuffer.allocate(HEADER_SIZE);
+	private ByteBuffer m_readBuffer = ByteBuffer.allocate(64 * 1024);
+	private FileChannel m_readChannel;
+	private long m_readSegment;
+	private long m_readPosition;
+
+	/**
+	 Opens the spool in the directory, records left by a previous run are read
+	 first
+	 @param segmentSize segments are rotated once they reach this many bytes
+	 @param maxSize append() refuses records once the segments on disk total this many bytes
+	 @param fsync force every append to disk
+	 */
+	public Spool(Path directory, long segmentSize, long maxSize, boolean fsync) throws IOException
+	{
+		checkArgument(segmentSize > 0, "segmentSize must be greater than 0");
+		checkArgument(maxSize > 0, "maxSize must be greater than 0");
+		m_directory = directory;
+		m_segmentSize = segmentSize;
+		m_maxSize = maxSize;
+		m_fsync = fsync;
+
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX))
+		{
+			for (Path file : files)
+			{
+				long segment = parseSegment(file.getFileName().toString());
+				if (segment >= 0)
+					m_segments.add(segment);
+			}
+		}
+
+		readCheckpoint();
+
+		//Segments before the checkpoint were fully read
+		while (!m_segments.isEmpty() && m_segments.first() < m_readSegment)
+			Files.deleteIfExists(segmentFile(m_segments.pollFirst()));
+		if (!m_segments.contains(m_readSegment))
+			m_readPosition = 0;
+		for (long segment : m_segments)
+			m_size.addAndGet(Files.size(segmentFile(segment)));
+
+		if (!m_segments.isEmpty())
+			logger.info("Spool {} holds {} bytes in {} segments", directory, m_size.get(), m_segments.size());
+
+		m_writeSegment = m_segments.isEmpty() ? m_readSegment : m_segments.last() + 1;
+		openWriteSegment();
+	}
+
+	private static long parseSegment(String fileName)
+	{
+		try
+		{
+			return Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	private Path segmentFile(long segment)
+	{
+		return m_directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+	}
+
+	private void readCheckpoint() throws IOException
+	{
+		Path checkpoint = m_directory.resolve(CHECKPOINT_FILE);
+		if (!Files.exists(checkpoint))
+			return;
+
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+		if (buffer.remaining() != 16)
+		{
+			logger.warn("Ignoring invalid spool checkpoint {}", checkpoint);
+			return;
+		}
+		m_readSegment = buffer.getLong();
+		m_readPosition = buffer.getLong();
+	}
+
+	private void openWriteSegment() throws IOException
+	{
+		m_writeChannel = FileChannel.open(segmentFile(m_writeSegment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		m_writePosition = 0;
+		m_segments.add(m_writeSegment);
+	}
+
+	/**
+	 Appends a record.  The first HEADER_SIZE bytes of the buffer are filled in
+	 with the length and checksum of the rest.
+	 @return false if the spool is full
+	 */
+	public boolean append(ByteBuffer record) throws IOException
+	{
+		int start = record.position();
+		int length = record.remaining() - HEADER_SIZE;
+		checkArgument(length >= 0 && length <= MAX_RECORD_SIZE, "Invalid record length %s", length);
+
+		ByteBuffer payload = record.duplicate();
+		//Buffer methods are called through Buffer so the class still links on Java 8
+		((Buffer) payload).position(start + HEADER_SIZE);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		record.putInt(start, length);
+		record.putInt(start + 4, (int) crc.getValue());
+
+		int size = record.remaining();
+		synchronized (this)
+		{
+			if (m_writeChannel == null)
+				throw new IOException("Spool is closed");
+			if (m_size.get() + size > m_maxSize)
+				return false;
+
+			if (m_writePosition != 0 && m_writePosition + size > m_segmentSize)
+			{
+				m_writeChannel.close();
+				m_writeSegment++;
+				openWriteSegment();
+			}
+
+			try
+			{
+				while (record.hasRemaining())
+					m_writeChannel.write(record);
+				if (m_fsync)
+					m_writeChannel.force(false);
+			}
+			catch (IOException e)
+			{
+				//Don't leave part of a record for the next one to follow
+				m_writeChannel.truncate(m_writePosition);
+				m_writeChannel.position(m_writePosition);
+				throw e;
+			}
+
+			m_writePosition += size;
+			m_size.addAndGet(size);
+		}
+		return true;
+	}
+
+	/**
+	 End of the readable records of the segment, -1 if the segment is complete
+	 */
+	private synchronized long getWriteLimit(long segment)
+	{
+		return segment == m_writeSegment ? m_writePosition : -1;
+	}
+
+	/**
+	 Reads the next record.
+	 @return the payload of the record, valid until the next call, or null if
+	 all records written so far were read
+	 */
+	public ByteBuffer next() throws IOException
+	{
+		while (true)
+		{
+			if (m_readChannel == null)
+			{
+				Long segment = m_segments.ceiling(m_readSegment);
+				if (segment == null)
+					return null;
+				if (segment != m_readSegment)
+					m_readPosition = 0;
+				m_readSegment = segment;
+				m_readChannel = FileChannel.open(segmentFile(segment), StandardOpenOption.READ);
+			}
+
+			long writeLimit = getWriteLimit(m_readSegment);
+			long limit = writeLimit == -1 ? m_readChannel.size() : writeLimit;
+
+			String error = null;
+			if (m_readPosition + HEADER_SIZE <= limit)
+			{
+				((Buffer) m_header).clear();
+				readFully(m_header, m_readPosition);
+				int length = m_header.getInt(0);
+				int checksum = m_header.getInt(4);
+				if (length < 0 || length > MAX_RECORD_SIZE || m_readPosition + HEADER_SIZE + length > limit)
+					error = "invalid length " + length;
+				else
+				{
+					if (m_readBuffer.capacity() < length)
+						m_readBuffer = ByteBuffer.allocate(Math.max(length, m_readBuffer.capacity() * 2));
+					((Buffer) m_readBuffer).clear();
+					((Buffer) m_readBuffer).limit(length);
+					readFully(m_readBuffer, m_readPosition + HEADER_SIZE);
+					((Buffer) m_readBuffer).flip();
+
+					CRC32 crc = new CRC32();
+					crc.update(m_readBuffer.array(), 0, length);
+					if ((int) crc.getValue() == checksum)
+					{
+						m_readPosition += HEADER_SIZE + length;
+						return m_readBuffer;
+					}
+					error = "checksum mismatch";
+				}
+			}
+			else if (writeLimit != -1)
+				return null;  //Caught up with the writer
+			else if (m_readPosition < limit)
+				error = "truncated record";
+
+			if (error != null)
+			{
+				m_corrupt.increment();
+				logger.error("Skipping the rest of spool segment {} at position {}: {}", segmentFile(m_readSegment), m_readPosition, error);
+				if (writeLimit != -1)
+				{
+					//The writer is still adding to this segment, continue after what is there now
+					m_readPosition = limit;
+					return null;
+				}
+			}
+
+			finishSegment();
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (m_readChannel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of " + segmentFile(m_readSegment));
+		}
+	}
+
+	private void finishSegment() throws IOException
+	{
+		long size = m_readChannel.size();
+		m_readChannel.close();
+		m_readChannel = null;
+		Files.deleteIfExists(segmentFile(m_readSegment));
+		m_segments.remove(m_readSegment);
+		m_size.addAndGet(-size);
+		m_readSegment++;
+		m_readPosition = 0;
+	}
+
+	/**
+	 Saves the position after the last record read so a restart continues from
+	 there
+	 */
+	public void commit() throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(16);
+		buffer.putLong(m_readSegment).putLong(m_readPosition);
+
+		Path temp = m_directory.resolve(CHECKPOINT_FILE + ".tmp");
+		Files.write(temp, buffer.array());
+		Files.move(temp, m_directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 Bytes in the segments on disk
+	 */
+	public long getSize()
+	{
+		return m_size.get();
+	}
+
+	public int getSegmentCount()
+	{
+		return m_segments.size();
+	}
+
+	/**
+	 Number of times the rest of a segment was skipped because of a bad record
+	 */
+	public long getCorrupt()
+	{
+		return m_corrupt.sum();
+	}
+
+	/**
+	 Closes the files, the reader must have stopped
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (m_readChannel != null)
+		{
+			m_readChannel.close();
+			m_readChannel = null;
+		}
+
+		synchronized (this)
+		{
+			if (m_writeChannel == null)
+				return;
+
+			m_writeChannel.close();
+			m_writeChannel = null;
+			//Nothing was written to it, the next open starts a new one anyway
+			if (m_writePosition == 0)
+			{
+				Files.deleteIfExists(segmentFile(m_writeSegment));
+				m_segments.remove(m_writeSegment);
+			}
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.StringDataPoint;
+import org.kairosdb.events.DataPointEvent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ Binary encoding of a batch of points for the spool.
+ <p>
+ Numbers are written as variable length integers.  Each string (metric
+ names, tag names and values) is written in full the first time it appears
+ in a batch and as its index after that, and timestamps are written as the
+ difference from the previous point, so batches of the same few series with
+ close timestamps encode to a few bytes per point.
+ <p>
+ Only long, double and string points can be encoded, see canEncode().
+ Not thread safe, an encoder is reused for one batch at a time.
+ */
+public class SpoolCodec
+{
+	private static final byte LONG_TYPE = 1;
+	private static final byte DOUBLE_TYPE = 2;
+	private static final byte STRING_TYPE = 3;
+
+	private final Map<String, Integer> m_strings = new HashMap<>();
+	private byte[] m_buffer = new byte[16 * 1024];
+	private int m_size;
+
+	public static boolean canEncode(DataPoint dataPoint)
+	{
+		return dataPoint.isLong() || dataPoint.isDouble() || dataPoint instanceof StringDataPoint;
+	}
+
+	/**
+	 Encodes the events after headerSize reserved bytes.  The returned buffer
+	 is only valid until the next call.
+	 @param events events that pass canEncode()
+	 @return buffer positioned at 0 holding the header space and the encoded events
+	 */
+	public ByteBuffer encode(List<DataPointEvent> events, int headerSize)
+	{
+		m_strings.clear();
+		m_size = headerSize;
+		long lastTimestamp = 0;
+
+		writeVarLong(events.size());
+		for (DataPointEvent event : events)
+		{
+			writeString(event.getMetricName());
+			ImmutableSortedMap<String, String> tags = event.getTags();
+			writeVarLong(tags.size());
+			for (Map.Entry<String, String> tag : tags.entrySet())
+			{
+				writeString(tag.getKey());
+				writeString(tag.getValue());
+			}
+			writeVarLong(event.getTtl());
+
+			DataPoint dataPoint = event.getDataPoint();
+			writeVarLong(zigZag(dataPoint.getTimestamp() - lastTimestamp));
+			lastTimestamp = dataPoint.getTimestamp();
+			if (dataPoint.isLong())
+			{
+				writeByte(LONG_TYPE);
+				writeVarLong(zigZag(dataPoint.getLongValue()));
+			}
+			else if (dataPoint.isDouble())
+			{
+				writeByte(DOUBLE_TYPE);
+				writeLong(Double.doubleToRawLongBits(dataPoint.getDoubleValue()));
+			}
+			else
+			{
+				writeByte(STRING_TYPE);
+				writeBytes(((StringDataPoint) dataPoint).getValue().getBytes(UTF_8));
+			}
+		}
+
+		return ByteBuffer.wrap(m_buffer, 0, m_size);
+	}
+
+	/**
+	 Decodes the events of a batch written by encode()
+	 @throws IllegalArgumentException if the batch is malformed
+	 */
+	public static List<DataPointEvent> decode(ByteBuffer buffer)
+	{
+		try
+		{
+			List<String> strings = new ArrayList<>();
+			int count = (int) readVarLong(buffer);
+			List<DataPointEvent> events = new ArrayList<>(Math.min(count, buffer.remaining()));
+			long timestamp = 0;
+			for (int i = 0; i < count; i++)
+			{
+				String metricName = readString(buffer, strings);
+				int tagCount = (int) readVarLong(buffer);
+				ImmutableSortedMap.Builder<String, String> tags = ImmutableSortedMap.naturalOrder();
+				for (int j = 0; j < tagCount; j++)
+					tags.put(readString(buffer, strings), readString(buffer, strings));
+				int ttl = (int) readVarLong(buffer);
+
+				timestamp += unZigZag(readVarLong(buffer));
+				DataPoint dataPoint;
+				byte type = buffer.get();
+				switch (type)
+				{
+					case LONG_TYPE:
+						dataPoint = new LongDataPoint(timestamp, unZigZag(readVarLong(buffer)));
+						break;
+					case DOUBLE_TYPE:
+						dataPoint = new DoubleDataPoint(timestamp, Double.longBitsToDouble(buffer.getLong()));
+						break;
+					case STRING_TYPE:
+						dataPoint = new StringDataPoint(timestamp, new String(readBytes(buffer), UTF_8));
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown point type " + type);
+				}
+				events.add(new DataPointEvent(metricName, tags.build(), dataPoint, ttl));
+			}
+			return events;
+		}
+		catch (RuntimeException e)
+		{
+			//Buffer underflow, bad string index or duplicate tag
+			throw new IllegalArgumentException("Malformed spool batch", e);
+		}
+	}
+
+	private void ensureCapacity(int extra)
+	{
+		if (m_size + extra > m_buffer.length)
+			m_buffer = Arrays.copyOf(m_buffer, Math.max(m_buffer.length * 2, m_size + extra));
+	}
+
+	private void writeByte(byte value)
+	{
+		ensureCapacity(1);
+		m_buffer[m_size++] = value;
+	}
+
+	private void writeLong(long value)
+	{
+		ensureCapacity(8);
+		for (int shift = 56; shift >= 0; shift -= 8)
+			m_buffer[m_size++] = (byte) (value >>> shift);
+	}
+
+	private void writeVarLong(long value)
+	{
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0)
+		{
+			m_buffer[m_size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		m_buffer[m_size++] = (byte) value;
+	}
+
+	private void writeBytes(byte[] bytes)
+	{
+		writeVarLong(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, m_buffer, m_size, bytes.length);
+		m_size += bytes.length;
+	}
+
+	/**
+	 0 followed by the string the first time, index + 1 after that
+	 */
+	private void writeString(String value)
+	{
+		Integer index = m_strings.get(value);
+		if (index != null)
+		{
+			writeVarLong(index + 1);
+			return;
+		}
+
+		m_strings.put(value, m_strings.size());
+		writeVarLong(0);
+		writeBytes(value.getBytes(UTF_8));
+	}
+
+	private static long readVarLong(ByteBuffer buffer)
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Variable length integer too long");
+	}
+
+	private static byte[] readBytes(ByteBuffer buffer)
+	{
+		int length = (int) readVarLong(buffer);
+		if (length < 0 || length > buffer.remaining())
+			throw new IllegalArgumentException("Invalid length " + length);
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static String readString(ByteBuffer buffer, List<String> strings)
+	{
+		int index = (int) readVarLong(buffer);
+		if (index != 0)
+			return strings.get(index - 1);
+
+		String value = new String(readBytes(buffer), UTF_8);
+		strings.add(value);
+		return value;
+	}
+
+	private static long zigZag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value)
+	{
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
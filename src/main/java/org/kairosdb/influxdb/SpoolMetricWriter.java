@@ -0,0 +1,328 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.events.DataPointEvent;
+import org.kairosdb.metrics4j.MetricSourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ MetricWriter that appends points to a Spool on local disk and posts them to
+ the event bus from a replay thread, so a slow backend holds up the replay
+ thread instead of the request threads.
+ <p>
+ Points are spooled in batches as they come from a MetricBatch.  The replay
+ thread commits its position in the spool about once a second, points spooled
+ but not replayed when Kairos stops are posted after the next start.  Points
+ posted after the last commit before a crash are posted again.
+ <p>
+ Points written before the service is started or after it is stopped, points
+ the spool can't encode, points the spool fails to write and points that
+ don't fit in a full spool are posted directly on the calling thread.  A full
+ spool so slows writers down to the pace of the backend instead of losing
+ points the client was told were written, points posted directly can get
+ ahead of points still in the spool.
+ */
+public class SpoolMetricWriter extends MetricWriter implements KairosDBService
+{
+	private static final Logger logger = LoggerFactory.getLogger(SpoolMetricWriter.class);
+
+	public static final String ENABLED_PROP = "kairosdb.influx.spool.enabled";
+	public static final String DIRECTORY_PROP = "kairosdb.influx.spool.directory";
+	public static final String SEGMENT_SIZE_PROP = "kairosdb.influx.spool.segment_size_mb";
+	public static final String MAX_SIZE_PROP = "kairosdb.influx.spool.max_size_mb";
+	public static final String FSYNC_PROP = "kairosdb.influx.spool.fsync";
+
+	private static final long COMMIT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final ThreadLocal<SpoolCodec> m_codec = ThreadLocal.withInitial(SpoolCodec::new);
+	private final LongAdder m_overflowed = new LongAdder();
+	private final LongAdder m_replayed = new LongAdder();
+
+	private volatile Spool m_spool;
+	private volatile Replayer m_replayer;
+
+	@Inject(optional = true)
+	@Named(DIRECTORY_PROP)
+	private String m_directory = "influx_spool";
+
+	@Inject(optional = true)
+	@Named(SEGMENT_SIZE_PROP)
+	private long m_segmentSizeMb = 64;
+
+	@Inject(optional = true)
+	@Named(MAX_SIZE_PROP)
+	private long m_maxSizeMb = 1024;
+
+	@Inject(optional = true)
+	@Named(FSYNC_PROP)
+	private boolean m_fsync = false;
+
+	@Inject
+	public SpoolMetricWriter(FilterEventBus eventBus)
+	{
+		super(eventBus);
+
+		ImmutableMap<String, String> tags = ImmutableMap.of();
+		String className = InfluxStats.class.getName();
+		MetricSourceManager.addSource(className, "spoolSize", tags, "Bytes of points in the spool", this::getSpoolSize);
+		MetricSourceManager.addSource(className, "spoolOverflow", tags, "Points posted by the writing thread because the spool was full", m_overflowed::sum);
+		MetricSourceManager.addSource(className, "spoolReplayed", tags, "Points posted from the spool", m_replayed::sum);
+		MetricSourceManager.addSource(className, "spoolCorrupt", tags, "Spool segments cut short by a bad record", () ->
+		{
+			Spool spool = m_spool;
+			return spool == null ? 0 : spool.getCorrupt();
+		});
+	}
+
+	public SpoolMetricWriter(FilterEventBus eventBus, String directory, long segmentSizeMb, long maxSizeMb)
+	{
+		this(eventBus);
+		m_directory = directory;
+		m_segmentSizeMb = segmentSizeMb;
+		m_maxSizeMb = maxSizeMb;
+	}
+
+	@Override
+	public void start() throws KairosDBException
+	{
+		checkArgument(m_segmentSizeMb > 0, SEGMENT_SIZE_PROP + " must be greater than 0");
+		checkArgument(m_maxSizeMb >= m_segmentSizeMb, MAX_SIZE_PROP + " must not be less than " + SEGMENT_SIZE_PROP);
+
+		Spool spool;
+		try
+		{
+			spool = new Spool(Paths.get(m_directory), m_segmentSizeMb * 1024 * 1024, m_maxSizeMb * 1024 * 1024, m_fsync);
+		}
+		catch (IOException e)
+		{
+			throw new KairosDBException("Unable to open spool " + m_directory, e);
+		}
+
+		logger.info("Spooling points to {}", m_directory);
+		Replayer replayer = new Replayer(spool);
+		replayer.start();
+		m_replayer = replayer;
+		m_spool = spool;
+	}
+
+	/**
+	 Stops the replay thread and closes the spool, points not replayed yet stay
+	 in the spool for the next start
+	 */
+	@Override
+	public void stop()
+	{
+		Spool spool = m_spool;
+		Replayer replayer = m_replayer;
+		if (spool == null)
+			return;
+
+		m_spool = null;
+		m_replayer = null;
+		replayer.m_running = false;
+		replayStopping();
+		LockSupport.unpark(replayer);
+		try
+		{
+			replayer.join(TimeUnit.SECONDS.toMillis(30));
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		try
+		{
+			spool.close();
+		}
+		catch (IOException e)
+		{
+			logger.error("Error closing spool", e);
+		}
+	}
+
+	/**
+	 Called by stop() once the replay thread has been told to stop, before
+	 waiting for it to finish the record it is replaying
+	 */
+	void replayStopping()
+	{
+	}
+
+	@Override
+	public void write(String metricName, ImmutableSortedMap<String, String> tags, DataPoint dataPoint)
+	{
+		writeBatch(Collections.singletonList(new DataPointEvent(metricName, tags, dataPoint)));
+	}
+
+	@Override
+	public void writeBatch(List<DataPointEvent> events)
+	{
+		Spool spool = m_spool;
+		if (spool == null)
+		{
+			super.writeBatch(events);
+			return;
+		}
+
+		List<DataPointEvent> spooled = events;
+		for (DataPointEvent event : events)
+		{
+			if (!SpoolCodec.canEncode(event.getDataPoint()))
+			{
+				spooled = new ArrayList<>(events.size());
+				for (DataPointEvent e : events)
+				{
+					if (SpoolCodec.canEncode(e.getDataPoint()))
+						spooled.add(e);
+					else
+						publish(e);
+				}
+				break;
+			}
+		}
+		if (spooled.isEmpty())
+			return;
+
+		ByteBuffer record = m_codec.get().encode(spooled, Spool.HEADER_SIZE);
+		try
+		{
+			if (!spool.append(record))
+			{
+				m_overflowed.add(spooled.size());
+				super.writeBatch(spooled);
+			}
+		}
+		catch (IOException e)
+		{
+			logger.error("Unable to write to spool, posting points directly", e);
+			super.writeBatch(spooled);
+		}
+	}
+
+	/**
+	 Bytes in the spool segments on disk
+	 */
+	public long getSpoolSize()
+	{
+		Spool spool = m_spool;
+		return spool == null ? 0 : spool.getSize();
+	}
+
+	/**
+	 Number of points posted on the writing thread because the spool was full
+	 */
+	public long getOverflowed()
+	{
+		return m_overflowed.sum();
+	}
+
+	public long getReplayed()
+	{
+		return m_replayed.sum();
+	}
+
+	private class Replayer extends Thread
+	{
+		private final Spool m_replaySpool;
+		private volatile boolean m_running = true;
+
+		private Replayer(Spool spool)
+		{
+			super("influx-spool-replay");
+			setDaemon(true);
+			m_replaySpool = spool;
+		}
+
+		@Override
+		public void run()
+		{
+			long lastCommit = System.nanoTime();
+			boolean uncommitted = false;
+			while (m_running)
+			{
+				try
+				{
+					ByteBuffer record = m_replaySpool.next();
+					if (record != null)
+					{
+						replay(record);
+						uncommitted = true;
+					}
+
+					if (uncommitted && (record == null || System.nanoTime() - lastCommit >= COMMIT_INTERVAL_NANOS))
+					{
+						m_replaySpool.commit();
+						lastCommit = System.nanoTime();
+						uncommitted = false;
+					}
+
+					if (record == null)
+						LockSupport.parkNanos(IDLE_NANOS);
+				}
+				catch (IOException e)
+				{
+					logger.error("Error reading spool", e);
+					LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+				}
+			}
+
+			try
+			{
+				m_replaySpool.commit();
+			}
+			catch (IOException e)
+			{
+				logger.error("Error saving spool checkpoint", e);
+			}
+		}
+
+		private void replay(ByteBuffer record)
+		{
+			List<DataPointEvent> events;
+			try
+			{
+				events = SpoolCodec.decode(record);
+			}
+			catch (IllegalArgumentException e)
+			{
+				logger.error("Skipping unreadable spool record", e);
+				return;
+			}
+
+			for (DataPointEvent event : events)
+			{
+				try
+				{
+					publish(event);
+				}
+				catch (Exception e)
+				{
+					logger.error("Error publishing data point for " + event.getMetricName(), e);
+				}
+			}
+			m_replayed.add(events.size());
+		}
+	}
+}
@@ -0,0 +1,701 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.apache.commons.lang3.StringUtils;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.metrics4j.MetricSourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.kairosdb.influxdb.InfluxResource.MAX_ERROR_LINE_LENGTH;
+
+/**
+ Receives newline delimited line protocol over long lived TCP connections,
+ without HTTP framing.  There is no response, parse errors are only logged
+ and counted.
+ <p>
+ A few I/O threads each run a selector over their share of the connections.
+ Each connection reads into its own buffer, which is reused and only grows
+ for lines longer than it.  Once a read completes one or more lines they are
+ handed to the parse threads and reads on the connection are paused until
+ they are written, so the lines of a connection are written in order and the
+ partial line at the end of the buffer is kept for the next read.
+ <p>
+ At most maxInFlight batches of lines are parsed or waiting to be parsed at
+ a time.  When the parse threads can't keep up connections stay paused with
+ their lines waiting, which fills the socket buffers and makes the producers
+ wait instead of piling lines up in memory.
+ <p>
+ Disabled unless a port is configured.
+ */
+public class TcpListener implements KairosDBService
+{
+	private static final Logger logger = LoggerFactory.getLogger(TcpListener.class);
+
+	public static final String PORT_PROP = "kairosdb.influx.tcp.port";
+	public static final String BIND_ADDRESS_PROP = "kairosdb.influx.tcp.bind_address";
+	public static final String DATABASE_PROP = "kairosdb.influx.tcp.database";
+	public static final String PRECISION_PROP = "kairosdb.influx.tcp.precision";
+	public static final String IO_THREADS_PROP = "kairosdb.influx.tcp.io_threads";
+	public static final String PARSE_THREADS_PROP = "kairosdb.influx.tcp.parse_threads";
+	public static final String MAX_IN_FLIGHT_PROP = "kairosdb.influx.tcp.max_in_flight";
+	public static final String BUFFER_SIZE_PROP = "kairosdb.influx.tcp.buffer_size";
+	public static final String MAX_LINE_LENGTH_PROP = "kairosdb.influx.tcp.max_line_length";
+
+	private static final InfluxStats stats = MetricSourceManager.getSource(InfluxStats.class);
+	private static final ParseException.Reason[] PARSE_ERROR_REASONS = ParseException.Reason.values();
+
+	private final InfluxResource m_resource;
+	private final InfluxParser m_parser;
+	private final AtomicInteger m_connections = new AtomicInteger();
+	private final LongAdder m_bytes = new LongAdder();
+	private final LongAdder m_paused = new LongAdder();
+	private final AtomicLong m_bufferBytes = new AtomicLong();
+	private final SampledLogger m_errorLog = new SampledLogger(logger, 10, 1, TimeUnit.MINUTES);
+	//Connections with lines ready that are waiting for a parse slot
+	private final Queue<Connection> m_waiting = new ConcurrentLinkedQueue<>();
+
+	@Inject(optional = true)
+	@Named(PORT_PROP)
+	private int m_port = 0;
+
+	@Inject(optional = true)
+	@Named(BIND_ADDRESS_PROP)
+	private String m_bindAddress = "0.0.0.0";
+
+	@Inject(optional = true)
+	@Named(DATABASE_PROP)
+	private String m_database = "tcp";
+
+	@Inject(optional = true)
+	@Named(PRECISION_PROP)
+	private String m_precision = "ns";
+
+	@Inject(optional = true)
+	@Named(IO_THREADS_PROP)
+	private int m_ioThreadCount = 2;
+
+	@Inject(optional = true)
+	@Named(PARSE_THREADS_PROP)
+	private int m_parseThreadCount = Runtime.getRuntime().availableProcessors();
+
+	@Inject(optional = true)
+	@Named(MAX_IN_FLIGHT_PROP)
+	private int m_maxInFlight = 0;  //0 is twice the parse threads
+
+	@Inject(optional = true)
+	@Named(BUFFER_SIZE_PROP)
+	private int m_bufferSize = 64 * 1024;
+
+	@Inject(optional = true)
+	@Named(MAX_LINE_LENGTH_PROP)
+	private int m_maxLineLength = 1024 * 1024;
+
+	private volatile boolean m_running;
+	private TimeUnit m_timePrecision;
+	private ServerSocketChannel m_serverChannel;
+	private IoLoop[] m_loops;
+	private ExecutorService m_parsePool;
+	private Semaphore m_inFlight;
+	private int m_inFlightLimit;
+
+	@Inject
+	public TcpListener(InfluxResource resource, InfluxParser parser)
+	{
+		m_resource = checkNotNull(resource, "resource must not be null");
+		m_parser = checkNotNull(parser, "parser must not be null");
+
+		String className = InfluxStats.class.getName();
+		ImmutableMap<String, String> tags = ImmutableMap.of();
+		MetricSourceManager.addSource(className, "tcpConnections", tags, "Open TCP connections", m_connections::get);
+		MetricSourceManager.addSource(className, "tcpBytes", tags, "Bytes received over TCP", m_bytes::sum);
+		MetricSourceManager.addSource(className, "tcpPaused", tags,
+				"Times lines of a TCP connection waited because the parse threads were busy", m_paused::sum);
+		MetricSourceManager.addSource(className, "tcpBufferBytes", tags, "Bytes of the read buffers of open TCP connections", m_bufferBytes::get);
+	}
+
+	public TcpListener(InfluxResource resource, InfluxParser parser, int port, int ioThreadCount, int parseThreadCount,
+			int maxInFlight, int bufferSize)
+	{
+		this(resource, parser);
+		m_port = port;
+		m_ioThreadCount = ioThreadCount;
+		m_parseThreadCount = parseThreadCount;
+		m_maxInFlight = maxInFlight;
+		m_bufferSize = bufferSize;
+	}
+
+	@Override
+	public void start() throws KairosDBException
+	{
+		if (m_port == 0)
+			return;
+
+		checkArgument(m_ioThreadCount > 0, IO_THREADS_PROP + " must be greater than 0");
+		checkArgument(m_parseThreadCount > 0, PARSE_THREADS_PROP + " must be greater than 0");
+		checkArgument(m_bufferSize > 0, BUFFER_SIZE_PROP + " must be greater than 0");
+		checkArgument(m_maxLineLength >= m_bufferSize, MAX_LINE_LENGTH_PROP + " must not be less than " + BUFFER_SIZE_PROP);
+
+		m_timePrecision = InfluxResource.parsePrecision(m_precision);
+		m_inFlightLimit = m_maxInFlight > 0 ? m_maxInFlight : m_parseThreadCount * 2;
+		m_inFlight = new Semaphore(m_inFlightLimit);
+		m_parsePool = Executors.newFixedThreadPool(m_parseThreadCount,
+				new ThreadFactoryBuilder().setNameFormat("influx-tcp-parser-%d").setDaemon(true).build());
+
+		try
+		{
+			m_loops = new IoLoop[m_ioThreadCount];
+			for (int i = 0; i < m_loops.length; i++)
+				m_loops[i] = new IoLoop(i);
+
+			m_serverChannel = ServerSocketChannel.open();
+			m_serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			m_serverChannel.bind(new InetSocketAddress(m_bindAddress, m_port));
+			m_serverChannel.configureBlocking(false);
+			m_serverChannel.register(m_loops[0].m_selector, SelectionKey.OP_ACCEPT);
+		}
+		catch (IOException e)
+		{
+			throw new KairosDBException("Unable to listen for TCP on " + m_bindAddress + ":" + m_port, e);
+		}
+
+		logger.info("Listening for TCP on {}", getLocalAddress());
+		m_running = true;
+		for (IoLoop loop : m_loops)
+			loop.start();
+	}
+
+	/**
+	 Closes the listening socket and every connection once the lines already
+	 read are written
+	 */
+	@Override
+	public void stop()
+	{
+		if (!m_running)
+			return;
+
+		m_running = false;
+		for (IoLoop loop : m_loops)
+		{
+			loop.m_selector.wakeup();
+			try
+			{
+				loop.join(TimeUnit.SECONDS.toMillis(30));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		//Write the lines already read, including those of paused connections
+		try
+		{
+			while (true)
+			{
+				if (!m_inFlight.tryAcquire(m_inFlightLimit, 30, TimeUnit.SECONDS))
+				{
+					logger.warn("TCP lines were not written within 30 seconds");
+					break;
+				}
+				if (m_waiting.isEmpty())
+					break;
+				m_inFlight.release(m_inFlightLimit);
+				submitWaiting();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		m_parsePool.shutdown();
+
+		for (IoLoop loop : m_loops)
+			loop.closeAll();
+		closeQuietly(m_serverChannel);
+	}
+
+	/**
+	 Address the listening socket is bound to, null if not listening
+	 */
+	public SocketAddress getLocalAddress()
+	{
+		try
+		{
+			return m_serverChannel == null ? null : m_serverChannel.getLocalAddress();
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	public int getConnectionCount()
+	{
+		return m_connections.get();
+	}
+
+	/**
+	 Times a connection had lines ready while every parse slot was taken
+	 */
+	public long getPaused()
+	{
+		return m_paused.sum();
+	}
+
+	/**
+	 Summed capacity of the read buffers of the open connections
+	 */
+	public long getBufferBytes()
+	{
+		return m_bufferBytes.get();
+	}
+
+	/**
+	 Accepts the next pending connection, null if there is none
+	 */
+	SocketChannel acceptChannel(ServerSocketChannel serverChannel) throws IOException
+	{
+		return serverChannel.accept();
+	}
+
+	void configureChannel(SocketChannel channel) throws IOException
+	{
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+	}
+
+	private static void closeQuietly(Closeable closeable)
+	{
+		try
+		{
+			if (closeable != null)
+				closeable.close();
+		}
+		catch (IOException e)
+		{
+			logger.debug("Error closing", e);
+		}
+	}
+
+	/**
+	 Hands the lines of the connection to the parse threads, or queues the
+	 connection until a parse slot frees up
+	 */
+	private void submit(Connection connection)
+	{
+		if (m_inFlight.tryAcquire())
+		{
+			m_parsePool.execute(() -> parse(connection));
+			return;
+		}
+
+		m_paused.increment();
+		m_waiting.add(connection);
+		//A slot may have been released between the failed acquire and the add
+		submitWaiting();
+	}
+
+	private void submitWaiting()
+	{
+		while (!m_waiting.isEmpty() && m_inFlight.tryAcquire())
+		{
+			Connection connection = m_waiting.poll();
+			if (connection == null)
+			{
+				m_inFlight.release();
+				return;
+			}
+			m_parsePool.execute(() -> parse(connection));
+		}
+	}
+
+	private void parse(Connection connection)
+	{
+		try
+		{
+			connection.parseLines();
+		}
+		catch (Exception e)
+		{
+			if (m_errorLog.shouldLog())
+				logger.error("Error writing TCP lines", e);
+		}
+		finally
+		{
+			m_inFlight.release();
+			connection.m_loop.resume(connection);
+			submitWaiting();
+		}
+	}
+
+	private class Connection
+	{
+		private final SocketChannel m_channel;
+		private final IoLoop m_loop;
+		private final SelectionKey m_key;
+		private ByteBuffer m_buffer = ByteBuffer.allocate(m_bufferSize);
+		private int m_linesEnd;  //End of the complete lines handed to the parse threads
+		private boolean m_endOfStream;
+
+		private Connection(SocketChannel channel, IoLoop loop) throws IOException
+		{
+			m_channel = channel;
+			m_loop = loop;
+			m_key = channel.register(loop.m_selector, SelectionKey.OP_READ, this);
+			m_bufferBytes.addAndGet(m_buffer.capacity());
+		}
+
+		/**
+		 Moves what is in the buffer to a new one of the given capacity
+		 */
+		private void resize(int capacity)
+		{
+			ByteBuffer resized = ByteBuffer.allocate(capacity);
+			//Called through Buffer, ByteBuffer's covariant overrides don't exist on Java 8
+			((Buffer) m_buffer).flip();
+			resized.put(m_buffer);
+			m_bufferBytes.addAndGet(capacity - m_buffer.capacity());
+			m_buffer = resized;
+		}
+
+		/**
+		 Called on the I/O thread when the channel is readable
+		 */
+		private void read() throws IOException
+		{
+			if (!m_buffer.hasRemaining())
+			{
+				//Room for a line longer than the buffer
+				if (m_buffer.capacity() >= m_maxLineLength)
+					throw new IOException("Line longer than " + m_maxLineLength + " bytes");
+				resize(Math.min(m_buffer.capacity() * 2, m_maxLineLength));
+			}
+
+			int scanStart = m_buffer.position();
+			int read = m_channel.read(m_buffer);
+			if (read < 0)
+			{
+				m_endOfStream = true;
+				//The last line doesn't need a newline, there is always room as a full buffer grows before the read
+				if (m_buffer.position() != 0)
+					m_buffer.put((byte) '\n');
+			}
+			else
+				m_bytes.add(read);
+
+			int linesEnd = 0;
+			for (int i = m_buffer.position() - 1; i >= scanStart; i--)
+			{
+				if (m_buffer.get(i) == '\n')
+				{
+					linesEnd = i + 1;
+					break;
+				}
+			}
+
+			if (linesEnd != 0)
+			{
+				m_linesEnd = linesEnd;
+				m_key.interestOps(0);
+				submit(this);
+			}
+			else if (m_endOfStream)
+				m_loop.close(this);
+		}
+
+		/**
+		 Called on a parse thread while reads are paused
+		 */
+		private void parseLines()
+		{
+			MetricBatch batch = m_resource.createBatch(m_database);
+			byte[] buffer = m_buffer.array();
+			long success = 0;
+			long failed = 0;
+			long[] parseErrors = null;
+
+			int lineStart = 0;
+			for (int i = 0; i < m_linesEnd; i++)
+			{
+				if (buffer[i] != '\n')
+					continue;
+
+				if (i != lineStart)
+				{
+					try
+					{
+						success += m_parser.parseLine(buffer, lineStart, i - lineStart, m_timePrecision, m_database, batch);
+					}
+					catch (ParseException e)
+					{
+						failed++;
+						if (parseErrors == null)
+							parseErrors = new long[PARSE_ERROR_REASONS.length];
+						parseErrors[e.getReason().ordinal()]++;
+						if (m_errorLog.shouldLog())
+						{
+							String line = new String(buffer, lineStart, i - lineStart, UTF_8);
+							logger.error("Failed to parse TCP line '" + StringUtils.abbreviate(line, MAX_ERROR_LINE_LENGTH) +
+									"' because " + StringUtils.abbreviate(e.getMessage(), MAX_ERROR_LINE_LENGTH));
+						}
+					}
+				}
+				lineStart = i + 1;
+			}
+			batch.flush();
+
+			stats.ingest("success").put(success);
+			if (failed != 0)
+			{
+				stats.ingest("failed").put(failed);
+				for (int i = 0; i < parseErrors.length; i++)
+				{
+					if (parseErrors[i] != 0)
+						stats.parseErrors(PARSE_ERROR_REASONS[i].getCode()).put(parseErrors[i]);
+				}
+			}
+		}
+
+		/**
+		 Called on the I/O thread once the lines are written
+		 */
+		private void afterParse()
+		{
+			//Keep the partial line for the next read
+			int position = m_buffer.position();
+			((Buffer) m_buffer).position(m_linesEnd);
+			((Buffer) m_buffer).limit(position);
+			m_buffer.compact();
+			m_linesEnd = 0;
+
+			//Don't hold on to the buffer of a long line once the rest fits a normal one
+			if (m_buffer.capacity() > m_bufferSize && m_buffer.position() < m_bufferSize)
+				resize(m_bufferSize);
+
+			if (m_endOfStream || !m_running)
+				m_loop.close(this);
+			else if (m_key.isValid())
+				m_key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private class IoLoop extends Thread
+	{
+		private final Selector m_selector;
+		private final Queue<Connection> m_resumed = new ConcurrentLinkedQueue<>();
+		private final Queue<SocketChannel> m_pending = new ConcurrentLinkedQueue<>();
+		private final List<Connection> m_open = new ArrayList<>();
+		private int m_nextLoop;
+
+		private IoLoop(int id) throws IOException
+		{
+			super("influx-tcp-io-" + id);
+			setDaemon(true);
+			m_selector = Selector.open();
+		}
+
+		private void resume(Connection connection)
+		{
+			m_resumed.add(connection);
+			m_selector.wakeup();
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (m_running)
+				{
+					try
+					{
+						select();
+					}
+					catch (IOException e)
+					{
+						if (m_errorLog.shouldLog())
+							logger.error("Error in TCP I/O loop", e);
+					}
+				}
+			}
+			catch (ClosedSelectorException e)
+			{
+				logger.error("TCP I/O loop stopped", e);
+			}
+		}
+
+		private void select() throws IOException
+		{
+			m_selector.select();
+
+			Connection resumed;
+			while ((resumed = m_resumed.poll()) != null)
+				resumed.afterParse();
+
+			Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+			while (keys.hasNext())
+			{
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid())
+					continue;
+
+				if (key.isAcceptable())
+					accept();
+				else if (key.isReadable())
+					read((Connection) key.attachment());
+			}
+
+			//Connections registered by the accepting loop
+			registerPending();
+		}
+
+		/**
+		 A failure to accept or set up one connection doesn't stop the loop,
+		 it is the only one accepting
+		 */
+		private void accept()
+		{
+			while (true)
+			{
+				SocketChannel channel;
+				try
+				{
+					channel = acceptChannel(m_serverChannel);
+				}
+				catch (IOException e)
+				{
+					if (m_errorLog.shouldLog())
+						logger.error("Error accepting TCP connection: " + e.getMessage());
+					return;
+				}
+				if (channel == null)
+					return;
+
+				try
+				{
+					configureChannel(channel);
+				}
+				catch (IOException e)
+				{
+					if (m_errorLog.shouldLog())
+						logger.error("Closing TCP connection that failed to set up: " + e.getMessage());
+					closeQuietly(channel);
+					continue;
+				}
+				m_connections.incrementAndGet();
+
+				IoLoop loop = m_loops[m_nextLoop];
+				m_nextLoop = (m_nextLoop + 1) % m_loops.length;
+				loop.m_pending.add(channel);
+				if (loop != this)
+					loop.m_selector.wakeup();
+			}
+		}
+
+		private void registerPending()
+		{
+			SocketChannel channel;
+			while ((channel = m_pending.poll()) != null)
+			{
+				try
+				{
+					m_open.add(new Connection(channel, this));
+				}
+				catch (IOException e)
+				{
+					m_connections.decrementAndGet();
+					closeQuietly(channel);
+				}
+			}
+		}
+
+		private void read(Connection connection)
+		{
+			try
+			{
+				connection.read();
+			}
+			catch (IOException e)
+			{
+				if (m_errorLog.shouldLog())
+					logger.error("Closing TCP connection from " + remoteAddress(connection) + ": " + e.getMessage());
+				close(connection);
+			}
+		}
+
+		private String remoteAddress(Connection connection)
+		{
+			try
+			{
+				return String.valueOf(connection.m_channel.getRemoteAddress());
+			}
+			catch (IOException e)
+			{
+				return "unknown";
+			}
+		}
+
+		private void close(Connection connection)
+		{
+			if (m_open.remove(connection))
+			{
+				connection.m_key.cancel();
+				closeQuietly(connection.m_channel);
+				m_connections.decrementAndGet();
+				m_bufferBytes.addAndGet(-connection.m_buffer.capacity());
+			}
+		}
+
+		/**
+		 Called after the loop and parse threads stopped
+		 */
+		private void closeAll()
+		{
+			for (Connection connection : new ArrayList<>(m_open))
+				close(connection);
+			SocketChannel channel;
+			while ((channel = m_pending.poll()) != null)
+			{
+				m_connections.decrementAndGet();
+				closeQuietly(channel);
+			}
+			closeQuietly(m_selector);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package org.kairosdb.influxdb;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ Hashed timer wheel of long entries.  Each entry is put in the bucket of its
+ deadline tick, advancing the wheel visits only the buckets of the ticks that
+ passed so scheduling and expiring are constant time no matter how many
+ entries are waiting.  Deadlines more than one turn of the wheel away stay in
+ their bucket until the turn they are due.
+ <p>
+ Entries can't be cancelled, the expiry callback decides whether an entry is
+ still current and returns the deadline it should be kept until instead.
+ <p>
+ Not thread safe.
+ */
+public class TimerWheel
+{
+	/**
+	 Called for each entry whose bucket is visited
+	 */
+	public interface Expiry
+	{
+		/**
+		 @param entry entry that was scheduled
+		 @param tick tick being expired
+		 @return -1 to remove the entry, or the deadline tick to keep it until
+		 if it is not due yet
+		 */
+		long expire(long entry, long tick);
+	}
+
+	private final int m_mask;
+	private final long[][] m_buckets;
+	private final int[] m_sizes;
+	private long m_tick;  //Last tick that was expired
+
+	/**
+	 @param size number of buckets, rounded up to a power of 2
+	 @param startTick ticks up to and including this one are treated as expired
+	 */
+	public TimerWheel(int size, long startTick)
+	{
+		checkArgument(size > 0, "size must be greater than 0");
+		int buckets = Integer.highestOneBit(size);
+		if (buckets < size)
+			buckets <<= 1;
+		m_mask = buckets - 1;
+		m_buckets = new long[buckets][];
+		m_sizes = new int[buckets];
+		m_tick = startTick;
+	}
+
+	/**
+	 Schedules the entry to expire at the deadline tick, deadlines that already
+	 passed expire on the next advance
+	 */
+	public void schedule(long entry, long deadline)
+	{
+		add((int) (Math.max(deadline, m_tick + 1) & m_mask), entry);
+	}
+
+	private void add(int bucket, long entry)
+	{
+		long[] entries = m_buckets[bucket];
+		int size = m_sizes[bucket];
+		if (entries == null)
+			entries = m_buckets[bucket] = new long[8];
+		else if (size == entries.length)
+			entries = m_buckets[bucket] = Arrays.copyOf(entries, size * 2);
+		entries[size] = entry;
+		m_sizes[bucket] = size + 1;
+	}
+
+	/**
+	 Visits the buckets of the ticks after the last advance up to and including
+	 tick
+	 */
+	public void advance(long tick, Expiry expiry)
+	{
+		//Every bucket is visited at most once per call
+		long first = Math.max(m_tick + 1, tick - m_mask);
+		for (long current = first; current <= tick; current++)
+		{
+			int bucket = (int) (current & m_mask);
+			long[] entries = m_buckets[bucket];
+			int size = m_sizes[bucket];
+			int kept = 0;
+			for (int i = 0; i < size; i++)
+			{
+				long deadline = expiry.expire(entries[i], tick);
+				if (deadline >= 0)
+				{
+					if ((deadline & m_mask) == bucket)
+						entries[kept++] = entries[i];
+					else
+						//Rescheduled to a different bucket, it is visited later in this call or on a later turn
+						add((int) (deadline & m_mask), entries[i]);
+				}
+			}
+			m_sizes[bucket] = kept;
+		}
+		m_tick = Math.max(m_tick, tick);
+	}
+
+	/**
+	 Number of entries waiting in the wheel
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (int bucketSize : m_sizes)
+			size += bucketSize;
+		return size;
+	}
+}
@@ -1,31 +1,65 @@
 package org.kairosdb.influxdb;
 
 import java.text.CharacterIterator;
-import java.text.StringCharacterIterator;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
-public class Tokenizer
+/**
+ Tokenizer for lines that have already been decoded to a String.
+ <p>
+ Lines without escapes or double quotes, which is most of them, are split with
+ a simple scan for delimiters.  Other lines fall back to tracking quote and
+ escape state for each character.
+ <p>
+ A Tokenizer can be reused by calling reset() with the next line.  The buffers
+ are kept between lines and only grow when a longer line is seen so a reused
+ Tokenizer does not allocate once it has warmed up.  Instances are not thread safe.
+ */
+public class Tokenizer implements LineTokenizer
 {
-	private char[] m_parsedInput;
-	private List<Integer> m_tokens = new ArrayList<>();
-	private int m_tokenIteratorPos = 0;
-	private int m_lastTokenPos = -1;
+	private static final int INITIAL_SIZE = 256;
+
+	private char[] m_parsedInput = new char[INITIAL_SIZE];
+	private int[] m_tokens = new int[INITIAL_SIZE / 4];
+	private int m_tokenCount;
+	private int m_tokenIteratorPos;
+	private int m_lastTokenPos;
+
+	public Tokenizer()
+	{
+	}
 
 	public Tokenizer(String input) throws ParseException
 	{
-		m_parsedInput = new char[input.length()+1];
+		reset(input);
+	}
+
+	/**
+	 Tokenizes a new line reusing the buffers from the previous line.
+	 */
+	public void reset(String input) throws ParseException
+	{
+		int length = input.length();
+		if (m_parsedInput.length < length + 1)
+			m_parsedInput = new char[Math.max(length + 1, m_parsedInput.length * 2)];
+
+		m_tokenCount = 0;
+		m_tokenIteratorPos = 0;
+		m_lastTokenPos = -1;
+
+		if (tokenizeFast(input, length))
+			return;
 
-		CharacterIterator inputIterator = new StringCharacterIterator(input);
+		//Slow path, start over tracking quotes and escapes
+		m_tokenCount = 0;
 		int insertPos = 0;
 		boolean startQuote = false;
 
-		while (inputIterator.current() != CharacterIterator.DONE)
+		for (int i = 0; i < length; i++)
 		{
-			char c = inputIterator.current();
+			char c = input.charAt(i);
 
 			if (!startQuote && (c == ',' || c == '=' || Character.isWhitespace(c)))
-				m_tokens.add(insertPos);
+				addToken(insertPos);
 
 			if (c == '"')
 				startQuote = !startQuote;
@@ -33,39 +67,138 @@ public class Tokenizer
 			if (c == '\\')
 			{
 				//move past the \ and place the next in the buffer
-				c = inputIterator.next();
+				i++;
+				c = i < length ? input.charAt(i) : CharacterIterator.DONE;
 			}
 
 			m_parsedInput[insertPos] = c;
-			inputIterator.next();
 			insertPos ++;
 		}
 
 		if (startQuote)
 		{
-			throw new ParseException("Invalid syntax: unterminated double quote");
+			throw new ParseException(ParseException.Reason.UNTERMINATED_QUOTE, "Invalid syntax: unterminated double quote");
 		}
 
 		m_parsedInput[insertPos] = CharacterIterator.DONE;
-		m_tokens.add(insertPos);
+		addToken(insertPos);
 	}
 
+	/**
+	 Copies the line in bulk and scans it for delimiters.  Gives up as soon as an
+	 escape or quote is found as those lines need the per character handling.
+	 */
+	private boolean tokenizeFast(String input, int length)
+	{
+		char[] parsedInput = m_parsedInput;
+		input.getChars(0, length, parsedInput, 0);
+		for (int i = 0; i < length; i++)
+		{
+			char c = parsedInput[i];
+			if (c < 128)
+			{
+				byte charClass = ASCII_CLASS[c];
+				if (charClass == DELIMITER)
+					addToken(i);
+				else if (charClass == ESCAPE_OR_QUOTE)
+					return false;
+			}
+			else if (Character.isWhitespace(c))
+				addToken(i);
+		}
+
+		parsedInput[length] = CharacterIterator.DONE;
+		addToken(length);
+		return true;
+	}
+
+	private void addToken(int pos)
+	{
+		if (m_tokenCount == m_tokens.length)
+			m_tokens = Arrays.copyOf(m_tokens, m_tokens.length * 2);
+
+		m_tokens[m_tokenCount++] = pos;
+	}
+
+	@Override
 	public void next() throws ParseException
 	{
-		m_lastTokenPos = m_tokens.get(m_tokenIteratorPos);
+		m_lastTokenPos = m_tokens[m_tokenIteratorPos];
 		m_tokenIteratorPos++;
-		if (m_tokenIteratorPos == m_tokens.size())
-			throw new ParseException("Premature end of input.");
+		if (m_tokenIteratorPos == m_tokenCount)
+			throw new ParseException(ParseException.Reason.PREMATURE_END, "Premature end of input.");
 	}
 
+	@Override
 	public char getChar()
 	{
-		return m_parsedInput[m_tokens.get(m_tokenIteratorPos)];
+		return m_parsedInput[m_tokens[m_tokenIteratorPos]];
 	}
 
+	@Override
 	public String getString()
 	{
 		int stringStart = m_lastTokenPos+1;
-		return new String(m_parsedInput, stringStart, m_tokens.get(m_tokenIteratorPos) - stringStart);
+		return new String(m_parsedInput, stringStart, m_tokens[m_tokenIteratorPos] - stringStart);
+	}
+
+	@Override
+	public int getLength()
+	{
+		return m_tokens[m_tokenIteratorPos] - (m_lastTokenPos+1);
+	}
+
+	@Override
+	public char charAt(int index)
+	{
+		return m_parsedInput[m_lastTokenPos + 1 + index];
+	}
+
+	@Override
+	public int tokenHashCode()
+	{
+		int hash = 0;
+		int end = m_tokens[m_tokenIteratorPos];
+		for (int i = m_lastTokenPos+1; i < end; i++)
+			hash = 31 * hash + m_parsedInput[i];
+		return hash;
+	}
+
+	@Override
+	public boolean tokenEquals(String value)
+	{
+		int start = m_lastTokenPos+1;
+		int length = m_tokens[m_tokenIteratorPos] - start;
+		if (length != value.length())
+			return false;
+
+		for (int i = 0; i < length; i++)
+		{
+			if (m_parsedInput[start + i] != value.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int getPosition()
+	{
+		return m_tokenIteratorPos;
+	}
+
+	@Override
+	public void setPosition(int position)
+	{
+		m_tokenIteratorPos = position;
+		m_lastTokenPos = position == 0 ? -1 : m_tokens[position - 1];
+	}
+
+	/**
+	 Series keys are only built from raw bytes, see ByteTokenizer
+	 */
+	@Override
+	public boolean getSeriesKey(SeriesKey key, String bucket)
+	{
+		return false;
 	}
 }
@@ -0,0 +1,404 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.apache.commons.lang3.StringUtils;
+import org.kairosdb.core.KairosDBService;
+import org.kairosdb.core.exception.KairosDBException;
+import org.kairosdb.metrics4j.MetricSourceManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.kairosdb.influxdb.InfluxResource.MAX_ERROR_LINE_LENGTH;
+
+/**
+ Receives line protocol over UDP like the influx UDP input.  Each datagram
+ holds one or more lines, there is no response so parse errors are only
+ logged and counted.
+ <p>
+ A receiver thread reads datagrams into a fixed pool of heap buffers and
+ queues them for the parser threads, which parse the lines in place in the
+ buffers' arrays and write the points through the same batches as write
+ requests.  The buffers are on the heap rather than direct.  Receiving into
+ a heap buffer costs one copy from the channel's cached direct buffer, the
+ same copy the tokenizer would need to read a direct buffer, and a heap
+ buffer is then tokenized in place.  When the parsers fall
+ behind and every buffer is queued, further datagrams are dropped and
+ counted as overflow rather than left to back up in the socket.  Datagrams
+ that fill a whole buffer may have been cut short and are dropped as
+ truncated.  Datagrams the kernel drops because the socket receive buffer is
+ full are not seen here, they show up in the receive errors of netstat -su.
+ <p>
+ Disabled unless a port is configured.
+ */
+public class UdpListener implements KairosDBService
+{
+	private static final Logger logger = LoggerFactory.getLogger(UdpListener.class);
+
+	public static final String PORT_PROP = "kairosdb.influx.udp.port";
+	public static final String BIND_ADDRESS_PROP = "kairosdb.influx.udp.bind_address";
+	public static final String DATABASE_PROP = "kairosdb.influx.udp.database";
+	public static final String PRECISION_PROP = "kairosdb.influx.udp.precision";
+	public static final String THREADS_PROP = "kairosdb.influx.udp.threads";
+	public static final String BUFFERS_PROP = "kairosdb.influx.udp.buffers";
+	public static final String MAX_DATAGRAM_SIZE_PROP = "kairosdb.influx.udp.max_datagram_size";
+	public static final String RECEIVE_BUFFER_PROP = "kairosdb.influx.udp.receive_buffer_bytes";
+
+	private static final InfluxStats stats = MetricSourceManager.getSource(InfluxStats.class);
+	private static final ParseException.Reason[] PARSE_ERROR_REASONS = ParseException.Reason.values();
+	private static final long POLL_MILLIS = 100;
+
+	private final InfluxResource m_resource;
+	private final InfluxParser m_parser;
+	private final LongAdder m_datagrams = new LongAdder();
+	private final LongAdder m_bytes = new LongAdder();
+	private final LongAdder m_overflow = new LongAdder();
+	private final LongAdder m_truncated = new LongAdder();
+	private final SampledLogger m_errorLog = new SampledLogger(logger, 10, 1, TimeUnit.MINUTES);
+
+	@Inject(optional = true)
+	@Named(PORT_PROP)
+	private int m_port = 0;
+
+	@Inject(optional = true)
+	@Named(BIND_ADDRESS_PROP)
+	private String m_bindAddress = "0.0.0.0";
+
+	@Inject(optional = true)
+	@Named(DATABASE_PROP)
+	private String m_database = "udp";
+
+	@Inject(optional = true)
+	@Named(PRECISION_PROP)
+	private String m_precision = "ns";
+
+	@Inject(optional = true)
+	@Named(THREADS_PROP)
+	private int m_threadCount = 2;
+
+	@Inject(optional = true)
+	@Named(BUFFERS_PROP)
+	private int m_bufferCount = 256;
+
+	@Inject(optional = true)
+	@Named(MAX_DATAGRAM_SIZE_PROP)
+	private int m_maxDatagramSize = 64 * 1024;
+
+	@Inject(optional = true)
+	@Named(RECEIVE_BUFFER_PROP)
+	private int m_receiveBufferBytes = 8 * 1024 * 1024;
+
+	private volatile boolean m_running;
+	private DatagramChannel m_channel;
+	private BlockingQueue<ByteBuffer> m_free;
+	private BlockingQueue<ByteBuffer> m_received;
+	private List<Thread> m_threads;
+
+	@Inject
+	public UdpListener(InfluxResource resource, InfluxParser parser)
+	{
+		m_resource = checkNotNull(resource, "resource must not be null");
+		m_parser = checkNotNull(parser, "parser must not be null");
+
+		String className = InfluxStats.class.getName();
+		MetricSourceManager.addSource(className, "udpDatagrams", ImmutableMap.of(), "Datagrams received", m_datagrams::sum);
+		MetricSourceManager.addSource(className, "udpBytes", ImmutableMap.of(), "Bytes of datagrams received", m_bytes::sum);
+		MetricSourceManager.addSource(className, "udpDropped", ImmutableMap.of("reason", "overflow"),
+				"Datagrams dropped because every buffer was waiting to be parsed", m_overflow::sum);
+		MetricSourceManager.addSource(className, "udpDropped", ImmutableMap.of("reason", "truncated"),
+				"Datagrams dropped because they filled a whole buffer", m_truncated::sum);
+	}
+
+	public UdpListener(InfluxResource resource, InfluxParser parser, int port, int threadCount, int bufferCount, int maxDatagramSize)
+	{
+		this(resource, parser);
+		m_port = port;
+		m_threadCount = threadCount;
+		m_bufferCount = bufferCount;
+		m_maxDatagramSize = maxDatagramSize;
+	}
+
+	@Override
+	public void start() throws KairosDBException
+	{
+		if (m_port == 0)
+			return;
+
+		checkArgument(m_threadCount > 0, THREADS_PROP + " must be greater than 0");
+		checkArgument(m_bufferCount > 0, BUFFERS_PROP + " must be greater than 0");
+		checkArgument(m_maxDatagramSize > 0, MAX_DATAGRAM_SIZE_PROP + " must be greater than 0");
+
+		try
+		{
+			m_channel = DatagramChannel.open();
+			m_channel.setOption(StandardSocketOptions.SO_RCVBUF, m_receiveBufferBytes);
+			m_channel.bind(new InetSocketAddress(m_bindAddress, m_port));
+			int receiveBuffer = m_channel.getOption(StandardSocketOptions.SO_RCVBUF);
+			if (receiveBuffer < m_receiveBufferBytes)
+				logger.warn("UDP receive buffer is {} bytes instead of {}, raise net.core.rmem_max to allow more", receiveBuffer, m_receiveBufferBytes);
+		}
+		catch (IOException e)
+		{
+			throw new KairosDBException("Unable to listen for UDP on " + m_bindAddress + ":" + m_port, e);
+		}
+
+		m_free = new ArrayBlockingQueue<>(m_bufferCount);
+		m_received = new ArrayBlockingQueue<>(m_bufferCount);
+		for (int i = 0; i < m_bufferCount; i++)
+			m_free.add(ByteBuffer.allocate(m_maxDatagramSize));
+
+		logger.info("Listening for UDP on {}", getLocalAddress());
+		m_running = true;
+		m_threads = new ArrayList<>();
+		m_threads.add(new Thread(this::receive, "influx-udp-receiver"));
+		for (int i = 0; i < m_threadCount; i++)
+			m_threads.add(new Thread(this::parse, "influx-udp-parser-" + i));
+		for (Thread thread : m_threads)
+		{
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 Closes the socket, datagrams already received are still written
+	 */
+	@Override
+	public void stop()
+	{
+		if (!m_running)
+			return;
+
+		m_running = false;
+		try
+		{
+			m_channel.close();
+		}
+		catch (IOException e)
+		{
+			logger.error("Error closing UDP channel", e);
+		}
+
+		for (Thread thread : m_threads)
+		{
+			try
+			{
+				thread.join(TimeUnit.SECONDS.toMillis(30));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 Address the socket is bound to, null if not listening
+	 */
+	public SocketAddress getLocalAddress()
+	{
+		try
+		{
+			return m_channel == null ? null : m_channel.getLocalAddress();
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 Datagrams dropped because every buffer was waiting to be parsed
+	 */
+	public long getOverflow()
+	{
+		return m_overflow.sum();
+	}
+
+	/**
+	 Datagrams dropped because they may not have fit in a buffer
+	 */
+	public long getTruncated()
+	{
+		return m_truncated.sum();
+	}
+
+	private void receive()
+	{
+		//Datagrams that arrive while every buffer is queued are read into this and dropped
+		ByteBuffer overflow = ByteBuffer.allocate(m_maxDatagramSize);
+		while (m_running)
+		{
+			ByteBuffer buffer = m_free.poll();
+			boolean dropped = buffer == null;
+			if (dropped)
+				buffer = overflow;
+
+			//Called through Buffer, the ByteBuffer overrides don't exist before Java 9
+			((Buffer) buffer).clear();
+			try
+			{
+				m_channel.receive(buffer);
+			}
+			catch (IOException e)
+			{
+				if (!dropped)
+					m_free.add(buffer);
+				if (e instanceof ClosedChannelException)
+					break;
+				logger.error("Error receiving UDP datagram", e);
+				continue;
+			}
+
+			m_datagrams.increment();
+			m_bytes.add(buffer.position());
+			if (dropped)
+			{
+				m_overflow.increment();
+			}
+			else if (!buffer.hasRemaining())
+			{
+				m_truncated.increment();
+				m_free.add(buffer);
+			}
+			else
+			{
+				((Buffer) buffer).flip();
+				m_received.add(buffer);
+			}
+		}
+	}
+
+	private void parse()
+	{
+		TimeUnit precision = InfluxResource.parsePrecision(m_precision);
+		MetricBatch batch = m_resource.createBatch(m_database);
+		long success = 0;
+		long failed = 0;
+		long[] parseErrors = new long[PARSE_ERROR_REASONS.length];
+
+		while (m_running || !m_received.isEmpty())
+		{
+			ByteBuffer datagram = m_received.poll();
+			if (datagram == null)
+			{
+				//Caught up, write what has been parsed so far
+				flush(batch);
+				if (success != 0 || failed != 0)
+				{
+					recordStats(success, failed, parseErrors);
+					success = failed = 0;
+				}
+
+				try
+				{
+					datagram = m_received.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					break;
+				}
+				if (datagram == null)
+					continue;
+			}
+
+			try
+			{
+				byte[] buffer = datagram.array();
+				int end = datagram.arrayOffset() + datagram.limit();
+				int lineStart = datagram.arrayOffset() + datagram.position();
+				for (int i = lineStart; i <= end; i++)
+				{
+					if (i != end && buffer[i] != '\n')
+						continue;
+
+					if (i != lineStart)
+					{
+						try
+						{
+							success += m_parser.parseLine(buffer, lineStart, i - lineStart, precision, m_database, batch);
+						}
+						catch (ParseException e)
+						{
+							failed++;
+							parseErrors[e.getReason().ordinal()]++;
+							if (m_errorLog.shouldLog())
+							{
+								String line = new String(buffer, lineStart, i - lineStart, UTF_8);
+								logger.error("Failed to parse UDP line '" + StringUtils.abbreviate(line, MAX_ERROR_LINE_LENGTH) +
+										"' because " + StringUtils.abbreviate(e.getMessage(), MAX_ERROR_LINE_LENGTH));
+							}
+						}
+					}
+					lineStart = i + 1;
+				}
+			}
+			catch (Exception e)
+			{
+				if (m_errorLog.shouldLog())
+					logger.error("Error writing UDP datagram", e);
+			}
+			finally
+			{
+				m_free.add(datagram);
+			}
+		}
+
+		flush(batch);
+		recordStats(success, failed, parseErrors);
+	}
+
+	/**
+	 A failed write is logged like one while parsing so the parser keeps
+	 running and keeps handing buffers back
+	 */
+	private void flush(MetricBatch batch)
+	{
+		try
+		{
+			batch.flush();
+		}
+		catch (Exception e)
+		{
+			if (m_errorLog.shouldLog())
+				logger.error("Error writing UDP datagram", e);
+		}
+	}
+
+	private static void recordStats(long success, long failed, long[] parseErrors)
+	{
+		stats.ingest("success").put(success);
+		if (failed == 0)
+			return;
+
+		stats.ingest("failed").put(failed);
+		for (int i = 0; i < parseErrors.length; i++)
+		{
+			if (parseErrors[i] != 0)
+			{
+				stats.parseErrors(PARSE_ERROR_REASONS[i].getCode()).put(parseErrors[i]);
+				parseErrors[i] = 0;
+			}
+		}
+	}
+}
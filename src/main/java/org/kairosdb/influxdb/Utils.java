@@ -4,9 +4,15 @@ public class Utils
 {
 	public static void checkParsing(boolean condition, String errorMessage)
 			throws ParseException
+	{
+		checkParsing(condition, ParseException.Reason.INVALID_SYNTAX, errorMessage);
+	}
+
+	public static void checkParsing(boolean condition, ParseException.Reason reason, String errorMessage)
+			throws ParseException
 	{
 		if (!condition) {
-			throw new ParseException(errorMessage);
+			throw new ParseException(reason, errorMessage);
 		}
 	}
 }
@@ -0,0 +1,332 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import org.kairosdb.core.annotation.InjectProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ Limits the points and bytes per second written to each bucket (or database).
+ <p>
+ Each limited bucket has a token bucket for points and one for bytes that
+ refill at the configured rate and hold up to burstSeconds worth of tokens.
+ A request is let in unless its buckets are in debt.  The bytes it is known to
+ send, from its Content-Length or its buffered body, are taken in the same
+ atomic step, so concurrent requests put the bucket in debt before they are
+ processed and the ones after are refused.  Its points, and any bytes that
+ weren't known, are taken afterwards, which can put the buckets in debt too.
+ Requests to a bucket in debt are refused until the debt is paid back and
+ are told how long that takes.
+ <p>
+ A token bucket is a single atomic time at which it is full again, so
+ requests of the same bucket never lock each other.  Limits are looked up
+ from a concurrent map by bucket name, at most maxBuckets buckets get their
+ own limits and the rest share one.
+ */
+public class WriteRateLimiter
+{
+	private static final Logger logger = LoggerFactory.getLogger(WriteRateLimiter.class);
+
+	public static final String POINTS_PER_SECOND_PROP = "kairosdb.influx.rate_limit.points_per_second";
+	public static final String BYTES_PER_SECOND_PROP = "kairosdb.influx.rate_limit.bytes_per_second";
+	public static final String BURST_SECONDS_PROP = "kairosdb.influx.rate_limit.burst_seconds";
+	public static final String OVERRIDES_PROP = "kairosdb.influx.rate_limit.overrides";
+	public static final String MAX_BUCKETS_PROP = "kairosdb.influx.rate_limit.max_buckets";
+
+	//Bucket name the limits of buckets past maxBuckets are reported under
+	static final String OTHER_BUCKET = "_other";
+
+	//Limit of buckets without any limit
+	private static final Limit NO_LIMIT = new Limit("", 0, 0, 0, 0);
+
+	@Inject(optional = true)
+	@Named(POINTS_PER_SECOND_PROP)
+	private long m_pointsPerSecond = 0;
+
+	@Inject(optional = true)
+	@Named(BYTES_PER_SECOND_PROP)
+	private long m_bytesPerSecond = 0;
+
+	@Inject(optional = true)
+	@Named(BURST_SECONDS_PROP)
+	private long m_burstSeconds = 1;
+
+	@Inject(optional = true)
+	@Named(MAX_BUCKETS_PROP)
+	private int m_maxBuckets = 1000;
+
+	//Points and bytes per second of each overridden bucket
+	private volatile ImmutableMap<String, long[]> m_overrides = ImmutableMap.of();
+	//A null bucket is stored as ""
+	private volatile ConcurrentHashMap<String, Limit> m_limits = new ConcurrentHashMap<>();
+	private volatile Limit m_otherLimit;
+
+	public WriteRateLimiter()
+	{
+	}
+
+	public WriteRateLimiter(long pointsPerSecond, long bytesPerSecond, long burstSeconds, int maxBuckets)
+	{
+		m_pointsPerSecond = pointsPerSecond;
+		m_bytesPerSecond = bytesPerSecond;
+		m_burstSeconds = burstSeconds;
+		m_maxBuckets = maxBuckets;
+	}
+
+	/**
+	 Each entry is a bucket, its points per second and its bytes per second
+	 separated by colons, ie "telegraf:50000:10000000".  0 turns that limit
+	 off for the bucket.
+	 */
+	@InjectProperty(prop = OVERRIDES_PROP, optional = true)
+	public void setupOverrides(@Named(OVERRIDES_PROP) List<String> overrides)
+	{
+		ImmutableMap.Builder<String, long[]> builder = ImmutableMap.builder();
+		for (String entry : overrides)
+		{
+			//Bucket names may contain colons, the limits are after the last two
+			int bytesColon = entry.lastIndexOf(':');
+			int pointsColon = bytesColon > 0 ? entry.lastIndexOf(':', bytesColon - 1) : -1;
+			try
+			{
+				checkArgument(pointsColon > 0);
+				long points = Long.parseLong(entry.substring(pointsColon + 1, bytesColon).trim());
+				long bytes = Long.parseLong(entry.substring(bytesColon + 1).trim());
+				checkArgument(points >= 0 && bytes >= 0);
+				builder.put(entry.substring(0, pointsColon), new long[]{points, bytes});
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new IllegalArgumentException("Invalid " + OVERRIDES_PROP + " entry '" + entry + "', expected bucket:points:bytes");
+			}
+		}
+
+		m_overrides = builder.build();
+		m_limits = new ConcurrentHashMap<>();
+		m_otherLimit = null;
+	}
+
+	public boolean isEnabled()
+	{
+		return m_pointsPerSecond > 0 || m_bytesPerSecond > 0 || !m_overrides.isEmpty();
+	}
+
+	/**
+	 @return limit of the bucket, null if it isn't limited
+	 */
+	public Limit getLimit(String bucket)
+	{
+		if (!isEnabled())
+			return null;
+
+		String key = bucket == null ? "" : bucket;
+		ConcurrentHashMap<String, Limit> limits = m_limits;
+		Limit limit = limits.get(key);
+		if (limit == null)
+		{
+			long[] override = m_overrides.get(key);
+			long points = override == null ? m_pointsPerSecond : override[0];
+			long bytes = override == null ? m_bytesPerSecond : override[1];
+			if (points == 0 && bytes == 0)
+				limit = NO_LIMIT;
+			else if (limits.size() >= m_maxBuckets && override == null)
+				limit = getOtherLimit();
+			else
+			{
+				long now = System.nanoTime();
+				limit = limits.computeIfAbsent(key, k -> new Limit(k, points, bytes, m_burstSeconds, now));
+			}
+		}
+
+		return limit == NO_LIMIT ? null : limit;
+	}
+
+	private Limit getOtherLimit()
+	{
+		Limit limit = m_otherLimit;
+		if (limit == null)
+		{
+			synchronized (this)
+			{
+				limit = m_otherLimit;
+				if (limit == null)
+				{
+					logger.warn("Rate limiting {} buckets, further buckets share one limit", m_maxBuckets);
+					limit = new Limit(OTHER_BUCKET, m_pointsPerSecond, m_bytesPerSecond, m_burstSeconds, System.nanoTime());
+					m_otherLimit = limit;
+				}
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 Points and bytes limits of a bucket
+	 */
+	public static class Limit
+	{
+		private final String m_bucket;
+		private final TokenBucket m_points;
+		private final TokenBucket m_bytes;
+
+		private Limit(String bucket, long pointsPerSecond, long bytesPerSecond, long burstSeconds, long now)
+		{
+			m_bucket = bucket;
+			m_points = pointsPerSecond > 0 ? new TokenBucket(pointsPerSecond, burstSeconds, now) : null;
+			m_bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, burstSeconds, now) : null;
+		}
+
+		/**
+		 Name the limit is reported under
+		 */
+		public String getBucket()
+		{
+			return m_bucket;
+		}
+
+		/**
+		 @return 0 if a request may write now, otherwise the seconds until it
+		 may
+		 */
+		public long getRetryAfterSeconds()
+		{
+			return getRetryAfterSeconds(System.nanoTime());
+		}
+
+		long getRetryAfterSeconds(long now)
+		{
+			long wait = 0;
+			if (m_points != null)
+				wait = m_points.getWaitNanos(now);
+			if (m_bytes != null)
+				wait = Math.max(wait, m_bytes.getWaitNanos(now));
+
+			return toSeconds(wait);
+		}
+
+		/**
+		 Lets a request in if the buckets are not in debt and takes the bytes it
+		 is known to send
+		 @param bytes bytes the request is known to send, 0 if unknown
+		 @return 0 if the request may write, otherwise the seconds until it may
+		 */
+		public long tryAcquire(long bytes)
+		{
+			return tryAcquire(bytes, System.nanoTime());
+		}
+
+		long tryAcquire(long bytes, long now)
+		{
+			long wait = 0;
+			if (m_points != null)
+				wait = m_points.getWaitNanos(now);
+			if (wait == 0 && m_bytes != null)
+				wait = m_bytes.tryTake(bytes, now);
+
+			return toSeconds(wait);
+		}
+
+		private static long toSeconds(long waitNanos)
+		{
+			//Rounded up so a client retrying after that many seconds is let in
+			return (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+		}
+
+		/**
+		 Gives back the bytes tryAcquire() took for a request that was then
+		 turned away
+		 */
+		public void giveBack(long bytes)
+		{
+			take(0, -bytes, System.nanoTime());
+		}
+
+		/**
+		 Takes what a request wrote from the buckets
+		 */
+		public void take(long points, long bytes)
+		{
+			take(points, bytes, System.nanoTime());
+		}
+
+		void take(long points, long bytes, long now)
+		{
+			if (m_points != null)
+				m_points.take(points, now);
+			if (m_bytes != null)
+				m_bytes.take(bytes, now);
+		}
+	}
+
+	/**
+	 Token bucket kept as the time it is full again.  Taking tokens moves that
+	 time ahead by the time they take to refill, the bucket is in debt when it
+	 is more than the burst away.
+	 */
+	private static class TokenBucket
+	{
+		private final double m_nanosPerToken;
+		private final long m_burstNanos;
+		private final AtomicLong m_fullTime;
+
+		private TokenBucket(long perSecond, long burstSeconds, long now)
+		{
+			checkArgument(burstSeconds > 0, BURST_SECONDS_PROP + " must be greater than 0");
+			m_nanosPerToken = (double) TimeUnit.SECONDS.toNanos(1) / perSecond;
+			m_burstNanos = TimeUnit.SECONDS.toNanos(burstSeconds);
+			m_fullTime = new AtomicLong(now);
+		}
+
+		/**
+		 Nanoseconds until the bucket is out of debt, 0 if it isn't in debt
+		 */
+		private long getWaitNanos(long now)
+		{
+			long debt = m_fullTime.get() - now - m_burstNanos;
+			return debt < 0 ? 0 : debt;
+		}
+
+		/**
+		 Takes the tokens unless the bucket is in debt
+		 @return 0 if they were taken, otherwise nanoseconds until the bucket is
+		 out of debt
+		 */
+		private long tryTake(long tokens, long now)
+		{
+			long refill = (long) (tokens * m_nanosPerToken);
+			while (true)
+			{
+				long fullTime = m_fullTime.get();
+				long debt = fullTime - now - m_burstNanos;
+				if (debt > 0)
+					return debt;
+
+				long from = fullTime - now < 0 ? now : fullTime;
+				if (m_fullTime.compareAndSet(fullTime, from + refill))
+					return 0;
+			}
+		}
+
+		private void take(long tokens, long now)
+		{
+			long refill = (long) (tokens * m_nanosPerToken);
+			while (true)
+			{
+				long fullTime = m_fullTime.get();
+				//A full bucket doesn't keep filling
+				long from = fullTime - now < 0 ? now : fullTime;
+				if (m_fullTime.compareAndSet(fullTime, from + refill))
+					return;
+			}
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.DataPoint;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.StringDataPoint;
+import org.kairosdb.events.DataPointEvent;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class AggregatorTest
+{
+	private static final ImmutableSortedMap<String, String> TAGS = ImmutableSortedMap.of("host", "a");
+
+	private MetricWriter writer;
+	private List<DataPointEvent> written;
+	private Aggregator aggregator;
+
+	@Before
+	public void setup()
+	{
+		writer = mock(MetricWriter.class);
+		written = Collections.synchronizedList(new ArrayList<>());
+		doAnswer(invocation ->
+		{
+			written.addAll(invocation.getArgument(0));
+			return null;
+		}).when(writer).writeBatch(any());
+
+		aggregator = new Aggregator(writer);
+		aggregator.setupRules(Arrays.asList("cpu\\..*:avg:60", "net.bytes:sum:60", "mem\\..*:count:60", "disk.used:last:60"));
+		aggregator.start();
+	}
+
+	@After
+	public void tearDown()
+	{
+		aggregator.stop();
+	}
+
+	private boolean add(String metricName, DataPoint dataPoint, List<DataPointEvent> out)
+	{
+		return aggregator.add(metricName, "influx." + metricName, TAGS, dataPoint, out);
+	}
+
+	@Test
+	public void testWindowClosedByLaterPoint()
+	{
+		List<DataPointEvent> out = new ArrayList<>();
+		for (int i = 0; i < 60; i++)
+			assertThat(add("cpu.usage", new DoubleDataPoint(i * 1000L, i + 1), out)).isTrue();
+		assertThat(out).isEmpty();
+
+		assertThat(add("cpu.usage", new DoubleDataPoint(60_000L, 100), out)).isTrue();
+
+		assertThat(out).hasSize(1);
+		DataPointEvent event = out.get(0);
+		assertThat(event.getMetricName()).isEqualTo("influx.cpu.usage");
+		assertThat(event.getTags()).isEqualTo(TAGS);
+		assertThat(event.getDataPoint().getTimestamp()).isEqualTo(0);
+		assertThat(event.getDataPoint().getDoubleValue()).isEqualTo(30.5);
+	}
+
+	@Test
+	public void testNotAggregated()
+	{
+		List<DataPointEvent> out = new ArrayList<>();
+		assertThat(add("system.load", new DoubleDataPoint(0, 1), out)).isFalse();
+		assertThat(add("cpu.name", new StringDataPoint(0, "x"), out)).isFalse();
+		assertThat(out).isEmpty();
+	}
+
+	@Test
+	public void testLatePointsDropped()
+	{
+		List<DataPointEvent> out = new ArrayList<>();
+		assertThat(add("cpu.usage", new DoubleDataPoint(120_000L, 1), out)).isTrue();
+
+		//Taken but not written raw into the series of aggregates
+		assertThat(add("cpu.usage", new DoubleDataPoint(60_000L, 5), out)).isTrue();
+		assertThat(out).isEmpty();
+
+		aggregator.stop();
+		assertThat(written).hasSize(1);
+		assertThat(written.get(0).getDataPoint().getTimestamp()).isEqualTo(120_000L);
+		assertThat(written.get(0).getDataPoint().getDoubleValue()).isEqualTo(1);
+	}
+
+	@Test
+	public void testLatePointAfterIdleFlush()
+	{
+		List<DataPointEvent> out = new ArrayList<>();
+		add("cpu.usage", new DoubleDataPoint(0, 1), out);
+
+		long now = System.currentTimeMillis() / 1000;
+		aggregator.flushExpired(now + 121);
+		assertThat(written).hasSize(1);
+
+		//The window at 0 was written, a late point must not write it again
+		assertThat(add("cpu.usage", new DoubleDataPoint(30_000L, 2), out)).isTrue();
+		assertThat(aggregator.getSeriesCount()).isEqualTo(0);
+
+		//A later window opens as usual
+		assertThat(add("cpu.usage", new DoubleDataPoint(60_000L, 3), out)).isTrue();
+		assertThat(aggregator.getSeriesCount()).isEqualTo(1);
+		aggregator.stop();
+
+		assertThat(out).isEmpty();
+		assertThat(written).extracting(event -> event.getDataPoint().getTimestamp()).containsExactly(0L, 60_000L);
+		assertThat(written.get(1).getDataPoint().getDoubleValue()).isEqualTo(3);
+	}
+
+	@Test
+	public void testIdleSeriesForgotten()
+	{
+		List<DataPointEvent> out = new ArrayList<>();
+		add("cpu.usage", new DoubleDataPoint(0, 1), out);
+
+		long now = System.currentTimeMillis() / 1000;
+		aggregator.flushExpired(now + 121);
+		//Remembered for ten windows after it was written
+		aggregator.flushExpired(now + 121 + 601);
+
+		//Too late to be told apart from a new series
+		assertThat(add("cpu.usage", new DoubleDataPoint(30_000L, 2), out)).isTrue();
+		assertThat(aggregator.getSeriesCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testLongsAggregatedExactly()
+	{
+		aggregator.setupRules(Arrays.asList("min:min:60", "max:max:60", "last:last:60"));
+		long big = (1L << 53) + 1;
+
+		List<DataPointEvent> out = new ArrayList<>();
+		for (String function : Arrays.asList("min", "max", "last"))
+		{
+			add(function, new LongDataPoint(1000, big + 2), out);
+			add(function, new LongDataPoint(2000, big), out);
+			add(function, new LongDataPoint(3000, big + 4), out);
+		}
+		aggregator.stop();
+
+		assertThat(written).hasSize(3);
+		for (DataPointEvent event : written)
+		{
+			DataPoint dataPoint = event.getDataPoint();
+			assertThat(dataPoint.isLong()).isTrue();
+			switch (event.getMetricName())
+			{
+				case "influx.min":
+					assertThat(dataPoint.getLongValue()).isEqualTo(big);
+					break;
+				case "influx.max":
+					assertThat(dataPoint.getLongValue()).isEqualTo(big + 4);
+					break;
+				default:
+					assertThat(event.getMetricName()).isEqualTo("influx.last");
+					assertThat(dataPoint.getLongValue()).isEqualTo(big + 4);
+			}
+		}
+	}
+
+	@Test
+	public void testFunctions()
+	{
+		List<DataPointEvent> out = new ArrayList<>();
+		add("net.bytes", new LongDataPoint(1000, 10), out);
+		add("net.bytes", new LongDataPoint(2000, 20), out);
+		add("mem.used", new LongDataPoint(1000, 10), out);
+		add("mem.used", new DoubleDataPoint(2000, 20.5), out);
+		add("disk.used", new LongDataPoint(1000, 7), out);
+		add("disk.used", new LongDataPoint(2000, 5), out);
+
+		aggregator.stop();
+
+		assertThat(written).hasSize(3);
+		for (DataPointEvent event : written)
+		{
+			DataPoint dataPoint = event.getDataPoint();
+			assertThat(dataPoint.getTimestamp()).isEqualTo(0);
+			assertThat(dataPoint.isLong()).isTrue();
+			switch (event.getMetricName())
+			{
+				case "influx.net.bytes":
+					assertThat(dataPoint.getLongValue()).isEqualTo(30);
+					break;
+				case "influx.mem.used":
+					assertThat(dataPoint.getLongValue()).isEqualTo(2);
+					break;
+				default:
+					assertThat(event.getMetricName()).isEqualTo("influx.disk.used");
+					assertThat(dataPoint.getLongValue()).isEqualTo(5);
+			}
+		}
+	}
+
+	@Test
+	public void testExpiredWindowsFlushed()
+	{
+		List<DataPointEvent> out = new ArrayList<>();
+		add("cpu.usage", new DoubleDataPoint(0, 1), out);
+		assertThat(aggregator.getSeriesCount()).isEqualTo(1);
+
+		long now = System.currentTimeMillis() / 1000;
+		aggregator.flushExpired(now + 60);
+		assertThat(written).isEmpty();
+
+		aggregator.flushExpired(now + 121);
+		assertThat(written).hasSize(1);
+		assertThat(aggregator.getSeriesCount()).isEqualTo(0);
+
+		aggregator.stop();
+		assertThat(written).hasSize(1);
+	}
+
+	@Test
+	public void testStopFlushes()
+	{
+		List<DataPointEvent> out = new ArrayList<>();
+		add("cpu.usage", new DoubleDataPoint(0, 1), out);
+		aggregator.stop();
+
+		assertThat(written).hasSize(1);
+
+		//Points after stop are written as they are
+		assertThat(add("cpu.usage", new DoubleDataPoint(60_000, 1), out)).isFalse();
+	}
+
+	@Test
+	public void testDisabledWithoutRules()
+	{
+		Aggregator disabled = new Aggregator(writer);
+		disabled.start();
+
+		assertThat(disabled.isEnabled()).isFalse();
+		assertThat(disabled.add("cpu.usage", "cpu.usage", TAGS, new DoubleDataPoint(0, 1), new ArrayList<>())).isFalse();
+		disabled.stop();
+		verify(writer, never()).writeBatch(any());
+	}
+
+	@Test
+	public void testInvalidRules()
+	{
+		assertThatThrownBy(() -> aggregator.setupRules(Arrays.asList("cpu:avg"))).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> aggregator.setupRules(Arrays.asList("cpu:median:60"))).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> aggregator.setupRules(Arrays.asList("cpu:avg:0"))).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> aggregator.setupRules(Arrays.asList("cpu[:avg:60"))).isInstanceOf(IllegalArgumentException.class);
+	}
+}
@@ -0,0 +1,124 @@
+package org.kairosdb.influxdb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChunkReaderTest
+{
+	private List<String> readChunks(String input, int chunkSize) throws IOException
+	{
+		ChunkReader reader = new ChunkReader(new ByteArrayInputStream(input.getBytes(UTF_8)), chunkSize);
+		List<String> chunks = new ArrayList<>();
+		ByteBuffer chunk;
+		while ((chunk = reader.next()) != null)
+		{
+			chunks.add(new String(chunk.array(), 0, chunk.limit(), UTF_8));
+		}
+		assertThat(reader.isDone()).isTrue();
+		return chunks;
+	}
+
+	@Test
+	public void testChunksEndAtNewlines() throws IOException
+	{
+		List<String> chunks = readChunks("cpu value=1i\nmem value=2i\nswap value=3i\ndisk value=4i", 20);
+
+		assertThat(chunks).containsExactly("cpu value=1i\n", "mem value=2i\n", "swap value=3i\n", "disk value=4i");
+	}
+
+	@Test
+	public void testLineLongerThanChunk() throws IOException
+	{
+		List<String> chunks = readChunks("a=1\ncpu,host=a_very_long_host_name value=1i\nb=2\n", 8);
+
+		assertThat(chunks).containsExactly("a=1\n", "cpu,host=a_very_long_host_name value=1i\nb=2\n");
+	}
+
+	@Test
+	public void testSmallInputIsOneChunk() throws IOException
+	{
+		ChunkReader reader = new ChunkReader(new ByteArrayInputStream("cpu value=1i\n".getBytes(UTF_8)), 1024);
+
+		assertThat(reader.next().limit()).isEqualTo(13);
+		assertThat(reader.isDone()).isTrue();
+		assertThat(reader.next()).isNull();
+	}
+
+	@Test
+	public void testEmptyInput() throws IOException
+	{
+		assertThat(readChunks("", 16)).isEmpty();
+	}
+
+	@Test
+	public void testChunksJoinToInput() throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			sb.append("cpu,host=h").append(i).append(" value=").append(i).append("i\n");
+		String input = sb.toString();
+
+		ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		for (String chunk : readChunks(input, 100))
+		{
+			assertThat(chunk).endsWith("\n");
+			joined.write(chunk.getBytes(UTF_8));
+		}
+		assertThat(joined.toString("UTF-8")).isEqualTo(input);
+	}
+
+	@Test
+	public void testBuffersGrowToChunkSize() throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 20000; i++)
+			sb.append("cpu,host=h").append(i).append(" value=").append(i).append("i\n");
+		String input = sb.toString();
+
+		List<String> chunks = readChunks(input, 200 * 1024);
+		assertThat(chunks.size()).isGreaterThan(1);
+		assertThat(chunks.get(0).length()).isGreaterThan(199 * 1024);
+		assertThat(String.join("", chunks)).isEqualTo(input);
+	}
+
+	@Test
+	public void testBufferSizedToSmallInput() throws IOException
+	{
+		ChunkReader reader = new ChunkReader(new ByteArrayInputStream("cpu value=1i\n".getBytes(UTF_8)), 4 * 1024 * 1024);
+
+		assertThat(reader.next().array().length).isLessThan(4 * 1024 * 1024);
+	}
+
+	@Test
+	public void testReleasedBuffersAreReused() throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			sb.append("cpu,host=h").append(i).append(" value=").append(i).append("i\n");
+		ChunkReader reader = new ChunkReader(new ByteArrayInputStream(sb.toString().getBytes(UTF_8)), 100);
+
+		ByteBuffer first = reader.next();
+		reader.release(first);
+		ByteBuffer second = reader.next();
+		assertThat(second.array()).isSameAs(first.array());
+		assertThat(new String(second.array(), 0, second.limit(), UTF_8)).startsWith("cpu,host=h");
+	}
+
+	@Test(expected = LineTooLongException.class)
+	public void testLineTooLong() throws IOException
+	{
+		ChunkReader reader = new ChunkReader(new ByteArrayInputStream("a=1\ncpu,host=a_very_long_host_name value=1i\nb=2\n".getBytes(UTF_8)), 8, 16);
+
+		assertThat(reader.next().limit()).isEqualTo(4);
+		reader.next();
+	}
+}
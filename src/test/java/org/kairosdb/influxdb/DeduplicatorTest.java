@@ -0,0 +1,109 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Test;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.StringDataPoint;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeduplicatorTest
+{
+	private static final ImmutableSortedMap<String, String> TAGS = ImmutableSortedMap.of("host", "a");
+	private static final long MINUTE = 60_000;
+
+	@Test
+	public void testDisabledByDefault()
+	{
+		assertThat(new Deduplicator().isEnabled()).isFalse();
+		assertThat(new Deduplicator(5, 1000).isEnabled()).isTrue();
+	}
+
+	@Test
+	public void testDuplicatesSuppressed()
+	{
+		Deduplicator deduplicator = new Deduplicator(5, 1000);
+
+		assertThat(deduplicator.isDuplicate(Deduplicator.hash("cpu", TAGS, new LongDataPoint(1000, 1)))).isFalse();
+		assertThat(deduplicator.isDuplicate(Deduplicator.hash("cpu", TAGS, new LongDataPoint(1000, 1)))).isTrue();
+
+		//A different series, timestamp or value is a different point
+		assertThat(deduplicator.isDuplicate(Deduplicator.hash("cpu", ImmutableSortedMap.of("host", "b"), new LongDataPoint(1000, 1)))).isFalse();
+		assertThat(deduplicator.isDuplicate(Deduplicator.hash("mem", TAGS, new LongDataPoint(1000, 1)))).isFalse();
+		assertThat(deduplicator.isDuplicate(Deduplicator.hash("cpu", TAGS, new LongDataPoint(2000, 1)))).isFalse();
+		assertThat(deduplicator.isDuplicate(Deduplicator.hash("cpu", TAGS, new LongDataPoint(1000, 2)))).isFalse();
+		assertThat(deduplicator.isDuplicate(Deduplicator.hash("cpu", TAGS, new DoubleDataPoint(1000, 1)))).isFalse();
+
+		assertThat(deduplicator.isDuplicate(Deduplicator.hash("cpu", TAGS, new StringDataPoint(1000, "x")))).isFalse();
+		assertThat(deduplicator.isDuplicate(Deduplicator.hash("cpu", TAGS, new StringDataPoint(1000, "x")))).isTrue();
+
+		assertThat(deduplicator.getSuppressed()).isEqualTo(2);
+	}
+
+	@Test
+	public void testWindow()
+	{
+		Deduplicator deduplicator = new Deduplicator(5, 1000);
+
+		assertThat(deduplicator.isDuplicate(42, 0)).isFalse();
+		assertThat(deduplicator.isDuplicate(42, 4 * MINUTE)).isTrue();
+
+		//Still remembered in the previous generation
+		assertThat(deduplicator.isDuplicate(43, 6 * MINUTE)).isFalse();
+		assertThat(deduplicator.isDuplicate(42, 9 * MINUTE)).isTrue();
+
+		//Both generations have rotated past it
+		assertThat(deduplicator.isDuplicate(42, 11 * MINUTE)).isFalse();
+
+		//Idle for more than two windows forgets everything
+		assertThat(deduplicator.isDuplicate(42, 30 * MINUTE)).isFalse();
+		assertThat(deduplicator.isDuplicate(43, 30 * MINUTE)).isFalse();
+	}
+
+	@Test
+	public void testMemoryBounded()
+	{
+		//One entry per stripe per generation
+		Deduplicator deduplicator = new Deduplicator(5, 16);
+
+		//Same stripe (top 4 bits), so the third hash pushes the first out
+		assertThat(deduplicator.isDuplicate(1, 0)).isFalse();
+		assertThat(deduplicator.isDuplicate(2, 0)).isFalse();
+		assertThat(deduplicator.isDuplicate(1, 0)).isTrue();
+		assertThat(deduplicator.isDuplicate(3, 0)).isFalse();
+		assertThat(deduplicator.isDuplicate(1, 0)).isFalse();
+	}
+
+	@Test
+	public void testZeroHash()
+	{
+		Deduplicator deduplicator = new Deduplicator(5, 1000);
+
+		assertThat(deduplicator.isDuplicate(0, 0)).isFalse();
+		assertThat(deduplicator.isDuplicate(0, 0)).isTrue();
+	}
+
+	@Test
+	public void testForget()
+	{
+		Deduplicator deduplicator = new Deduplicator(5, 1000);
+
+		//Same stripe and home slot, so they form one run of the table
+		long[] hashes = {1, 1 + (1L << 20), 1 + (2L << 20), 2};
+		for (long hash : hashes)
+			assertThat(deduplicator.isDuplicate(hash, 0)).isFalse();
+
+		deduplicator.forget(hashes[1]);
+		assertThat(deduplicator.isDuplicate(hashes[0], 0)).isTrue();
+		assertThat(deduplicator.isDuplicate(hashes[2], 0)).isTrue();
+		assertThat(deduplicator.isDuplicate(hashes[3], 0)).isTrue();
+		assertThat(deduplicator.isDuplicate(hashes[1], 0)).isFalse();
+
+		//Also forgotten from the previous generation
+		assertThat(deduplicator.isDuplicate(hashes[3], 6 * MINUTE)).isTrue();
+		deduplicator.forget(hashes[0]);
+		assertThat(deduplicator.isDuplicate(hashes[0], 6 * MINUTE)).isFalse();
+		assertThat(deduplicator.isDuplicate(hashes[2], 6 * MINUTE)).isTrue();
+	}
+}
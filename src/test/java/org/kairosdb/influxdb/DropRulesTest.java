@@ -0,0 +1,66 @@
+package org.kairosdb.influxdb;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DropRulesTest
+{
+	@Test
+	public void testNoPatterns()
+	{
+		DropRules rules = new DropRules("test", 10);
+
+		assertThat(rules.isEmpty()).isTrue();
+		assertThat(rules.drop("swap.used")).isFalse();
+		assertThat(rules.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void testDecisionsCached()
+	{
+		DropRules rules = new DropRules("test", 10);
+		rules.setPatterns(Arrays.asList("^swap.used.*$", "^kernel.interrupts$"));
+
+		assertThat(rules.drop("swap.used_percent")).isTrue();
+		assertThat(rules.drop("swap.free")).isFalse();
+		assertThat(rules.drop("kernel.interrupts")).isTrue();
+		assertThat(rules.size()).isEqualTo(3);
+
+		assertThat(rules.drop("swap.used_percent")).isTrue();
+		assertThat(rules.drop("swap.free")).isFalse();
+		assertThat(rules.size()).isEqualTo(3);
+	}
+
+	@Test
+	public void testReloadClearsDecisions()
+	{
+		DropRules rules = new DropRules("test", 10);
+		rules.setPatterns(Collections.singletonList("^swap.*$"));
+		assertThat(rules.drop("swap.free")).isTrue();
+
+		rules.setPatterns(Collections.singletonList("^mem.*$"));
+
+		assertThat(rules.size()).isEqualTo(0);
+		assertThat(rules.drop("swap.free")).isFalse();
+		assertThat(rules.drop("mem.free")).isTrue();
+	}
+
+	@Test
+	public void testCacheBounded()
+	{
+		DropRules rules = new DropRules("test", 5);
+		rules.setPatterns(Collections.singletonList("^swap.*$"));
+
+		for (int i = 0; i < 100; i++)
+		{
+			assertThat(rules.drop("swap." + i)).isTrue();
+			assertThat(rules.drop("cpu." + i)).isFalse();
+		}
+
+		assertThat(rules.size()).isLessThanOrEqualTo(5);
+	}
+}
@@ -0,0 +1,48 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class HyperLogLogTest
+{
+	private static long hash(int value)
+	{
+		return Hashing.murmur3_128().hashInt(value).asLong();
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		assertThat(new HyperLogLog(10).estimate()).isEqualTo(0);
+	}
+
+	@Test
+	public void testEstimates()
+	{
+		for (int count : new int[]{10, 1000, 10_000, 1_000_000})
+		{
+			HyperLogLog sketch = new HyperLogLog(10);
+			for (int i = 0; i < count; i++)
+				sketch.offer(hash(i));
+
+			//Standard error is about 3%, allow 3 times that
+			assertThat((double) sketch.estimate()).as("count %d", count).isCloseTo(count, within(count * 0.1));
+		}
+	}
+
+	@Test
+	public void testRepeatsDoNotChangeSketch()
+	{
+		HyperLogLog sketch = new HyperLogLog(10);
+		for (int i = 0; i < 5000; i++)
+			sketch.offer(hash(i));
+		long estimate = sketch.estimate();
+
+		for (int i = 0; i < 5000; i++)
+			assertThat(sketch.offer(hash(i))).isFalse();
+		assertThat(sketch.estimate()).isEqualTo(estimate);
+	}
+}
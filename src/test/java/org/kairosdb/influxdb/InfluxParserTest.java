@@ -2,6 +2,7 @@ package org.kairosdb.influxdb;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.io.Resources;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -16,12 +17,20 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.internal.util.reflection.FieldSetter;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -314,6 +323,73 @@ public class InfluxParserTest
         parser.parseLine(line, TimeUnit.NANOSECONDS, null);
     }
 
+    @Test
+    public void testInvalidTimestamp()
+            throws ParseException
+    {
+        expectedEx.expect(ParseException.class);
+        expectedEx.expectMessage("Unable to parse timestamp: 15475101x");
+
+        String line = "swap,host=localhost,foo=bar total=0i 15475101x";
+
+        parser.parseLine(line, TimeUnit.NANOSECONDS, null);
+    }
+
+    @Test
+    public void testParseErrorReasons()
+    {
+        assertReason("swap,host=localhost total=0i 15475101x", ParseException.Reason.INVALID_TIMESTAMP);
+        assertReason("swap,host=localhost total=12x", ParseException.Reason.INVALID_FIELD_VALUE);
+        assertReason("swap,host=localhost total-0i", ParseException.Reason.INVALID_FIELD_SET);
+        assertReason("swap,host=localhost total=0i,total=1i", ParseException.Reason.INVALID_FIELD_SET);
+        assertReason("swap,host=,foo=bar total=0i", ParseException.Reason.INVALID_TAG_SET);
+        assertReason(",host=localhost total=0i", ParseException.Reason.MISSING_MEASUREMENT);
+        assertReason("swap total=0i", ParseException.Reason.MISSING_TAGS);
+        assertReason("swap,host=localhost total=\"abc", ParseException.Reason.UNTERMINATED_QUOTE);
+    }
+
+    @Test
+    public void testDuplicateFieldsRejected()
+    {
+        String line = "cpu,host=a v=1i,w=2i,v=3i";
+        List<String> names = new ArrayList<>();
+
+        assertThatThrownBy(() -> parser.parseLine(line, TimeUnit.NANOSECONDS, null, (metricName, tags, dataPoint) -> names.add(metricName)))
+                .isInstanceOf(ParseException.class)
+                .hasMessageContaining("Duplicate field cpu.v");
+        assertThatThrownBy(() -> parser.parseLine(line.getBytes(UTF_8), 0, line.length(), TimeUnit.NANOSECONDS, null, (metricName, tags, dataPoint) -> names.add(metricName)))
+                .isInstanceOf(ParseException.class);
+        assertThat(names).isEmpty();
+    }
+
+    private void assertReason(String line, ParseException.Reason reason)
+    {
+        try
+        {
+            parser.parseLine(line, TimeUnit.NANOSECONDS, null);
+            fail("Expected ParseException for " + line);
+        }
+        catch (ParseException e)
+        {
+            assertThat(e.getReason()).as(line).isEqualTo(reason);
+        }
+    }
+
+    @Test
+    public void testSeriesLimit() throws ParseException
+    {
+        parser.setSeriesLimiter(new SeriesLimiter(10, SeriesLimiter.Action.DROP, 60, 10));
+
+        int written = 0;
+        for (int i = 0; i < 1000; i++)
+            written += parser.parseLine("cpu,host=host" + i + " usage=1i", TimeUnit.NANOSECONDS, null).size();
+        assertThat(written).isEqualTo(10);
+
+        //Series seen before the limit was reached are still written
+        assertThat(parser.parseLine("cpu,host=host0 usage=1i", TimeUnit.NANOSECONDS, null)).hasSize(1);
+        assertThat(parser.parseLine("mem,host=host0 used=1i", TimeUnit.NANOSECONDS, null)).hasSize(1);
+    }
+
     @Test
     public void testDroppedMetricsAndTags() throws ParseException
     {
@@ -339,6 +415,237 @@ public class InfluxParserTest
         verify(tagsDropped).put(1);
     }
 
+    @Test
+    public void testDroppedMeasurements() throws ParseException
+    {
+        LongCollector measurementsDropped = mock(LongCollector.class);
+        MetricSourceManager.setCollectorForSource(measurementsDropped, InfluxStats.class).measurementsDropped();
+
+        parser.setupDroppedMeasurements(Arrays.asList("^kernel$", "^interrupts$"));
+
+        String line = "kernel,host=localhost boot_time=1547510150i,interrupts=1i 1547510150000000000";
+
+        assertThat(parser.parseLine(line, TimeUnit.NANOSECONDS, null)).isEmpty();
+        assertThat(parser.parseLine(line.getBytes(UTF_8), 0, line.length(), TimeUnit.NANOSECONDS, null)).isEmpty();
+        // The rest of the line is not parsed
+        assertThat(parser.parseLine("interrupts,host=localhost bad", TimeUnit.NANOSECONDS, null)).isEmpty();
+        assertThat(parser.parseLine("kernel_vmstat,host=localhost pgfault=1i", TimeUnit.NANOSECONDS, null)).hasSize(1);
+
+        verify(measurementsDropped, times(3)).put(1);
+    }
+
+    @Test
+    public void testKeptFields() throws ParseException
+    {
+        LongCollector metricsDropped = mock(LongCollector.class);
+        MetricSourceManager.setCollectorForSource(metricsDropped, InfluxStats.class).metricsDropped();
+
+        parser.setupKeptFields(Arrays.asList("cpu:usage_user, usage_system", "cpu:usage_idle"));
+        parser.setupDroppedMetrics(Arrays.asList("^cpu\\.usage_idle$"));
+
+        // usage_nice is not kept so its bad value is never parsed
+        String line = "cpu,host=localhost usage_user=1.5,usage_nice=bad,usage_system=2.5,usage_idle=96 1547510150000000000";
+        ImmutableSortedMap<String, String> expectedTags = ImmutableSortedMap.of("host", "localhost");
+        long expectedTimestamp = TimeUnit.NANOSECONDS.toMillis(1547510150000000000L);
+
+        ImmutableList<Metric> metrics = parser.parseLine(line, TimeUnit.NANOSECONDS, null);
+
+        assertThat(metrics.size()).isEqualTo(2);
+        assertMetric(metrics.get(0), "cpu.usage_system", expectedTags, expectedTimestamp, 2.5);
+        assertMetric(metrics.get(1), "cpu.usage_user", expectedTags, expectedTimestamp, 1.5);
+        verify(metricsDropped).put(2);
+
+        // Other measurements keep all fields
+        assertThat(parser.parseLine("mem,host=localhost used=1i,free=2i", TimeUnit.NANOSECONDS, null)).hasSize(2);
+    }
+
+    @Test
+    public void testNoTagsWithAllFieldsDropped() throws ParseException
+    {
+        parser.setupKeptFields(Arrays.asList("cpu:usage_user"));
+        parser.setupDroppedMetrics(Arrays.asList("^swap\\..*$"));
+
+        // Nothing is written so the missing tags are not an error
+        assertThat(parser.parseLine("cpu usage_idle=96", TimeUnit.NANOSECONDS, null)).isEmpty();
+        assertThat(parser.parseLine("swap total=0i,used=1i", TimeUnit.NANOSECONDS, null)).isEmpty();
+        byte[] bytes = "swap total=0i".getBytes(UTF_8);
+        assertThat(parser.parseLine(bytes, 0, bytes.length, TimeUnit.NANOSECONDS, null)).isEmpty();
+
+        assertReason("cpu usage_user=1.5,usage_idle=96", ParseException.Reason.MISSING_TAGS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeptFieldsInvalidEntry()
+    {
+        parser.setupKeptFields(Arrays.asList("cpu"));
+    }
+
+    @Test
+    public void testSinkReceivesPointsInLineOrder() throws ParseException
+    {
+        String line = "swap,host=localhost total=5,used=0i,free=\"hello\" 1547510150000000000";
+        List<String> names = new ArrayList<>();
+
+        int count = parser.parseLine(line, TimeUnit.NANOSECONDS, null, (metricName, tags, dataPoint) -> names.add(metricName));
+
+        assertThat(count).isEqualTo(3);
+        assertThat(names).containsExactly("swap.total", "swap.used", "swap.free");
+    }
+
+    @Test
+    public void testSinkNotCalledWhenLineFails()
+    {
+        String line = "swap,host=localhost total=5,used=12x,free=0i 1547510150000000000";
+        List<String> names = new ArrayList<>();
+
+        try
+        {
+            parser.parseLine(line, TimeUnit.NANOSECONDS, null, (metricName, tags, dataPoint) -> names.add(metricName));
+            fail("Expected ParseException");
+        }
+        catch (ParseException e)
+        {
+            assertThat(e.getMessage()).isEqualTo("Unable to parse field value: 12x");
+        }
+
+        assertThat(names).isEmpty();
+    }
+
+    @Test
+    public void testNoTagsInvalid()
+            throws ParseException
+    {
+        expectedEx.expect(ParseException.class);
+        expectedEx.expectMessage("Invalid syntax. At least one tag is required.");
+
+        String line = "swap total=0i";
+
+        parser.parseLine(line, TimeUnit.NANOSECONDS, null);
+    }
+
+    @Test
+    public void testSeriesCacheSharesTags() throws ParseException
+    {
+        byte[] line1 = "cpu,host=a,cpu=cpu0 usage_user=1,usage_system=2 1547510150000000000".getBytes(UTF_8);
+        byte[] line2 = "cpu,host=a,cpu=cpu0 usage_user=3 1547510160000000000".getBytes(UTF_8);
+
+        ImmutableList<Metric> metrics1 = parser.parseLine(line1, 0, line1.length, TimeUnit.NANOSECONDS, null);
+        ImmutableList<Metric> metrics2 = parser.parseLine(line2, 0, line2.length, TimeUnit.NANOSECONDS, null);
+
+        assertThat(metrics2.get(0).getTags()).isSameAs(metrics1.get(0).getTags());
+        assertMetric(metrics2.get(0), "cpu.usage_user", ImmutableSortedMap.of("host", "a", "cpu", "cpu0"),
+                TimeUnit.NANOSECONDS.toMillis(1547510160000000000L), 3.0);
+    }
+
+    @Test
+    public void testSeriesCacheKeyIncludesBucket() throws ParseException, NoSuchFieldException
+    {
+        FieldSetter.setField(parser, parser.getClass().getDeclaredField("m_useBucket"), true);
+        FieldSetter.setField(parser, parser.getClass().getDeclaredField("m_bucketTag"), "bucket");
+        byte[] line = "cpu,host=a usage_user=1 1547510150000000000".getBytes(UTF_8);
+
+        ImmutableList<Metric> metrics1 = parser.parseLine(line, 0, line.length, TimeUnit.NANOSECONDS, "bucket1");
+        ImmutableList<Metric> metrics2 = parser.parseLine(line, 0, line.length, TimeUnit.NANOSECONDS, "bucket2");
+
+        assertThat(metrics1.get(0).getTags()).isEqualTo(ImmutableSortedMap.of("host", "a", "bucket", "bucket1"));
+        assertThat(metrics2.get(0).getTags()).isEqualTo(ImmutableSortedMap.of("host", "a", "bucket", "bucket2"));
+    }
+
+    @Test
+    public void testSeriesCacheClearedWhenDropTagsChange() throws ParseException
+    {
+        byte[] line = "cpu,host=a,foo=bar usage_user=1 1547510150000000000".getBytes(UTF_8);
+
+        assertThat(parser.parseLine(line, 0, line.length, TimeUnit.NANOSECONDS, null).get(0).getTags())
+                .isEqualTo(ImmutableSortedMap.of("host", "a", "foo", "bar"));
+
+        parser.setupDroppedTags(Arrays.asList("foo"));
+
+        assertThat(parser.parseLine(line, 0, line.length, TimeUnit.NANOSECONDS, null).get(0).getTags())
+                .isEqualTo(ImmutableSortedMap.of("host", "a"));
+    }
+
+    @Test
+    public void testMetricNamesReused() throws ParseException
+    {
+        LongCollector hits = mock(LongCollector.class);
+        LongCollector misses = mock(LongCollector.class);
+        MetricSourceManager.setCollectorForSource(hits, InfluxStats.class).metricNameCache("hit");
+        MetricSourceManager.setCollectorForSource(misses, InfluxStats.class).metricNameCache("miss");
+
+        byte[] line1 = "cpu,host=a usage_user=1,usage_system=2 1547510150000000000".getBytes(UTF_8);
+        byte[] line2 = "cpu,host=b usage_system=3,usage_user=4 1547510160000000000".getBytes(UTF_8);
+
+        ImmutableList<Metric> metrics1 = parser.parseLine(line1, 0, line1.length, TimeUnit.NANOSECONDS, null);
+        ImmutableList<Metric> metrics2 = parser.parseLine(line2, 0, line2.length, TimeUnit.NANOSECONDS, null);
+
+        assertThat(metrics2.get(0).getName()).isEqualTo("cpu.usage_system").isSameAs(metrics1.get(0).getName());
+        assertThat(metrics2.get(1).getName()).isEqualTo("cpu.usage_user").isSameAs(metrics1.get(1).getName());
+        verify(misses).put(2);
+        verify(hits).put(2);
+    }
+
+    @Test
+    public void testMetricNamesWithMultiByteFieldNames() throws ParseException
+    {
+        String line = "cpu,host=a \u00e9t\u00e9=1,\u65e5\u672c=2 1547510150000000000";
+        byte[] bytes = line.getBytes(UTF_8);
+
+        parser.parseLine(bytes, 0, bytes.length, TimeUnit.NANOSECONDS, null);
+        ImmutableList<Metric> metrics = parser.parseLine(bytes, 0, bytes.length, TimeUnit.NANOSECONDS, null);
+
+        assertThat(metrics.get(0).getName()).isEqualTo("cpu.\u00e9t\u00e9");
+        assertThat(metrics.get(1).getName()).isEqualTo("cpu.\u65e5\u672c");
+        assertSameMetrics(metrics, parser.parseLine(line, TimeUnit.NANOSECONDS, null));
+    }
+
+    @SuppressWarnings("UnstableApiUsage")
+    @Test
+    public void testByteParserMatchesStringParser() throws ParseException, IOException
+    {
+        List<String> lines = new ArrayList<>(Resources.readLines(Resources.getResource("examples.txt"), UTF_8));
+        lines.add("s\\ ys\\=te\\,m,host=local\\,host uptime_format=\"7 days, 5:46\" 1548718010000000000");
+        lines.add("system,host=h\u00e9\u00e9\\ \u65e5\u672c uptime_format=\"\u00e9t\u00e9\" 1548718010000000000");
+        lines.add("swap,host=localhost,foo=bar total=true,used=True,free=f,used_percent=False 1547510150000000000");
+
+        for (String line : lines)
+        {
+            byte[] bytes = ("garbage\n" + line + "\ngarbage").getBytes(UTF_8);
+            int offset = "garbage\n".length();
+            int length = line.getBytes(UTF_8).length;
+
+            assertSameMetrics(parser.parseLine(bytes, offset, length, TimeUnit.NANOSECONDS, null),
+                    parser.parseLine(line, TimeUnit.NANOSECONDS, null));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(length);
+            direct.put(bytes, offset, length).flip();
+            assertSameMetrics(parser.parseLine(direct, TimeUnit.NANOSECONDS, null),
+                    parser.parseLine(line, TimeUnit.NANOSECONDS, null));
+        }
+    }
+
+    @Test
+    public void testByteParserUnterminatedDoubleQuote() throws ParseException
+    {
+        expectedEx.expect(ParseException.class);
+        expectedEx.expectMessage("Invalid syntax: unterminated double quote");
+
+        byte[] line = "system,host=jsabin-desktop uptime_format=\"5:53 1547510150000000000".getBytes(UTF_8);
+
+        parser.parseLine(line, 0, line.length, TimeUnit.NANOSECONDS, null);
+    }
+
+    private void assertSameMetrics(List<Metric> actual, List<Metric> expected)
+    {
+        assertThat(actual.size()).isEqualTo(expected.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertThat(actual.get(i).getName()).isEqualTo(expected.get(i).getName());
+            assertThat(actual.get(i).getTags()).isEqualTo(expected.get(i).getTags());
+            assertThat(actual.get(i).getDataPoint()).isEqualTo(expected.get(i).getDataPoint());
+        }
+    }
+
     private void assertMetric(Metric actual, String expectedName, ImmutableSortedMap<String, String> expectedTags, long expectedTimestamp, long expectedValue)
     {
         assertThat(actual.getName()).isEqualTo(expectedName);
@@ -347,6 +654,14 @@ public class InfluxParserTest
         assertThat(actual.getDataPoint().getLongValue()).isEqualTo(expectedValue);
     }
 
+    private void assertMetric(Metric actual, String expectedName, ImmutableSortedMap<String, String> expectedTags, long expectedTimestamp, double expectedValue)
+    {
+        assertThat(actual.getName()).isEqualTo(expectedName);
+        assertThat(actual.getTags()).isEqualTo(expectedTags);
+        assertThat(actual.getDataPoint().getTimestamp()).isEqualTo(expectedTimestamp);
+        assertThat(actual.getDataPoint().getDoubleValue()).isEqualTo(expectedValue);
+    }
+
     private void assertMetric(Metric actual, String expectedName, ImmutableSortedMap<String, String> expectedTags, long expectedTimestamp, String expectedValue)
     {
         assertThat(actual.getName()).isEqualTo(expectedName);
@@ -12,17 +12,25 @@ import org.kairosdb.eventbus.FilterEventBus;
 import org.kairosdb.eventbus.Publisher;
 import org.kairosdb.events.DataPointEvent;
 import org.kairosdb.metrics4j.MetricSourceManager;
+import org.kairosdb.metrics4j.collectors.DurationCollector;
 import org.kairosdb.metrics4j.collectors.LongCollector;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.internal.util.reflection.FieldSetter;
 
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
 import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
@@ -104,6 +112,427 @@ public class InfluxResourceTest
 		verify(ingestCount).put(211);
 	}
 
+	@SuppressWarnings("UnstableApiUsage")
+	@Test
+	public void testRequestStats() throws IOException
+	{
+		LongCollector lines = mock(LongCollector.class);
+		LongCollector points = mock(LongCollector.class);
+		LongCollector compressedBytes = mock(LongCollector.class);
+		LongCollector uncompressedBytes = mock(LongCollector.class);
+		DurationCollector decompressTime = mock(DurationCollector.class);
+		DurationCollector requestTime = mock(DurationCollector.class);
+		MetricSourceManager.setCollectorForSource(lines, InfluxStats.class).requestLines("v2");
+		MetricSourceManager.setCollectorForSource(points, InfluxStats.class).requestPoints("v2");
+		MetricSourceManager.setCollectorForSource(compressedBytes, InfluxStats.class).requestBytes("v2", "compressed");
+		MetricSourceManager.setCollectorForSource(uncompressedBytes, InfluxStats.class).requestBytes("v2", "uncompressed");
+		MetricSourceManager.setCollectorForSource(decompressTime, InfluxStats.class).stageTime("v2", "decompress");
+		MetricSourceManager.setCollectorForSource(requestTime, InfluxStats.class).requestTime("v2");
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(ImmutableList.of("gzip"));
+
+		InfluxResource resource = new InfluxResource(writer, parser, "influxdb");
+		resource.setHostName(host);
+
+		Response response = resource.v2write(mockHeaders, "bucket", "ns", Resources.getResource("examples.txt.gz").openStream());
+
+		assertThat(response.getStatus()).isEqualTo(204);
+		verify(lines).put(24);
+		verify(points).put(211);
+		verify(compressedBytes).put(1592);
+		verify(uncompressedBytes).put(5237);
+		verify(decompressTime).put(any(Duration.class));
+		verify(requestTime).put(any(Duration.class));
+	}
+
+	@Test
+	public void testPartialWrite() throws IOException
+	{
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(null);
+
+		String data = "cpu,host=a usage=1i 1547510150000000000\ncpu,host=b usage=\ncpu,host=c usage=3i 1547510150000000000";
+		InputStream inputStream = new ByteArrayInputStream(data.getBytes(UTF_8));
+
+		InfluxResource resource = new InfluxResource(writer, parser, "influxdb");
+		resource.setHostName(host);
+
+		Response response = resource.v1Write(mockHeaders, "db", "ns", inputStream);
+
+		assertThat(response.getStatus()).isEqualTo(400);
+		assertThat(response.getEntity().toString()).contains("partial write error (2 written)", "cpu,host=b usage=");
+
+		verifyMetric("influxdb.cpu.usage", ImmutableSortedMap.of("host", "a"), 1547510150000000000L, 1L);
+		verifyMetric("influxdb.cpu.usage", ImmutableSortedMap.of("host", "c"), 1547510150000000000L, 3L);
+	}
+
+	@Test
+	public void testLineTooLong() throws IOException, NoSuchFieldException
+	{
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(null);
+
+		StringBuilder data = new StringBuilder("cpu,host=a usage=1i 1547510150000000000\ncpu,host=b usage=2i 1547510150000000000 ");
+		while (data.length() < 100_000)
+			data.append("0123456789");
+
+		InfluxResource resource = new InfluxResource(writer, parser, "influxdb");
+		resource.setHostName(host);
+		FieldSetter.setField(resource, InfluxResource.class.getDeclaredField("m_maxLineLength"), 1000);
+
+		Response response = resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data.toString().getBytes(UTF_8)));
+
+		assertThat(response.getStatus()).isEqualTo(413);
+		assertThat(response.getEntity().toString()).contains("line longer than 1000 bytes", "(1 written)");
+		verify(mockPublisher, times(1)).post(any());
+	}
+
+	@Test
+	public void testLineTooLongReportsParseErrors() throws IOException, NoSuchFieldException
+	{
+		LongCollector failed = mock(LongCollector.class);
+		LongCollector invalidValues = mock(LongCollector.class);
+		MetricSourceManager.setCollectorForSource(failed, InfluxStats.class).ingest("failed");
+		MetricSourceManager.setCollectorForSource(invalidValues, InfluxStats.class).parseErrors(ParseException.Reason.INVALID_FIELD_VALUE.getCode());
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(null);
+
+		StringBuilder data = new StringBuilder("cpu,host=a usage=1i 1547510150000000000\ncpu,host=b usage=12x 1547510150000000000\ncpu,host=c usage=3i ");
+		while (data.length() < 100_000)
+			data.append("0123456789");
+
+		InfluxResource resource = new InfluxResource(writer, parser, "influxdb");
+		resource.setHostName(host);
+		FieldSetter.setField(resource, InfluxResource.class.getDeclaredField("m_maxLineLength"), 1000);
+
+		Response response = resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data.toString().getBytes(UTF_8)));
+
+		assertThat(response.getStatus()).isEqualTo(413);
+		assertThat(response.getEntity().toString()).contains("line longer than 1000 bytes", "(1 written)", "cpu,host=b usage=12x");
+		verify(failed).put(1);
+		verify(invalidValues).put(1);
+	}
+
+	@Test
+	public void testWriteBatches() throws IOException, NoSuchFieldException
+	{
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(null);
+		MetricWriter spyWriter = spy(writer);
+
+		String data = "cpu,host=a usage=1i,idle=2i 1547510150000000000\ncpu,host=b usage=3i 1547510150000000000";
+		InputStream inputStream = new ByteArrayInputStream(data.getBytes(UTF_8));
+
+		InfluxResource resource = new InfluxResource(spyWriter, parser, "influxdb");
+		resource.setHostName(host);
+		FieldSetter.setField(resource, InfluxResource.class.getDeclaredField("m_writeBatchSize"), 2);
+
+		Response response = resource.v1Write(mockHeaders, "db", "ns", inputStream);
+
+		assertThat(response.getStatus()).isEqualTo(204);
+		verify(spyWriter, times(2)).writeBatch(any());
+		verify(mockPublisher, times(3)).post(any());
+		verifyMetric("influxdb.cpu.idle", ImmutableSortedMap.of("host", "a"), 1547510150000000000L, 2L);
+		verifyMetric("influxdb.cpu.usage", ImmutableSortedMap.of("host", "b"), 1547510150000000000L, 3L);
+	}
+
+	@Test
+	public void testDuplicatesSuppressed() throws IOException
+	{
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(null);
+		String data = "cpu,host=a usage=1i 1547510150000000000\ncpu,host=b usage=3i 1547510150000000000";
+
+		InfluxResource resource = new InfluxResource(writer, parser, "influxdb");
+		resource.setHostName(host);
+		Deduplicator deduplicator = new Deduplicator(5, 1000);
+		resource.setDeduplicator(deduplicator);
+
+		//A retried request followed by one that overlaps it
+		resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data.getBytes(UTF_8)));
+		resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data.getBytes(UTF_8)));
+		Response response = resource.v1Write(mockHeaders, "db", "ns",
+				new ByteArrayInputStream((data + "\ncpu,host=c usage=5i 1547510150000000000").getBytes(UTF_8)));
+
+		assertThat(response.getStatus()).isEqualTo(204);
+		verify(mockPublisher, times(3)).post(any());
+		verifyMetric("influxdb.cpu.usage", ImmutableSortedMap.of("host", "c"), 1547510150000000000L, 5L);
+		assertThat(deduplicator.getSuppressed()).isEqualTo(4);
+	}
+
+	@Test
+	public void testFailedWriteNotSuppressedOnRetry() throws IOException
+	{
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(null);
+		String data = "cpu,host=a usage=1i 1547510150000000000\ncpu,host=b usage=3i 1547510150000000000";
+
+		MetricWriter spyWriter = spy(writer);
+		doThrow(new IllegalStateException("backend down")).doCallRealMethod().when(spyWriter).writeBatch(any());
+
+		InfluxResource resource = new InfluxResource(spyWriter, parser, "influxdb");
+		resource.setHostName(host);
+		Deduplicator deduplicator = new Deduplicator(5, 1000);
+		resource.setDeduplicator(deduplicator);
+
+		Response response = resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data.getBytes(UTF_8)));
+		assertThat(response.getStatus()).isEqualTo(500);
+
+		response = resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data.getBytes(UTF_8)));
+		assertThat(response.getStatus()).isEqualTo(204);
+		verify(mockPublisher, times(2)).post(any());
+		assertThat(deduplicator.getSuppressed()).isEqualTo(0);
+	}
+
+	@Test
+	public void testRateLimited() throws IOException
+	{
+		LongCollector throttled = mock(LongCollector.class);
+		MetricSourceManager.setCollectorForSource(throttled, InfluxStats.class).rateLimit("db", "throttled");
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(null);
+		String data = "cpu,host=a usage=1i,idle=2i,busy=3i 1547510150000000000";
+
+		InfluxResource resource = new InfluxResource(writer, parser, "influxdb");
+		resource.setHostName(host);
+		resource.setRateLimiter(new WriteRateLimiter(1, 0, 1, 10));
+
+		//The first request puts the bucket 2 points in debt
+		assertThat(resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data.getBytes(UTF_8))).getStatus()).isEqualTo(204);
+		Response response = resource.v2write(mockHeaders, "db", "ns", new ByteArrayInputStream(data.getBytes(UTF_8)));
+		assertThat(response.getStatus()).isEqualTo(429);
+		assertThat((Integer) response.getMetadata().getFirst("Retry-After")).isBetween(1, 2);
+
+		//Other buckets have their own limit
+		assertThat(resource.v1Write(mockHeaders, "other", "ns", new ByteArrayInputStream(data.getBytes(UTF_8))).getStatus()).isEqualTo(204);
+
+		verify(mockPublisher, times(6)).post(any());
+		verify(throttled).put(1);
+	}
+
+	@Test
+	public void testRateLimitTakesContentLength() throws IOException
+	{
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(null);
+		byte[] data = "cpu,host=a usage=1i 1547510150000000000".getBytes(UTF_8);
+		when(mockHeaders.getRequestHeader("Content-Length")).thenReturn(ImmutableList.of(String.valueOf(data.length)));
+
+		InfluxResource resource = new InfluxResource(writer, parser, "influxdb");
+		resource.setHostName(host);
+		resource.setRateLimiter(new WriteRateLimiter(0, 20, 1, 10));
+
+		//The bytes are taken when the first request is let in, the second is refused without being read
+		assertThat(resource.v1Write(mockHeaders, "db\"}", "ns", new ByteArrayInputStream(data)).getStatus()).isEqualTo(204);
+		ByteArrayInputStream stream = new ByteArrayInputStream(data);
+		Response response = resource.v1Write(mockHeaders, "db\"}", "ns", stream);
+		assertThat(response.getStatus()).isEqualTo(429);
+		assertThat(stream.available()).isEqualTo(data.length);
+		assertThat(response.getEntity().toString()).doesNotContain("db\"}");
+
+		verify(mockPublisher, times(1)).post(any());
+	}
+
+	@SuppressWarnings("UnstableApiUsage")
+	@Test
+	public void testParallelWrite() throws IOException, ReflectiveOperationException
+	{
+		LongCollector ingestCount = mock(LongCollector.class);
+		MetricSourceManager.setCollectorForSource(ingestCount, InfluxStats.class).ingest("success");
+		LongCollector failedCount = mock(LongCollector.class);
+		MetricSourceManager.setCollectorForSource(failedCount, InfluxStats.class).ingest("failed");
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(null);
+
+		String data = Resources.toString(Resources.getResource("examples.txt"), UTF_8);
+		String badLine = "cpu,host=b usage=";
+		String lastBadLine = "cpu,host=c usage=";
+		int middle = data.indexOf('\n', data.length() / 2) + 1;
+		data = data.substring(0, middle) + badLine + "\n" + data.substring(middle) + "\n" + lastBadLine + "\n";
+
+		InfluxResource resource = new InfluxResource(writer, parser, "influxdb");
+		resource.setHostName(host);
+		FieldSetter.setField(resource, InfluxResource.class.getDeclaredField("m_parallelThreads"), 4);
+		FieldSetter.setField(resource, InfluxResource.class.getDeclaredField("m_parallelChunkSize"), 1024);
+
+		Response response = resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data.getBytes(UTF_8)));
+
+		assertThat(response.getStatus()).isEqualTo(400);
+		String entity = response.getEntity().toString();
+		assertThat(entity).contains("partial write error (211 written)");
+		assertThat(entity.indexOf("'" + badLine + "'")).isLessThan(entity.indexOf("'" + lastBadLine + "'"));
+		verifyMetric("influxdb.mem.total", ImmutableSortedMap.of("host", "jsabin-desktop"), 1547510150000000000L, 16773103616L);
+		verify(mockPublisher, times(211)).post(any());
+		verify(ingestCount).put(211);
+		verify(failedCount).put(2);
+
+		// Once stopped the pool is shut down and bodies are parsed on the request thread
+		ForkJoinPool pool = getParsePool(resource);
+		resource.stop();
+		assertThat(pool.isShutdown()).isTrue();
+		assertThat(getParsePool(resource)).isNull();
+		response = resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data.getBytes(UTF_8)));
+		assertThat(response.getStatus()).isEqualTo(400);
+		verify(mockPublisher, times(422)).post(any());
+	}
+
+	private static ForkJoinPool getParsePool(InfluxResource resource) throws ReflectiveOperationException
+	{
+		Field field = InfluxResource.class.getDeclaredField("m_parsePool");
+		field.setAccessible(true);
+		return (ForkJoinPool) field.get(resource);
+	}
+
+	@Test
+	public void testErrorResponseCapped() throws IOException
+	{
+		LongCollector fieldSetErrors = mock(LongCollector.class);
+		MetricSourceManager.setCollectorForSource(fieldSetErrors, InfluxStats.class).parseErrors("invalid_field_set");
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(null);
+
+		StringBuilder data = new StringBuilder("cpu,host=a usage=1i 1547510150000000000\n");
+		for (int i = 0; i < 25; i++)
+			data.append("cpu,host=b").append(i).append(" usage\n");
+
+		InfluxResource resource = new InfluxResource(writer, parser, "influxdb");
+		resource.setHostName(host);
+		resource.setErrorLogLimit(0);
+
+		Response response = resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data.toString().getBytes(UTF_8)));
+
+		assertThat(response.getStatus()).isEqualTo(400);
+		String entity = response.getEntity().toString();
+		assertThat(entity).contains("partial write error (1 written)", "cpu,host=b9 usage", "(15 more lines failed)");
+		assertThat(entity).doesNotContain("cpu,host=b10 usage");
+		verify(fieldSetErrors).put(25);
+	}
+
+	@Test
+	public void testAsyncWrite() throws IOException
+	{
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(ImmutableList.of("gzip"));
+		AsyncWriteQueue writeQueue = new AsyncWriteQueue(true, 1, 10, 1024 * 1024, 1);
+		writeQueue.start();
+
+		InfluxResource resource = new InfluxResource(writer, parser, "influxdb");
+		resource.setHostName(host);
+		resource.setWriteQueue(writeQueue);
+
+		Response response = resource.v1Write(mockHeaders, "db", "ns", Resources.getResource("examples.txt.gz").openStream());
+		assertThat(response.getStatus()).isEqualTo(204);
+
+		// Waits for the queued request to be written
+		writeQueue.stop();
+
+		verifyMetric("influxdb.mem.total", ImmutableSortedMap.of("host", "jsabin-desktop"), 1547510150000000000L, 16773103616L);
+		verify(mockPublisher, times(211)).post(any());
+		assertThat(writeQueue.getQueuedBytes()).isEqualTo(0);
+	}
+
+	@Test
+	public void testAsyncWriteQueueFull() throws Exception
+	{
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(null);
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		MetricWriter spyWriter = spy(writer);
+		doAnswer(invocation ->
+		{
+			blocked.countDown();
+			release.await();
+			return invocation.callRealMethod();
+		}).when(spyWriter).writeBatch(any());
+
+		AsyncWriteQueue writeQueue = new AsyncWriteQueue(true, 1, 1, 1024 * 1024, 5);
+		writeQueue.start();
+
+		InfluxResource resource = new InfluxResource(spyWriter, parser, "influxdb");
+		resource.setHostName(host);
+		resource.setWriteQueue(writeQueue);
+
+		byte[] data = "cpu,host=a usage=1i 1547510150000000000".getBytes(UTF_8);
+
+		// First request is taken by the worker, the second waits in the queue
+		assertThat(resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data)).getStatus()).isEqualTo(204);
+		blocked.await();
+		assertThat(resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data)).getStatus()).isEqualTo(204);
+
+		Response response = resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data));
+		assertThat(response.getStatus()).isEqualTo(429);
+		assertThat(response.getMetadata().getFirst("Retry-After")).isEqualTo(5);
+
+		release.countDown();
+		writeQueue.stop();
+		verify(mockPublisher, times(2)).post(any());
+	}
+
+	@Test
+	public void testAsyncWriteBodyTooLarge() throws Exception
+	{
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(null);
+		AsyncWriteQueue writeQueue = new AsyncWriteQueue(true, 1, 10, 64, 1);
+		writeQueue.start();
+
+		InfluxResource resource = new InfluxResource(writer, parser, "influxdb");
+		resource.setHostName(host);
+		resource.setWriteQueue(writeQueue);
+
+		// Without a Content-Length the body is read up to the limit, even with an empty queue
+		byte[] data = ("cpu,host=a usage=1i 1547510150000000000\n" +
+				"cpu,host=b usage=2i 1547510150000000000").getBytes(UTF_8);
+		ByteArrayInputStream stream = new ByteArrayInputStream(data);
+		Response response = resource.v1Write(mockHeaders, "db", "ns", stream);
+		assertThat(response.getStatus()).isEqualTo(413);
+		assertThat(stream.available()).isEqualTo(data.length - 65);
+
+		// With a Content-Length the body isn't read at all
+		when(mockHeaders.getRequestHeader("Content-Length")).thenReturn(ImmutableList.of(String.valueOf(data.length)));
+		stream = new ByteArrayInputStream(data);
+		response = resource.v1Write(mockHeaders, "db", "ns", stream);
+		assertThat(response.getStatus()).isEqualTo(413);
+		assertThat(stream.available()).isEqualTo(data.length);
+
+		writeQueue.stop();
+		verify(mockPublisher, never()).post(any());
+		assertThat(writeQueue.getQueuedBytes()).isEqualTo(0);
+	}
+
+	@Test
+	public void testRateLimitGivenBackWhenQueueRejects() throws Exception
+	{
+		when(mockHeaders.getRequestHeader("Content-Encoding")).thenReturn(null);
+		byte[] data = "cpu,host=a usage=1i 1547510150000000000".getBytes(UTF_8);
+		when(mockHeaders.getRequestHeader("Content-Length")).thenReturn(ImmutableList.of(String.valueOf(data.length)));
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		MetricWriter spyWriter = spy(writer);
+		doAnswer(invocation ->
+		{
+			blocked.countDown();
+			release.await();
+			return invocation.callRealMethod();
+		}).when(spyWriter).writeBatch(any());
+
+		AsyncWriteQueue writeQueue = new AsyncWriteQueue(true, 1, 1, 1024, 5);
+		writeQueue.start();
+
+		InfluxResource resource = new InfluxResource(spyWriter, parser, "influxdb");
+		resource.setHostName(host);
+		resource.setWriteQueue(writeQueue);
+		//Room for the two queued requests and part of a third
+		resource.setRateLimiter(new WriteRateLimiter(0, 100, 1, 10));
+
+		assertThat(resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data)).getStatus()).isEqualTo(204);
+		blocked.await();
+		assertThat(resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data)).getStatus()).isEqualTo(204);
+
+		//Turned away by the queue every time rather than by the rate limit
+		for (int i = 0; i < 3; i++)
+		{
+			Response response = resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data));
+			assertThat(response.getStatus()).isEqualTo(429);
+			assertThat(response.getEntity().toString()).contains("write queue is full");
+		}
+
+		when(mockHeaders.getRequestHeader("Content-Length")).thenReturn(ImmutableList.of("2000"));
+		for (int i = 0; i < 3; i++)
+			assertThat(resource.v1Write(mockHeaders, "db", "ns", new ByteArrayInputStream(data)).getStatus()).isEqualTo(413);
+
+		release.countDown();
+		writeQueue.stop();
+		verify(mockPublisher, times(2)).post(any());
+	}
+
 	private void verifyMetric(String metricName, ImmutableSortedMap<String, String> tags, long timestamp, long value)
 	{
 		verify(mockPublisher).post(
@@ -0,0 +1,86 @@
+package org.kairosdb.influxdb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class LineReaderTest
+{
+	private List<String> readLines(String input, int bufferSize) throws IOException
+	{
+		LineReader reader = new LineReader(new ByteArrayInputStream(input.getBytes(UTF_8)), bufferSize);
+		List<String> lines = new ArrayList<>();
+		while (reader.nextLine())
+		{
+			lines.add(reader.getLine());
+		}
+		return lines;
+	}
+
+	@Test
+	public void testLinesSpanningChunks() throws IOException
+	{
+		List<String> lines = readLines("cpu,host=a value=1i\nmem,host=b used=2i\nswap total=3", 8);
+
+		assertThat(lines).containsExactly("cpu,host=a value=1i", "mem,host=b used=2i", "swap total=3");
+	}
+
+	@Test
+	public void testTrailingNewline() throws IOException
+	{
+		List<String> lines = readLines("cpu value=1i\n", 4);
+
+		assertThat(lines).containsExactly("cpu value=1i");
+	}
+
+	@Test
+	public void testEmptyLines() throws IOException
+	{
+		List<String> lines = readLines("\n\ncpu value=1i\n\n", 5);
+
+		assertThat(lines).containsExactly("", "", "cpu value=1i", "");
+	}
+
+	@Test
+	public void testMultiByteCharactersSplitAcrossChunks() throws IOException
+	{
+		List<String> lines = readLines("cpu,host=h\u00e9\u00e9 value=1i\ncpu,host=\u65e5\u672c value=2i", 3);
+
+		assertThat(lines).containsExactly("cpu,host=h\u00e9\u00e9 value=1i", "cpu,host=\u65e5\u672c value=2i");
+	}
+
+	@Test
+	public void testEmptyInput() throws IOException
+	{
+		assertThat(readLines("", 16)).isEmpty();
+	}
+
+	@Test
+	public void testLineTooLong() throws IOException
+	{
+		LineReader reader = new LineReader(new ByteArrayInputStream("cpu value=1i\n0123456789abcdef\nmem value=2i".getBytes(UTF_8)), 4, 12);
+
+		assertThat(reader.nextLine()).isTrue();
+		assertThat(reader.getLine()).isEqualTo("cpu value=1i");
+		assertThatThrownBy(reader::nextLine).isInstanceOf(LineTooLongException.class);
+	}
+
+	@Test
+	public void testLineAtMaxLength() throws IOException
+	{
+		LineReader reader = new LineReader(new ByteArrayInputStream("012345678\n012345678".getBytes(UTF_8)), 4, 9);
+
+		assertThat(reader.nextLine()).isTrue();
+		assertThat(reader.getLine()).isEqualTo("012345678");
+		assertThat(reader.nextLine()).isTrue();
+		assertThat(reader.getLine()).isEqualTo("012345678");
+		assertThat(reader.nextLine()).isFalse();
+	}
+}
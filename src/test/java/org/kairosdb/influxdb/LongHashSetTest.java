@@ -0,0 +1,94 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LongHashSetTest
+{
+	private static long hash(int value)
+	{
+		return Hashing.murmur3_128().hashInt(value).asLong();
+	}
+
+	@Test
+	public void testAddAndContains()
+	{
+		LongHashSet set = new LongHashSet();
+		for (int i = 0; i < 100_000; i++)
+			assertThat(set.add(hash(i))).isTrue();
+
+		assertThat(set.size()).isEqualTo(100_000);
+		for (int i = 0; i < 100_000; i++)
+		{
+			assertThat(set.contains(hash(i))).isTrue();
+			assertThat(set.add(hash(i))).isFalse();
+		}
+		for (int i = 100_000; i < 200_000; i++)
+			assertThat(set.contains(hash(i))).isFalse();
+		assertThat(set.size()).isEqualTo(100_000);
+	}
+
+	@Test
+	public void testZeroAndCollidingValues()
+	{
+		LongHashSet set = new LongHashSet();
+		assertThat(set.contains(0)).isFalse();
+		assertThat(set.add(0)).isTrue();
+		assertThat(set.add(0)).isFalse();
+
+		//The high and low halves cancel out so these all start probing at slot 0
+		for (long i = 1; i <= 100; i++)
+			assertThat(set.add((i << 32) | i)).isTrue();
+
+		assertThat(set.contains(0)).isTrue();
+		for (long i = 1; i <= 100; i++)
+			assertThat(set.contains((i << 32) | i)).isTrue();
+		assertThat(set.contains((101L << 32) | 101)).isFalse();
+		assertThat(set.size()).isEqualTo(101);
+	}
+
+	@Test
+	public void testContainsWhileAdding() throws InterruptedException
+	{
+		LongHashSet set = new LongHashSet();
+		AtomicInteger added = new AtomicInteger();
+		AtomicInteger missing = new AtomicInteger();
+
+		//Readers only look for values the writer has finished adding, through every grow()
+		List<Thread> readers = new ArrayList<>();
+		for (int t = 0; t < 3; t++)
+		{
+			Thread reader = new Thread(() ->
+			{
+				while (added.get() < 200_000)
+				{
+					int count = added.get();
+					for (int i = Math.max(0, count - 1000); i < count; i++)
+					{
+						if (!set.contains(hash(i)))
+							missing.incrementAndGet();
+					}
+				}
+			});
+			readers.add(reader);
+			reader.start();
+		}
+
+		for (int i = 0; i < 200_000; i++)
+		{
+			set.add(hash(i));
+			added.set(i + 1);
+		}
+		for (Thread reader : readers)
+			reader.join();
+
+		assertThat(missing.get()).isEqualTo(0);
+		assertThat(set.size()).isEqualTo(200_000);
+	}
+}
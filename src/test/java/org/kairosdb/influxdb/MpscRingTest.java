@@ -0,0 +1,93 @@
+package org.kairosdb.influxdb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MpscRingTest
+{
+	@Test
+	public void testCapacityRoundedUp()
+	{
+		assertThat(new MpscRing<String>(1000).capacity()).isEqualTo(1024);
+		assertThat(new MpscRing<String>(1024).capacity()).isEqualTo(1024);
+	}
+
+	@Test
+	public void testFullAndWrapAround()
+	{
+		MpscRing<Integer> ring = new MpscRing<>(4);
+		List<Integer> consumed = new ArrayList<>();
+
+		for (int round = 0; round < 3; round++)
+		{
+			for (int i = 0; i < 4; i++)
+				assertThat(ring.offer(round * 4 + i)).isTrue();
+			assertThat(ring.offer(-1)).isFalse();
+			assertThat(ring.size()).isEqualTo(4);
+
+			assertThat(ring.drain(consumed::add, 3)).isEqualTo(3);
+			assertThat(ring.drain(consumed::add, 10)).isEqualTo(1);
+			assertThat(ring.drain(consumed::add, 10)).isEqualTo(0);
+		}
+
+		List<Integer> expected = new ArrayList<>();
+		for (int i = 0; i < 12; i++)
+			expected.add(i);
+		assertThat(consumed).isEqualTo(expected);
+	}
+
+	@Test
+	public void testConcurrentProducersKeepTheirOrder() throws InterruptedException
+	{
+		int producers = 4;
+		int perProducer = 100_000;
+		MpscRing<long[]> ring = new MpscRing<>(256);
+		CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++)
+		{
+			long producer = p;
+			Thread thread = new Thread(() ->
+			{
+				try
+				{
+					start.await();
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				for (long i = 0; i < perProducer; i++)
+				{
+					long[] item = {producer, i};
+					while (!ring.offer(item))
+						Thread.yield();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		long[] next = new long[producers];
+		int[] total = {0};
+		start.countDown();
+		while (total[0] < producers * perProducer)
+		{
+			total[0] += ring.drain(item ->
+			{
+				assertThat(item[1]).isEqualTo(next[(int) item[0]]);
+				next[(int) item[0]]++;
+			}, 1000);
+		}
+
+		for (Thread thread : threads)
+			thread.join();
+		assertThat(ring.size()).isEqualTo(0);
+	}
+}
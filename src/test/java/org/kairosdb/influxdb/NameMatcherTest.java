@@ -0,0 +1,120 @@
+package org.kairosdb.influxdb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NameMatcherTest
+{
+	private static NameMatcher compile(String... regex)
+	{
+		List<Pattern> patterns = new ArrayList<>();
+		for (String r : regex)
+			patterns.add(Pattern.compile(r));
+		return NameMatcher.compile(patterns);
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		NameMatcher matcher = compile();
+
+		assertThat(matcher.isEmpty()).isTrue();
+		assertThat(matcher.matches("cpu.usage")).isFalse();
+	}
+
+	@Test
+	public void testLiteral()
+	{
+		NameMatcher matcher = compile("^kernel\\.interrupts$", "mem.total");
+
+		assertThat(matcher.isEmpty()).isFalse();
+		assertThat(matcher.matches("kernel.interrupts")).isTrue();
+		assertThat(matcher.matches("kernelXinterrupts")).isFalse();
+		assertThat(matcher.matches("mem.total")).isTrue();
+		assertThat(matcher.matches("memXtotal")).isTrue();
+		assertThat(matcher.matches("mem.total.extra")).isFalse();
+	}
+
+	@Test
+	public void testPrefix()
+	{
+		NameMatcher matcher = compile("^swap\\..*$", "^disk.*");
+
+		assertThat(matcher.matches("swap.used")).isTrue();
+		assertThat(matcher.matches("swap.")).isTrue();
+		assertThat(matcher.matches("swapused")).isFalse();
+		assertThat(matcher.matches("disk")).isTrue();
+		assertThat(matcher.matches("diskio.reads")).isTrue();
+		assertThat(matcher.matches("dis")).isFalse();
+	}
+
+	@Test
+	public void testRegex()
+	{
+		NameMatcher matcher = compile("^cpu\\.usage_(user|system)$", "^net\\.[a-z]+_err$");
+
+		assertThat(matcher.matches("cpu.usage_user")).isTrue();
+		assertThat(matcher.matches("cpu.usage_idle")).isFalse();
+		assertThat(matcher.matches("net.eth_err")).isTrue();
+		assertThat(matcher.matches("net.eth0_err")).isFalse();
+	}
+
+	@Test
+	public void testBackReferenceKeptSeparate()
+	{
+		NameMatcher matcher = compile("^(a+)b\\1$", "^(x)y\\1$", "^c[0-9]$");
+
+		assertThat(matcher.matches("aabaa")).isTrue();
+		assertThat(matcher.matches("aaba")).isFalse();
+		assertThat(matcher.matches("xyx")).isTrue();
+		assertThat(matcher.matches("c7")).isTrue();
+	}
+
+	@Test
+	public void testSameResultAsPatternMatches()
+	{
+		List<String> regex = Arrays.asList(
+				"^kernel\\.interrupts$", "mem.total", "^swap\\..*$", "^disk.*", "a.c", "a.c.*",
+				"ab.*", "^.*$", "x\\*y", "x.*y", "\\$end", "^b.", "^(a+)b\\1$", "^cpu\\.usage_(user|system)$",
+				"^net\\.[a-z]+_err$", "", "^", "$", ".", "\u00e9.");
+
+		List<String> names = Arrays.asList(
+				"", "a", "ab", "abc", "aXc", "aXcY", "a\nc", "ab\n", "ab\nc", "a\u2028c", "a\rc",
+				"kernel.interrupts", "kernelXinterrupts", "mem.total", "memXtotal", "swap.used", "swap",
+				"swap.\n", "disk", "diskio", "x*y", "xy", "x*", "x.y", "$end", "end", "b\n", "bc",
+				"aabaa", "cpu.usage_user", "cpu.usage_idle", "net.eth_err", "\u00e9x", "\u00e9\ud83d\ude00",
+				"a\ud83d\ude00c", "ab\ud83d\ude00", "\ud83d\ude00", "\n");
+
+		List<Pattern> patterns = new ArrayList<>();
+		for (String r : regex)
+			patterns.add(Pattern.compile(r));
+
+		//Check each pattern on its own and all of them together
+		for (Pattern pattern : patterns)
+		{
+			NameMatcher matcher = NameMatcher.compile(Arrays.asList(pattern));
+			for (String name : names)
+			{
+				assertThat(matcher.matches(name))
+						.as("pattern '%s' name '%s'", pattern, name)
+						.isEqualTo(pattern.matcher(name).matches());
+			}
+		}
+
+		NameMatcher matcher = NameMatcher.compile(patterns);
+		for (String name : names)
+		{
+			boolean expected = false;
+			for (Pattern pattern : patterns)
+				expected |= pattern.matcher(name).matches();
+
+			assertThat(matcher.matches(name)).as("name '%s'", name).isEqualTo(expected);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package org.kairosdb.influxdb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class NumberParserTest
+{
+	private static List<LineTokenizer> tokenize(String value) throws ParseException
+	{
+		String line = "f=" + value;
+		Tokenizer tokenizer = new Tokenizer(line);
+		tokenizer.next();
+		byte[] bytes = line.getBytes(UTF_8);
+		ByteTokenizer byteTokenizer = new ByteTokenizer(bytes, 0, bytes.length);
+		byteTokenizer.next();
+		return Arrays.asList(tokenizer, byteTokenizer);
+	}
+
+	private static void assertDouble(String value) throws ParseException
+	{
+		for (LineTokenizer tokenizer : tokenize(value))
+		{
+			assertThat(Double.doubleToRawLongBits(NumberParser.parseDouble(tokenizer)))
+					.as(value)
+					.isEqualTo(Double.doubleToRawLongBits(Double.parseDouble(value)));
+		}
+	}
+
+	private static void assertLong(String value) throws ParseException
+	{
+		for (LineTokenizer tokenizer : tokenize(value + "i"))
+		{
+			assertThat(NumberParser.parseLong(tokenizer, 1)).as(value).isEqualTo(Long.parseLong(value));
+		}
+	}
+
+	@Test
+	public void testDoubles() throws ParseException
+	{
+		for (String value : Arrays.asList("0", "-0", "+0", "0.0", "-0.0", "1", "-1", "1.5", ".5", "5.", "1e5", "1E-5",
+				"1.e3", "27.9568771251547", "0.1", "0.3", "123456789012345678", "1234567890123456789012", "9007199254740993",
+				"1e22", "1e23", "1e-22", "1e-23", "4.9e-324", "1.7976931348623157e308", "1e400", "0.000000000000000000001",
+				"NaN", "Infinity", "-Infinity", "1d", "1.5f", "0x1p3", "00012.5000", "1e+0005"))
+		{
+			assertDouble(value);
+		}
+	}
+
+	@Test
+	public void testRandomDoubles() throws ParseException
+	{
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++)
+		{
+			assertDouble(Double.toString(Double.longBitsToDouble(random.nextLong())));
+			assertDouble(Double.toString(random.nextDouble() * 1000));
+
+			// Decimal strings as written by agents
+			StringBuilder sb = new StringBuilder();
+			int digits = 1 + random.nextInt(17);
+			for (int d = 0; d < digits; d++)
+				sb.append((char) ('0' + random.nextInt(10)));
+			sb.insert(random.nextInt(digits + 1), '.');
+			if (sb.length() > 1)
+				assertDouble(sb.toString());
+		}
+	}
+
+	@Test
+	public void testInvalidDoubles() throws ParseException
+	{
+		for (String value : Arrays.asList("", "-", ".", "e5", "1e", "1e+", "1.5.5", "abc", "1-2"))
+		{
+			for (LineTokenizer tokenizer : tokenize(value))
+			{
+				assertThatThrownBy(() -> NumberParser.parseDouble(tokenizer)).as(value).isInstanceOf(NumberFormatException.class);
+			}
+		}
+	}
+
+	@Test
+	public void testLongs() throws ParseException
+	{
+		List<String> values = new ArrayList<>(Arrays.asList("0", "-0", "+5", "-5", "123456789012345678",
+				"9223372036854775807", "-9223372036854775808", "\u0661\u0662"));
+		Random random = new Random(42);
+		for (int i = 0; i < 1000; i++)
+			values.add(Long.toString(random.nextLong()));
+
+		for (String value : values)
+		{
+			assertLong(value);
+		}
+	}
+
+	@Test
+	public void testInvalidLongs() throws ParseException
+	{
+		for (String value : Arrays.asList("", "-", "1.5", "9223372036854775808", "12a"))
+		{
+			for (LineTokenizer tokenizer : tokenize(value + "i"))
+			{
+				assertThatThrownBy(() -> NumberParser.parseLong(tokenizer, 1)).as(value).isInstanceOf(NumberFormatException.class);
+			}
+		}
+	}
+}
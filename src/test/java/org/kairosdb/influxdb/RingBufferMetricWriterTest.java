@@ -0,0 +1,229 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.eventbus.Publisher;
+import org.kairosdb.events.DataPointEvent;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+public class RingBufferMetricWriterTest
+{
+	@Mock
+	private FilterEventBus mockEventBus;
+	@Mock
+	private Publisher<DataPointEvent> mockPublisher;
+
+	private final List<DataPointEvent> posted = Collections.synchronizedList(new ArrayList<>());
+
+	@Before
+	public void setup()
+	{
+		MockitoAnnotations.initMocks(this);
+		when(mockEventBus.<DataPointEvent>createPublisher(any())).thenReturn(mockPublisher);
+		doAnswer(invocation ->
+		{
+			posted.add(invocation.getArgument(0));
+			return null;
+		}).when(mockPublisher).post(any());
+	}
+
+	@Test
+	public void testSeriesKeepTheirOrder()
+	{
+		RingBufferMetricWriter writer = new RingBufferMetricWriter(mockEventBus, 3, 64, RingBufferMetricWriter.WaitStrategy.YIELD, 1000);
+		writer.start();
+
+		List<DataPointEvent> batch = new ArrayList<>();
+		for (int i = 0; i < 1000; i++)
+		{
+			ImmutableSortedMap<String, String> tags = ImmutableSortedMap.of("host", "host" + (i % 10));
+			batch.add(new DataPointEvent("cpu.usage", tags, new LongDataPoint(i, i)));
+			if (batch.size() == 50)
+			{
+				writer.writeBatch(batch);
+				batch.clear();
+			}
+		}
+		writer.write("mem.used", ImmutableSortedMap.of("host", "host0"), new LongDataPoint(0, 0));
+		writer.stop();
+
+		assertThat(posted).hasSize(1001);
+		assertThat(writer.getOverflowed()).isEqualTo(0);
+
+		long[] lastTimestamp = new long[10];
+		Arrays.fill(lastTimestamp, -1);
+		for (DataPointEvent event : posted)
+		{
+			if (!event.getMetricName().equals("cpu.usage"))
+				continue;
+			int host = Integer.parseInt(event.getTags().get("host").substring(4));
+			assertThat(event.getDataPoint().getTimestamp()).isGreaterThan(lastTimestamp[host]);
+			lastTimestamp[host] = event.getDataPoint().getTimestamp();
+		}
+	}
+
+	@Test
+	public void testPostsOnWritingThreadWhenFull() throws InterruptedException
+	{
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		doAnswer(invocation ->
+		{
+			DataPointEvent event = invocation.getArgument(0);
+			if (event.getDataPoint().getTimestamp() == 1)
+			{
+				blocked.countDown();
+				release.await();
+			}
+			posted.add(event);
+			return null;
+		}).when(mockPublisher).post(any());
+
+		RingBufferMetricWriter writer = new RingBufferMetricWriter(mockEventBus, 1, 2, RingBufferMetricWriter.WaitStrategy.PARK, 0);
+		writer.start();
+
+		ImmutableSortedMap<String, String> tags = ImmutableSortedMap.of("host", "a");
+		writer.write("cpu", tags, new LongDataPoint(1, 1));
+		blocked.await();
+		// Publisher is stuck on the first point, the ring holds two more
+		writer.writeBatch(ImmutableList.of(
+				new DataPointEvent("cpu", tags, new LongDataPoint(2, 2)),
+				new DataPointEvent("cpu", tags, new LongDataPoint(3, 3)),
+				new DataPointEvent("cpu", tags, new LongDataPoint(4, 4))));
+
+		assertThat(writer.getOverflowed()).isEqualTo(1);
+		assertThat(writer.getDepth()).isEqualTo(2);
+		assertThat(posted).extracting(event -> event.getDataPoint().getTimestamp()).containsExactly(4L);
+
+		release.countDown();
+		writer.stop();
+		assertThat(posted).hasSize(4);
+	}
+
+	@Test
+	public void testBatchWaitsOnceForStuckPublisher() throws InterruptedException
+	{
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		doAnswer(invocation ->
+		{
+			DataPointEvent event = invocation.getArgument(0);
+			if (event.getDataPoint().getTimestamp() == 1)
+			{
+				blocked.countDown();
+				release.await();
+			}
+			posted.add(event);
+			return null;
+		}).when(mockPublisher).post(any());
+
+		RingBufferMetricWriter writer = new RingBufferMetricWriter(mockEventBus, 1, 2, RingBufferMetricWriter.WaitStrategy.PARK, 200);
+		writer.start();
+
+		ImmutableSortedMap<String, String> tags = ImmutableSortedMap.of("host", "a");
+		writer.write("cpu", tags, new LongDataPoint(1, 1));
+		blocked.await();
+
+		List<DataPointEvent> batch = new ArrayList<>();
+		for (int i = 2; i < 102; i++)
+			batch.add(new DataPointEvent("cpu", tags, new LongDataPoint(i, i)));
+		long start = System.nanoTime();
+		writer.writeBatch(batch);
+		long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		// Only the first full offer waits, the rest of the series follows it without waiting
+		assertThat(elapsedMs).isLessThan(5000);
+		assertThat(writer.getOverflowed()).isEqualTo(98);
+		List<Long> expected = new ArrayList<>();
+		for (long i = 4; i < 102; i++)
+			expected.add(i);
+		assertThat(posted).extracting(event -> event.getDataPoint().getTimestamp()).containsExactlyElementsOf(expected);
+
+		release.countDown();
+		writer.stop();
+		assertThat(posted).hasSize(101);
+	}
+
+	@Test
+	public void testFailedPostsCounted()
+	{
+		doAnswer(invocation ->
+		{
+			DataPointEvent event = invocation.getArgument(0);
+			if (event.getDataPoint().getLongValue() % 2 == 0)
+				throw new IllegalStateException("backend down");
+			posted.add(event);
+			return null;
+		}).when(mockPublisher).post(any());
+
+		RingBufferMetricWriter writer = new RingBufferMetricWriter(mockEventBus, 2, 64, RingBufferMetricWriter.WaitStrategy.YIELD, 1000);
+		writer.start();
+
+		ImmutableSortedMap<String, String> tags = ImmutableSortedMap.of("host", "a");
+		for (int i = 0; i < 1000; i++)
+			writer.write("cpu", tags, new LongDataPoint(i, i));
+		writer.stop();
+
+		assertThat(posted).hasSize(500);
+		assertThat(writer.getDropped()).isEqualTo(500);
+	}
+
+	@Test
+	public void testStopWhileWriting() throws InterruptedException
+	{
+		RingBufferMetricWriter writer = new RingBufferMetricWriter(mockEventBus, 2, 8, RingBufferMetricWriter.WaitStrategy.YIELD, 1000);
+		writer.start();
+
+		int threadCount = 4;
+		int pointsPerThread = 20000;
+		CountDownLatch started = new CountDownLatch(threadCount);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < threadCount; t++)
+		{
+			ImmutableSortedMap<String, String> tags = ImmutableSortedMap.of("host", "host" + t);
+			Thread thread = new Thread(() ->
+			{
+				started.countDown();
+				for (int i = 0; i < pointsPerThread; i++)
+					writer.write("cpu", tags, new LongDataPoint(i, i));
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		started.await();
+		writer.stop();
+		for (Thread thread : threads)
+			thread.join();
+
+		// Every point is posted, by a publisher before the stop or directly after it
+		assertThat(posted).hasSize(threadCount * pointsPerThread);
+	}
+
+	@Test
+	public void testPostsDirectlyWhenNotStarted()
+	{
+		RingBufferMetricWriter writer = new RingBufferMetricWriter(mockEventBus, 1, 16, RingBufferMetricWriter.WaitStrategy.SPIN, 0);
+
+		writer.write("cpu", ImmutableSortedMap.of("host", "a"), new LongDataPoint(1, 1));
+
+		assertThat(posted).hasSize(1);
+	}
+}
@@ -0,0 +1,55 @@
+package org.kairosdb.influxdb;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class SampledLoggerTest
+{
+	@Test
+	public void testLogsFirstErrorsOnly()
+	{
+		SampledLogger sampledLogger = new SampledLogger(mock(Logger.class), 3, 1, TimeUnit.HOURS);
+
+		for (int i = 0; i < 3; i++)
+			assertThat(sampledLogger.shouldLog()).isTrue();
+		for (int i = 0; i < 100; i++)
+			assertThat(sampledLogger.shouldLog()).isFalse();
+
+		assertThat(sampledLogger.getSuppressed()).isEqualTo(100);
+	}
+
+	@Test
+	public void testReportsSuppressedWhenIntervalEnds() throws InterruptedException
+	{
+		Logger logger = mock(Logger.class);
+		SampledLogger sampledLogger = new SampledLogger(logger, 1, 10, TimeUnit.MILLISECONDS);
+
+		assertThat(sampledLogger.shouldLog()).isTrue();
+		assertThat(sampledLogger.shouldLog()).isFalse();
+		assertThat(sampledLogger.shouldLog()).isFalse();
+
+		Thread.sleep(20);
+
+		assertThat(sampledLogger.shouldLog()).isTrue();
+		assertThat(sampledLogger.getSuppressed()).isEqualTo(0);
+		verify(logger).error(anyString(), eq(2L), anyLong());
+	}
+
+	@Test
+	public void testZeroLimitNeverLogs()
+	{
+		SampledLogger sampledLogger = new SampledLogger(mock(Logger.class), 0, 1, TimeUnit.HOURS);
+
+		assertThat(sampledLogger.shouldLog()).isFalse();
+		assertThat(sampledLogger.getSuppressed()).isEqualTo(1);
+	}
+}
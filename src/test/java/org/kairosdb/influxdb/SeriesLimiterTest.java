@@ -0,0 +1,175 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SeriesLimiterTest
+{
+	private static long series(String measurement, int host)
+	{
+		return SeriesLimiter.hash(measurement, ImmutableSortedMap.of("host", "host" + host));
+	}
+
+	private static int allowed(SeriesLimiter limiter, String measurement, String bucket, int from, int to)
+	{
+		int allowed = 0;
+		for (int i = from; i < to; i++)
+		{
+			if (limiter.allow(measurement, bucket, series(measurement, i)))
+				allowed++;
+		}
+		return allowed;
+	}
+
+	@Test
+	public void testDisabledByDefault()
+	{
+		SeriesLimiter limiter = new SeriesLimiter();
+		assertThat(limiter.isEnabled()).isFalse();
+		assertThat(allowed(limiter, "cpu", null, 0, 1000)).isEqualTo(1000);
+	}
+
+	@Test
+	public void testNewSeriesDroppedOverLimit()
+	{
+		SeriesLimiter limiter = new SeriesLimiter(100, SeriesLimiter.Action.DROP, 60, 10);
+
+		assertThat(allowed(limiter, "cpu", "db", 0, 100)).isEqualTo(100);
+		assertThat(allowed(limiter, "cpu", "db", 100, 10_000)).isEqualTo(0);
+
+		//Known series keep flowing
+		assertThat(allowed(limiter, "cpu", "db", 0, 100)).isEqualTo(100);
+		assertThat(limiter.getEstimate("cpu", "db")).isBetween(9000L, 11000L);
+	}
+
+	@Test
+	public void testLargeLimits()
+	{
+		for (int limit : new int[]{10_000, 50_000, 200_000})
+		{
+			SeriesLimiter limiter = new SeriesLimiter(limit, SeriesLimiter.Action.DROP, 60, 10);
+
+			assertThat(allowed(limiter, "cpu", null, 0, limit)).isEqualTo(limit);
+			assertThat(allowed(limiter, "cpu", null, limit, limit * 3)).isEqualTo(0);
+			assertThat(allowed(limiter, "cpu", null, 0, limit)).isEqualTo(limit);
+		}
+	}
+
+	@Test
+	public void testLimitHoldsWithConcurrentWriters() throws InterruptedException
+	{
+		int limit = 20_000;
+		SeriesLimiter limiter = new SeriesLimiter(limit, SeriesLimiter.Action.DROP, 60, 10);
+
+		//Each thread writes series of its own, together four times the limit
+		AtomicInteger allowedNew = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++)
+		{
+			int first = limit + t * limit;
+			Thread thread = new Thread(() -> allowedNew.addAndGet(allowed(limiter, "cpu", null, first, first + limit)));
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		assertThat(allowedNew.get()).isEqualTo(limit);
+		assertThat(allowed(limiter, "cpu", null, 0, limit)).isEqualTo(0);
+	}
+
+	@Test
+	public void testLimitIsPerMeasurementAndBucket()
+	{
+		SeriesLimiter limiter = new SeriesLimiter(100, SeriesLimiter.Action.DROP, 60, 10);
+
+		allowed(limiter, "cpu", "db", 0, 1000);
+		assertThat(allowed(limiter, "mem", "db", 0, 50)).isEqualTo(50);
+		assertThat(allowed(limiter, "cpu", "other", 0, 50)).isEqualTo(50);
+		assertThat(allowed(limiter, "cpu", null, 0, 50)).isEqualTo(50);
+	}
+
+	@Test
+	public void testCountAction()
+	{
+		SeriesLimiter limiter = new SeriesLimiter(100, SeriesLimiter.Action.COUNT, 60, 10);
+
+		assertThat(allowed(limiter, "cpu", null, 0, 1000)).isEqualTo(1000);
+		assertThat(limiter.getEstimate("cpu", null)).isBetween(900L, 1100L);
+	}
+
+	@Test
+	public void testOverrides()
+	{
+		SeriesLimiter limiter = new SeriesLimiter(100, SeriesLimiter.Action.DROP, 60, 10);
+		limiter.setupOverrides(Arrays.asList("procstat:0", "disk:10"));
+
+		assertThat(allowed(limiter, "procstat", null, 0, 1000)).isEqualTo(1000);
+		assertThat(allowed(limiter, "disk", null, 0, 1000)).isLessThan(100);
+	}
+
+	@Test
+	public void testInvalidOverride()
+	{
+		SeriesLimiter limiter = new SeriesLimiter();
+		assertThatThrownBy(() -> limiter.setupOverrides(Arrays.asList("disk"))).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> limiter.setupOverrides(Arrays.asList("disk:abc"))).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	public void testUntrackedMeasurements()
+	{
+		SeriesLimiter limiter = new SeriesLimiter(100, SeriesLimiter.Action.DROP, 60, 2);
+
+		assertThat(allowed(limiter, "cpu", null, 0, 10)).isEqualTo(10);
+		assertThat(allowed(limiter, "mem", null, 0, 10)).isEqualTo(10);
+		//Not tracked, let through without a limit
+		assertThat(allowed(limiter, "disk", null, 0, 1000)).isEqualTo(1000);
+		assertThat(limiter.getEstimate("disk", null)).isEqualTo(0);
+	}
+
+	@Test
+	public void testIdleTrackersRemovedOnReset()
+	{
+		SeriesLimiter limiter = new SeriesLimiter(100, SeriesLimiter.Action.DROP, 1, 2);
+		long minute = 60_000;
+		long now = System.currentTimeMillis();
+
+		assertThat(limiter.allow("cpu", null, series("cpu", 0), now)).isTrue();
+		assertThat(limiter.allow("mem", null, series("mem", 0), now)).isTrue();
+		for (int i = 0; i < 1000; i++)
+			assertThat(limiter.allow("disk", "db" + i, series("disk", i), now)).isTrue();
+		assertThat(limiter.getEstimate("disk", "db0")).isEqualTo(0);
+
+		//Only cpu sees lines in the next interval
+		assertThat(limiter.allow("cpu", null, series("cpu", 1), now + minute)).isTrue();
+
+		//mem was idle and is removed, making room for disk
+		assertThat(limiter.allow("disk", "db0", series("disk", 0), now + 2 * minute)).isTrue();
+		assertThat(limiter.getEstimate("mem", null)).isEqualTo(0);
+		assertThat(limiter.getEstimate("disk", "db0")).isEqualTo(1);
+		assertThat(limiter.getEstimate("cpu", null)).isEqualTo(0);
+
+		//The limit applies to disk again
+		for (int i = 1; i < 100; i++)
+			assertThat(limiter.allow("disk", "db0", series("disk", i), now + 2 * minute)).isTrue();
+		assertThat(limiter.allow("disk", "db0", series("disk", 100), now + 2 * minute)).isFalse();
+	}
+
+	@Test
+	public void testReset()
+	{
+		SeriesLimiter limiter = new SeriesLimiter(100, SeriesLimiter.Action.DROP, 0, 10);
+
+		//Every call starts a new interval
+		assertThat(allowed(limiter, "cpu", null, 0, 1000)).isEqualTo(1000);
+	}
+}
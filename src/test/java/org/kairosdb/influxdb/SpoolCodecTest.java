@@ -0,0 +1,78 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Test;
+import org.kairosdb.core.datapoints.DoubleDataPoint;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.core.datapoints.StringDataPoint;
+import org.kairosdb.events.DataPointEvent;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SpoolCodecTest
+{
+	private static final ImmutableSortedMap<String, String> TAGS = ImmutableSortedMap.of("host", "a", "region", "us-east");
+
+	private static ByteBuffer payload(ByteBuffer record)
+	{
+		record.position(4);
+		return record.slice();
+	}
+
+	@Test
+	public void testRoundTrip()
+	{
+		List<DataPointEvent> events = Arrays.asList(
+				new DataPointEvent("cpu.usage", TAGS, new LongDataPoint(1547510150000L, -42)),
+				new DataPointEvent("cpu.usage", TAGS, new DoubleDataPoint(1547510140000L, 1.5), 3600),
+				new DataPointEvent("cpu.name", ImmutableSortedMap.of(), new StringDataPoint(1547510160000L, "\u00e9t\u00e9")),
+				new DataPointEvent("mem.used", TAGS, new LongDataPoint(0, Long.MAX_VALUE)));
+
+		ByteBuffer record = new SpoolCodec().encode(events, 4);
+		List<DataPointEvent> decoded = SpoolCodec.decode(payload(record));
+
+		assertThat(decoded).hasSize(4);
+		for (int i = 0; i < events.size(); i++)
+		{
+			DataPointEvent expected = events.get(i);
+			DataPointEvent actual = decoded.get(i);
+			assertThat(actual.getMetricName()).isEqualTo(expected.getMetricName());
+			assertThat(actual.getTags()).isEqualTo(expected.getTags());
+			assertThat(actual.getTtl()).isEqualTo(expected.getTtl());
+			assertThat(actual.getDataPoint().getTimestamp()).isEqualTo(expected.getDataPoint().getTimestamp());
+			assertThat(actual.getDataPoint().getClass()).isEqualTo(expected.getDataPoint().getClass());
+		}
+		assertThat(decoded.get(0).getDataPoint().getLongValue()).isEqualTo(-42);
+		assertThat(decoded.get(1).getDataPoint().getDoubleValue()).isEqualTo(1.5);
+		assertThat(((StringDataPoint) decoded.get(2).getDataPoint()).getValue()).isEqualTo("\u00e9t\u00e9");
+		assertThat(decoded.get(3).getDataPoint().getLongValue()).isEqualTo(Long.MAX_VALUE);
+	}
+
+	@Test
+	public void testRepeatedSeriesAreCompact()
+	{
+		DataPointEvent[] events = new DataPointEvent[100];
+		for (int i = 0; i < events.length; i++)
+			events[i] = new DataPointEvent("cpu.usage", TAGS, new LongDataPoint(1547510150000L + i * 10_000L, i));
+
+		ByteBuffer record = new SpoolCodec().encode(Arrays.asList(events), 0);
+
+		//Strings once, then a few bytes of indexes, timestamp delta and value per point
+		assertThat(record.remaining()).isLessThan(100 * 15);
+		assertThat(SpoolCodec.decode(record)).hasSize(100);
+	}
+
+	@Test
+	public void testMalformed()
+	{
+		ByteBuffer record = new SpoolCodec().encode(Arrays.asList(new DataPointEvent("cpu", TAGS, new LongDataPoint(0, 1))), 0);
+		record.limit(record.limit() - 1);
+
+		assertThatThrownBy(() -> SpoolCodec.decode(record)).isInstanceOf(IllegalArgumentException.class);
+	}
+}
@@ -0,0 +1,192 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.kairosdb.core.datapoints.LongDataPoint;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.eventbus.Publisher;
+import org.kairosdb.events.DataPointEvent;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+public class SpoolMetricWriterTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Mock
+	private FilterEventBus mockEventBus;
+	@Mock
+	private Publisher<DataPointEvent> mockPublisher;
+
+	private final List<DataPointEvent> posted = Collections.synchronizedList(new ArrayList<>());
+	private volatile CountDownLatch postBlock = new CountDownLatch(0);
+	private final CountDownLatch postStarted = new CountDownLatch(1);
+
+	@Before
+	public void setup()
+	{
+		MockitoAnnotations.initMocks(this);
+		when(mockEventBus.<DataPointEvent>createPublisher(any())).thenReturn(mockPublisher);
+		doAnswer(invocation ->
+		{
+			postStarted.countDown();
+			postBlock.await();
+			posted.add(invocation.getArgument(0));
+			return null;
+		}).when(mockPublisher).post(any());
+	}
+
+	private static List<DataPointEvent> batch(int from, int to)
+	{
+		List<DataPointEvent> batch = new ArrayList<>();
+		for (int i = from; i < to; i++)
+			batch.add(new DataPointEvent("cpu.usage", ImmutableSortedMap.of("host", "host" + (i % 10)), new LongDataPoint(i, i)));
+		return batch;
+	}
+
+	private void waitForPosted(int count) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (posted.size() < count && System.nanoTime() < deadline)
+			Thread.sleep(10);
+	}
+
+	@Test
+	public void testPointsReplayedInOrder() throws Exception
+	{
+		SpoolMetricWriter writer = new SpoolMetricWriter(mockEventBus, folder.getRoot().getPath(), 1, 10);
+		writer.start();
+
+		for (int i = 0; i < 1000; i += 100)
+			writer.writeBatch(batch(i, i + 100));
+		writer.write("mem.used", ImmutableSortedMap.of(), new LongDataPoint(0, 0));
+
+		waitForPosted(1001);
+		writer.stop();
+
+		assertThat(posted).hasSize(1001);
+		assertThat(writer.getReplayed()).isEqualTo(1001);
+		for (int i = 0; i < 1000; i++)
+			assertThat(posted.get(i).getDataPoint().getLongValue()).isEqualTo(i);
+		assertThat(posted.get(1000).getMetricName()).isEqualTo("mem.used");
+	}
+
+	@Test
+	public void testSlowBackendDoesNotBlockWriters() throws Exception
+	{
+		postBlock = new CountDownLatch(1);
+		SpoolMetricWriter writer = new SpoolMetricWriter(mockEventBus, folder.getRoot().getPath(), 1, 10);
+		writer.start();
+
+		for (int i = 0; i < 1000; i += 100)
+			writer.writeBatch(batch(i, i + 100));
+		assertThat(posted).isEmpty();
+		assertThat(writer.getSpoolSize()).isGreaterThan(0);
+
+		postBlock.countDown();
+		waitForPosted(1000);
+		writer.stop();
+		assertThat(posted).hasSize(1000);
+	}
+
+	@Test
+	public void testSpooledPointsSurviveRestart() throws Exception
+	{
+		//Hold up the replay thread in the first batch
+		postBlock = new CountDownLatch(1);
+		CountDownLatch stopping = new CountDownLatch(1);
+		SpoolMetricWriter writer = new SpoolMetricWriter(mockEventBus, folder.getRoot().getPath(), 1, 10)
+		{
+			@Override
+			void replayStopping()
+			{
+				stopping.countDown();
+			}
+		};
+		writer.start();
+		for (int i = 0; i < 500; i += 100)
+			writer.writeBatch(batch(i, i + 100));
+		assertThat(postStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+		Thread stopper = new Thread(writer::stop);
+		stopper.start();
+		//Let the batch finish only once the replay thread has been told to stop
+		assertThat(stopping.await(10, TimeUnit.SECONDS)).isTrue();
+		postBlock.countDown();
+		stopper.join();
+
+		//The batch being replayed is finished, the rest waits for the next start
+		assertThat(posted).hasSize(100);
+
+		posted.clear();
+		writer = new SpoolMetricWriter(mockEventBus, folder.getRoot().getPath(), 1, 10);
+		writer.start();
+		waitForPosted(400);
+		writer.stop();
+
+		assertThat(posted).hasSize(400);
+		assertThat(posted.get(0).getDataPoint().getLongValue()).isEqualTo(100);
+		assertThat(posted.get(399).getDataPoint().getLongValue()).isEqualTo(499);
+	}
+
+	@Test
+	public void testPostsDirectlyWhenFull() throws Exception
+	{
+		//Only the replay thread is held up
+		CountDownLatch replayBlock = new CountDownLatch(1);
+		doAnswer(invocation ->
+		{
+			if (Thread.currentThread().getName().equals("influx-spool-replay"))
+				replayBlock.await();
+			posted.add(invocation.getArgument(0));
+			return null;
+		}).when(mockPublisher).post(any());
+
+		SpoolMetricWriter writer = new SpoolMetricWriter(mockEventBus, folder.getRoot().getPath(), 1, 1);
+		writer.start();
+
+		//Write until the 1MB spool is full and then some more
+		int written = 0;
+		int overflowBatches = 0;
+		while (overflowBatches < 10 && written < 10_000_000)
+		{
+			writer.writeBatch(batch(written, written + 1000));
+			written += 1000;
+			if (writer.getOverflowed() != 0)
+				overflowBatches++;
+		}
+
+		assertThat(writer.getOverflowed()).isEqualTo(10_000);
+		assertThat(posted).hasSize(10_000);
+
+		replayBlock.countDown();
+		waitForPosted(written);
+		writer.stop();
+		assertThat(posted).hasSize(written);
+	}
+
+	@Test
+	public void testPostsDirectlyWhenStopped()
+	{
+		SpoolMetricWriter writer = new SpoolMetricWriter(mockEventBus, folder.getRoot().getPath(), 1, 10);
+		writer.writeBatch(batch(0, 10));
+
+		assertThat(posted).hasSize(10);
+		assertThat(folder.getRoot().list()).isEmpty();
+	}
+}
@@ -0,0 +1,168 @@
+package org.kairosdb.influxdb;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpoolTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static ByteBuffer record(String value)
+	{
+		byte[] bytes = value.getBytes(UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(Spool.HEADER_SIZE + bytes.length);
+		buffer.position(Spool.HEADER_SIZE);
+		buffer.put(bytes);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static List<String> readAll(Spool spool) throws IOException
+	{
+		List<String> values = new ArrayList<>();
+		ByteBuffer payload;
+		while ((payload = spool.next()) != null)
+		{
+			byte[] bytes = new byte[payload.remaining()];
+			payload.get(bytes);
+			values.add(new String(bytes, UTF_8));
+		}
+		return values;
+	}
+
+	private List<Path> segments(Path directory) throws IOException
+	{
+		try (Stream<Path> files = Files.list(directory))
+		{
+			return files.filter(f -> f.toString().endsWith(".spool")).sorted().collect(Collectors.toList());
+		}
+	}
+
+	@Test
+	public void testSegmentsRotatedAndDeleted() throws IOException
+	{
+		Path directory = folder.getRoot().toPath();
+		Spool spool = new Spool(directory, 100, 10_000, false);
+
+		for (int i = 0; i < 20; i++)
+			assertThat(spool.append(record("record " + i))).isTrue();
+		assertThat(spool.getSegmentCount()).isGreaterThan(3);
+		assertThat(spool.getSize()).isEqualTo(20 * (Spool.HEADER_SIZE + 8) + 10 * 1);
+
+		List<String> values = readAll(spool);
+		assertThat(values).hasSize(20);
+		assertThat(values.get(0)).isEqualTo("record 0");
+		assertThat(values.get(19)).isEqualTo("record 19");
+
+		//Only the segment being written remains
+		assertThat(spool.getSegmentCount()).isEqualTo(1);
+		assertThat(segments(directory)).hasSize(1);
+
+		//Reads pick up records appended after catching up
+		spool.append(record("later"));
+		assertThat(readAll(spool)).containsExactly("later");
+		spool.close();
+	}
+
+	@Test
+	public void testFull() throws IOException
+	{
+		Spool spool = new Spool(folder.getRoot().toPath(), 1000, 50, false);
+
+		assertThat(spool.append(record("0123456789"))).isTrue();
+		assertThat(spool.append(record("0123456789"))).isTrue();
+		assertThat(spool.append(record("0123456789"))).isFalse();
+		spool.close();
+	}
+
+	@Test
+	public void testRestartContinuesAfterCheckpoint() throws IOException
+	{
+		Path directory = folder.getRoot().toPath();
+		Spool spool = new Spool(directory, 100, 10_000, false);
+		for (int i = 0; i < 10; i++)
+			spool.append(record("record " + i));
+
+		for (int i = 0; i < 3; i++)
+			spool.next();
+		spool.commit();
+		//Read but not committed, read again after the restart
+		spool.next();
+		spool.close();
+
+		spool = new Spool(directory, 100, 10_000, false);
+		spool.append(record("after restart"));
+		List<String> values = readAll(spool);
+		assertThat(values).hasSize(8);
+		assertThat(values.get(0)).isEqualTo("record 3");
+		assertThat(values.get(7)).isEqualTo("after restart");
+		spool.commit();
+		spool.close();
+
+		//Nothing left to read, the empty segment is cleaned up on close
+		spool = new Spool(directory, 100, 10_000, false);
+		assertThat(spool.next()).isNull();
+		spool.close();
+		assertThat(segments(directory)).isEmpty();
+	}
+
+	@Test
+	public void testCorruptRecordSkipsRestOfSegment() throws IOException
+	{
+		Path directory = folder.getRoot().toPath();
+		Spool spool = new Spool(directory, 40, 10_000, false);
+		for (int i = 0; i < 4; i++)
+			spool.append(record("record " + i));
+		spool.close();
+
+		//Two records per segment, damage the second record of the first segment
+		Path first = segments(directory).get(0);
+		try (FileChannel channel = FileChannel.open(first, StandardOpenOption.WRITE))
+		{
+			channel.write(ByteBuffer.wrap(new byte[]{'X'}), Spool.HEADER_SIZE * 2 + 8 + 2);
+		}
+
+		spool = new Spool(directory, 40, 10_000, false);
+		assertThat(readAll(spool)).containsExactly("record 0", "record 2", "record 3");
+		assertThat(spool.getCorrupt()).isEqualTo(1);
+		spool.close();
+	}
+
+	@Test
+	public void testTruncatedSegment() throws IOException
+	{
+		Path directory = folder.getRoot().toPath();
+		Spool spool = new Spool(directory, 1000, 10_000, false);
+		spool.append(record("record 0"));
+		spool.append(record("record 1"));
+		spool.close();
+
+		//As if the process died part way through the second record
+		Path segment = segments(directory).get(0);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE))
+		{
+			channel.truncate(channel.size() - 3);
+		}
+
+		spool = new Spool(directory, 1000, 10_000, false);
+		assertThat(readAll(spool)).containsExactly("record 0");
+		assertThat(spool.getCorrupt()).isEqualTo(1);
+		spool.close();
+	}
+}
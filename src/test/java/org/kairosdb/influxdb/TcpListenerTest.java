@@ -0,0 +1,293 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.eventbus.Publisher;
+import org.kairosdb.events.DataPointEvent;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+public class TcpListenerTest
+{
+	@Mock
+	private FilterEventBus mockEventBus;
+	@Mock
+	private Publisher<DataPointEvent> mockPublisher;
+
+	private final List<DataPointEvent> posted = Collections.synchronizedList(new ArrayList<>());
+	private volatile CountDownLatch postBlock = new CountDownLatch(0);
+	private final List<SocketChannel> connections = new ArrayList<>();
+	private InfluxResource resource;
+	private InfluxParser parser;
+	private TcpListener listener;
+
+	@Before
+	public void setup()
+	{
+		MockitoAnnotations.initMocks(this);
+		when(mockEventBus.<DataPointEvent>createPublisher(any())).thenReturn(mockPublisher);
+		doAnswer(invocation ->
+		{
+			postBlock.await();
+			posted.add(invocation.getArgument(0));
+			return null;
+		}).when(mockPublisher).post(any());
+
+		parser = new InfluxParser();
+		resource = new InfluxResource(new MetricWriter(mockEventBus), parser, "influxdb");
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		postBlock.countDown();
+		for (SocketChannel connection : connections)
+			connection.close();
+		if (listener != null)
+			listener.stop();
+	}
+
+	private static int freePort() throws IOException
+	{
+		try (ServerSocket socket = new ServerSocket(0))
+		{
+			return socket.getLocalPort();
+		}
+	}
+
+	private void start(int parseThreads, int maxInFlight, int bufferSize) throws Exception
+	{
+		listener = new TcpListener(resource, parser, freePort(), 2, parseThreads, maxInFlight, bufferSize);
+		listener.start();
+	}
+
+	private SocketChannel connect() throws IOException
+	{
+		InetSocketAddress address = (InetSocketAddress) listener.getLocalAddress();
+		SocketChannel connection = SocketChannel.open(new InetSocketAddress("127.0.0.1", address.getPort()));
+		connections.add(connection);
+		return connection;
+	}
+
+	private static void send(SocketChannel connection, String lines) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(UTF_8));
+		while (buffer.hasRemaining())
+			connection.write(buffer);
+	}
+
+	private void waitForPosted(int count) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (posted.size() < count && System.nanoTime() < deadline)
+			Thread.sleep(10);
+	}
+
+	@Test
+	public void testDisabledByDefault() throws Exception
+	{
+		listener = new TcpListener(resource, parser);
+		listener.start();
+
+		assertThat(listener.getLocalAddress()).isNull();
+	}
+
+	@Test
+	public void testLinesSplitAcrossWrites() throws Exception
+	{
+		start(2, 4, 64);
+		SocketChannel connection = connect();
+
+		send(connection, "cpu,host=a usage=1i,idle=2i 1547510150000000000\n\ncpu,ho");
+		Thread.sleep(50);
+		send(connection, "st=b usage=3i 1547510150000000000\ncpu,host=c usage= 1547510150000000000\n");
+		//Longer than the buffer and without a newline before the connection is closed
+		send(connection, "memory_statistics,host=a,region=us-east-1,rack=r12 used_bytes=4i 1547510150000000000");
+		connection.close();
+		waitForPosted(4);
+
+		assertThat(posted).hasSize(4);
+		assertThat(posted).anySatisfy(event ->
+		{
+			assertThat(event.getMetricName()).isEqualTo("influxdb.cpu.usage");
+			assertThat(event.getTags()).isEqualTo(ImmutableSortedMap.of("host", "b"));
+			assertThat(event.getDataPoint().getLongValue()).isEqualTo(3);
+		});
+		assertThat(posted).anySatisfy(event ->
+		{
+			assertThat(event.getMetricName()).isEqualTo("influxdb.memory_statistics.used_bytes");
+			assertThat(event.getDataPoint().getLongValue()).isEqualTo(4);
+			assertThat(event.getDataPoint().getTimestamp()).isEqualTo(1547510150000L);
+		});
+	}
+
+	@Test
+	public void testLinesOfAConnectionWrittenInOrder() throws Exception
+	{
+		start(4, 8, 1024);
+		SocketChannel connection = connect();
+
+		for (int i = 0; i < 2000; i++)
+			send(connection, "cpu,host=a usage=" + i + "i " + (1547510150000L + i) + "000000\n");
+		waitForPosted(2000);
+
+		assertThat(posted).hasSize(2000);
+		for (int i = 0; i < 2000; i++)
+			assertThat(posted.get(i).getDataPoint().getLongValue()).isEqualTo(i);
+	}
+
+	@Test
+	public void testPausedWhileParsersBusy() throws Exception
+	{
+		postBlock = new CountDownLatch(1);
+		start(1, 1, 1024);
+		SocketChannel first = connect();
+		SocketChannel second = connect();
+
+		//The only parse slot is held by the first connection while the event bus blocks
+		send(first, "cpu,host=a usage=1i 1547510150000000000\n");
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		for (int i = 0; listener.getPaused() == 0 && System.nanoTime() < deadline; i++)
+		{
+			send(second, "cpu,host=b usage=" + i + "i 1547510150000000000\n");
+			Thread.sleep(10);
+		}
+		assertThat(listener.getPaused()).isGreaterThan(0);
+		assertThat(posted).isEmpty();
+
+		postBlock.countDown();
+		send(second, "cpu,host=c usage=1i 1547510150000000000\n");
+		waitForPosted(3);
+		assertThat(posted).anySatisfy(event -> assertThat(event.getTags()).containsEntry("host", "c"));
+	}
+
+	@Test
+	public void testLineTooLong() throws Exception
+	{
+		listener = new TcpListener(resource, parser, freePort(), 1, 1, 1, 16);
+		listener.start();
+		SocketChannel connection = connect();
+
+		//Grows the 16 byte buffer past the 1MB limit
+		StringBuilder line = new StringBuilder("cpu,host=a usage=1i 1547510150000000000 ");
+		while (line.length() < 2 * 1024 * 1024)
+			line.append(line);
+		try
+		{
+			send(connection, line.toString());
+		}
+		catch (IOException e)
+		{
+			//Closed by the listener
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (listener.getConnectionCount() != 0 && System.nanoTime() < deadline)
+			Thread.sleep(10);
+		assertThat(listener.getConnectionCount()).isEqualTo(0);
+		assertThat(posted).isEmpty();
+	}
+
+	@Test
+	public void testBufferShrinksAfterLongLine() throws Exception
+	{
+		start(1, 1, 1024);
+		SocketChannel connection = connect();
+
+		//The buffer grows while the line is incomplete
+		send(connection, "cpu,host=" + Strings.repeat("a", 10_000));
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (listener.getBufferBytes() <= 1024 && System.nanoTime() < deadline)
+			Thread.sleep(10);
+		assertThat(listener.getBufferBytes()).isGreaterThan(10_000);
+
+		send(connection, " usage=1i 1547510150000000000\ncpu,host=b usage=2i");
+		waitForPosted(1);
+		deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (listener.getBufferBytes() != 1024 && System.nanoTime() < deadline)
+			Thread.sleep(10);
+		assertThat(listener.getBufferBytes()).isEqualTo(1024);
+
+		//The partial line kept in the smaller buffer is still written
+		send(connection, " 1547510150000000000\n");
+		waitForPosted(2);
+		assertThat(posted).hasSize(2);
+		assertThat(posted.get(1).getTags()).containsEntry("host", "b");
+	}
+
+	@Test
+	public void testServesConnectionsAfterAcceptFails() throws Exception
+	{
+		AtomicBoolean failed = new AtomicBoolean();
+		listener = new TcpListener(resource, parser, freePort(), 2, 1, 1, 1024)
+		{
+			@Override
+			SocketChannel acceptChannel(ServerSocketChannel serverChannel) throws IOException
+			{
+				if (failed.compareAndSet(false, true))
+					throw new IOException("Too many open files");
+				return super.acceptChannel(serverChannel);
+			}
+		};
+		listener.start();
+
+		SocketChannel connection = connect();
+		send(connection, "cpu,host=a usage=1i 1547510150000000000\n");
+		waitForPosted(1);
+
+		assertThat(failed.get()).isTrue();
+		assertThat(posted).hasSize(1);
+	}
+
+	@Test
+	public void testServesConnectionsAfterSetupFails() throws Exception
+	{
+		AtomicBoolean failed = new AtomicBoolean();
+		listener = new TcpListener(resource, parser, freePort(), 2, 1, 1, 1024)
+		{
+			@Override
+			void configureChannel(SocketChannel channel) throws IOException
+			{
+				if (failed.compareAndSet(false, true))
+					throw new IOException("Connection reset by peer");
+				super.configureChannel(channel);
+			}
+		};
+		listener.start();
+
+		//Closed by the listener
+		SocketChannel first = connect();
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		assertThat(first.read(buffer)).isEqualTo(-1);
+
+		SocketChannel second = connect();
+		send(second, "cpu,host=b usage=2i 1547510150000000000\n");
+		waitForPosted(1);
+
+		assertThat(posted).hasSize(1);
+		assertThat(listener.getConnectionCount()).isEqualTo(1);
+	}
+}
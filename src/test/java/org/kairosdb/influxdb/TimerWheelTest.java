@@ -0,0 +1,83 @@
+package org.kairosdb.influxdb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimerWheelTest
+{
+	private static List<Long> advance(TimerWheel wheel, long tick)
+	{
+		List<Long> expired = new ArrayList<>();
+		wheel.advance(tick, (entry, current) ->
+		{
+			//Entries are their own deadline
+			if (entry > current)
+				return entry;
+			expired.add(entry);
+			return -1;
+		});
+		return expired;
+	}
+
+	@Test
+	public void testExpiresInOrderOfTicks()
+	{
+		TimerWheel wheel = new TimerWheel(8, 0);
+		wheel.schedule(3, 3);
+		wheel.schedule(1, 1);
+		wheel.schedule(2, 2);
+
+		assertThat(advance(wheel, 1)).containsExactly(1L);
+		assertThat(advance(wheel, 3)).containsExactly(2L, 3L);
+		assertThat(wheel.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void testDeadlinesPastOneTurn()
+	{
+		TimerWheel wheel = new TimerWheel(8, 0);
+		wheel.schedule(2, 2);
+		wheel.schedule(10, 10);
+		wheel.schedule(26, 26);
+
+		assertThat(advance(wheel, 2)).containsExactly(2L);
+		assertThat(advance(wheel, 9)).isEmpty();
+		assertThat(advance(wheel, 10)).containsExactly(10L);
+		assertThat(wheel.size()).isEqualTo(1);
+
+		//Skipping more than a turn visits every bucket once
+		assertThat(advance(wheel, 100)).containsExactly(26L);
+	}
+
+	@Test
+	public void testPastDeadlineExpiresOnNextAdvance()
+	{
+		TimerWheel wheel = new TimerWheel(8, 5);
+		wheel.schedule(1, 1);
+
+		assertThat(advance(wheel, 6)).containsExactly(1L);
+	}
+
+	@Test
+	public void testRemovedEntries()
+	{
+		TimerWheel wheel = new TimerWheel(8, 0);
+		for (long i = 0; i < 100; i++)
+			wheel.schedule(i, 4);
+
+		List<Long> expired = new ArrayList<>();
+		wheel.advance(4, (entry, current) ->
+		{
+			if (entry % 2 == 0)
+				expired.add(entry);
+			return -1;
+		});
+
+		assertThat(expired).hasSize(50);
+		assertThat(wheel.size()).isEqualTo(0);
+	}
+}
@@ -0,0 +1,229 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import java.text.CharacterIterator;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TokenizerTest
+{
+	private static List<String> tokens(LineTokenizer tokenizer) throws ParseException
+	{
+		List<String> tokens = new ArrayList<>();
+		while (true)
+		{
+			tokens.add(tokenizer.getString() + tokenizer.getChar());
+			if (tokenizer.getChar() == CharacterIterator.DONE)
+				break;
+			tokenizer.next();
+		}
+		return tokens;
+	}
+
+	private static List<String> byteTokens(String line) throws ParseException
+	{
+		byte[] bytes = line.getBytes(UTF_8);
+		return tokens(new ByteTokenizer(bytes, 0, bytes.length));
+	}
+
+	@Test
+	public void testReuseWithShorterLine() throws ParseException
+	{
+		String longLine = "cpu," + Strings.repeat("tag=value,", 100) + "host=a value=1i 1547510150000000000";
+		String shortLine = "mem,host=b used=2i";
+
+		Tokenizer tokenizer = new Tokenizer();
+		tokenizer.reset(longLine);
+		assertThat(tokens(tokenizer)).hasSize(206);
+
+		tokenizer.reset(shortLine);
+		assertThat(tokens(tokenizer)).isEqualTo(tokens(new Tokenizer(shortLine)));
+	}
+
+	@Test
+	public void testByteTokenizerReuseWithShorterLine() throws ParseException
+	{
+		byte[] longLine = ("cpu," + Strings.repeat("tag=value,", 100) + "host=a value=1i 1547510150000000000").getBytes(UTF_8);
+		byte[] shortLine = "mem,host=b used=2i".getBytes(UTF_8);
+
+		ByteTokenizer tokenizer = new ByteTokenizer();
+		tokenizer.reset(longLine, 0, longLine.length);
+		assertThat(tokens(tokenizer)).hasSize(206);
+
+		tokenizer.reset(shortLine, 0, shortLine.length);
+		assertThat(tokens(tokenizer)).isEqualTo(tokens(new Tokenizer("mem,host=b used=2i")));
+	}
+
+	@Test
+	public void testReuseAfterParseException() throws ParseException
+	{
+		Tokenizer tokenizer = new Tokenizer();
+		try
+		{
+			tokenizer.reset("system uptime_format=\"5:53");
+		}
+		catch (ParseException e)
+		{
+			assertThat(e.getMessage()).isEqualTo("Invalid syntax: unterminated double quote");
+		}
+
+		tokenizer.reset("system uptime=5i");
+		assertThat(tokens(tokenizer)).containsExactly("system ", "uptime=", "5i" + CharacterIterator.DONE);
+	}
+
+	@Test
+	public void testTokenHashCodeAndEquals() throws ParseException
+	{
+		String line = "cpu,host=h\u00e9\u00e9,region=us-east value=1i";
+		byte[] bytes = line.getBytes(UTF_8);
+		LineTokenizer[] tokenizers = new LineTokenizer[] {new Tokenizer(line), new ByteTokenizer(bytes, 0, bytes.length)};
+
+		for (LineTokenizer tokenizer : tokenizers)
+		{
+			while (tokenizer.getChar() != CharacterIterator.DONE)
+			{
+				String token = tokenizer.getString();
+				assertThat(tokenizer.tokenHashCode()).isEqualTo(token.hashCode());
+				assertThat(tokenizer.tokenEquals(token)).isTrue();
+				assertThat(tokenizer.tokenEquals(token + "x")).isFalse();
+				assertThat(tokenizer.tokenEquals("h\u00e9e")).isEqualTo(token.equals("h\u00e9e"));
+				tokenizer.next();
+			}
+		}
+	}
+
+	@Test
+	public void testUnicodeWhitespaceSplits() throws ParseException
+	{
+		String line = "cpu,host=a\u3000b value=1i";
+
+		assertThat(tokens(new Tokenizer(line))).containsExactly("cpu,", "host=", "a\u3000", "b ", "value=", "1i" + CharacterIterator.DONE);
+		assertThat(byteTokens(line)).isEqualTo(tokens(new Tokenizer(line)));
+	}
+
+	@Test
+	public void testTrailingBackslashBecomesDone() throws ParseException
+	{
+		String line = "cpu,host=a\\";
+
+		assertThat(tokens(new Tokenizer(line))).containsExactly("cpu,", "host=", "a" + CharacterIterator.DONE + CharacterIterator.DONE);
+		assertThat(byteTokens(line)).isEqualTo(tokens(new Tokenizer(line)));
+	}
+
+	@Test
+	public void testStringAndByteTokenizersMatch() throws ParseException
+	{
+		String[] lines = {
+				"cpu,host=a\tvalue=1i",
+				"cpu,host=a\u2003b value=1i",
+				"cpu,host=a\u3000b value=1i 1547510150000000000",
+				"cpu,host=\u1680 value=1i\u2028",
+				"cpu,host=\u00e9t\u00e9\u00a0x value=1i",
+				"cpu,host=a\\ b\u2003c value=1i\\",
+				"cpu,host=a value=\"x\u2003y\"\\",
+				"cpu,host=a\u2007b\u202fc\u0085d value=1i",
+				"\u3000cpu,host=\u2003 value=1i\u3000\u3000",
+				"cpu,host=a\\\u3000b value=1i",
+				"cpu\\"
+		};
+
+		ByteTokenizer reused = new ByteTokenizer();
+		for (String line : lines)
+		{
+			assertThat(byteTokens(line)).as(line).isEqualTo(tokens(new Tokenizer(line)));
+
+			byte[] bytes = line.getBytes(UTF_8);
+			reused.reset(bytes, 0, bytes.length);
+			assertThat(tokens(reused)).as(line).isEqualTo(tokens(new Tokenizer(line)));
+		}
+	}
+
+	/**
+	 Everything the parser reads of each token, so the paths are compared on
+	 more than getString()
+	 */
+	private static List<String> tokenDetails(LineTokenizer tokenizer) throws ParseException
+	{
+		List<String> details = new ArrayList<>();
+		while (true)
+		{
+			StringBuilder chars = new StringBuilder();
+			for (int i = 0; i < tokenizer.getLength(); i++)
+				chars.append(tokenizer.charAt(i));
+
+			details.add(tokenizer.getString() + tokenizer.getChar() + "|" + chars + "|" + tokenizer.tokenHashCode());
+			if (tokenizer.getChar() == CharacterIterator.DONE)
+				break;
+			tokenizer.next();
+		}
+		return details;
+	}
+
+	@Test
+	public void testFastAndSlowPathsMatch() throws ParseException
+	{
+		String[] lines = {
+				"cpu value=1i",
+				"cpu,host=a,region=us-east usage_idle=99.5,usage_user=0.5 1547510150000000000",
+				"cpu,host=a\tvalue=1i\t1547510150000000000",
+				"cpu,host=h\u00e9\u00e9 value=1i",
+				"cpu,host=a\u3000b value=1i",
+				"cpu,host=a  value=1i ",
+				"cpu,host=,=x value=",
+				"cpu"
+		};
+
+		Tokenizer reusedTokenizer = new Tokenizer();
+		ByteTokenizer reusedByteTokenizer = new ByteTokenizer();
+		for (String line : lines)
+		{
+			//Escaping the c of cpu changes nothing but sends the line down the slow path
+			String slowLine = "\\" + line;
+			byte[] bytes = line.getBytes(UTF_8);
+			byte[] slowBytes = slowLine.getBytes(UTF_8);
+
+			List<String> expected = tokenDetails(new Tokenizer(line));
+			assertThat(tokenDetails(new Tokenizer(slowLine))).as(line).isEqualTo(expected);
+
+			//Lengths and chars of the byte tokenizer are in bytes so it is only compared to itself
+			List<String> expectedBytes = tokenDetails(new ByteTokenizer(bytes, 0, bytes.length));
+			assertThat(tokenDetails(new ByteTokenizer(slowBytes, 0, slowBytes.length))).as(line).isEqualTo(expectedBytes);
+			assertThat(tokens(new ByteTokenizer(slowBytes, 0, slowBytes.length))).as(line).isEqualTo(tokens(new Tokenizer(line)));
+
+			//Alternate the paths on the same instances
+			reusedTokenizer.reset(slowLine);
+			assertThat(tokenDetails(reusedTokenizer)).as(line).isEqualTo(expected);
+			reusedTokenizer.reset(line);
+			assertThat(tokenDetails(reusedTokenizer)).as(line).isEqualTo(expected);
+			reusedByteTokenizer.reset(slowBytes, 0, slowBytes.length);
+			assertThat(tokenDetails(reusedByteTokenizer)).as(line).isEqualTo(expectedBytes);
+			reusedByteTokenizer.reset(bytes, 0, bytes.length);
+			assertThat(tokenDetails(reusedByteTokenizer)).as(line).isEqualTo(expectedBytes);
+		}
+	}
+
+	@Test
+	public void testEscapesAndQuotes() throws ParseException
+	{
+		String line = "c\\,pu,host=a\\ b\\=c value=\"x,y=z w\",name=\"a\\\"b\" 1547510150000000000";
+		byte[] bytes = line.getBytes(UTF_8);
+
+		List<String> expected = new ArrayList<>();
+		expected.add("c,pu,");
+		expected.add("host=");
+		expected.add("a b=c ");
+		expected.add("value=");
+		expected.add("\"x,y=z w\",");
+		expected.add("name=");
+		expected.add("\"a\"b\" ");
+		expected.add("1547510150000000000" + CharacterIterator.DONE);
+
+		assertThat(tokens(new Tokenizer(line))).isEqualTo(expected);
+		assertThat(tokens(new ByteTokenizer(bytes, 0, bytes.length))).isEqualTo(expected);
+	}
+}
@@ -0,0 +1,186 @@
+package org.kairosdb.influxdb;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kairosdb.eventbus.FilterEventBus;
+import org.kairosdb.eventbus.Publisher;
+import org.kairosdb.events.DataPointEvent;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+public class UdpListenerTest
+{
+	@Mock
+	private FilterEventBus mockEventBus;
+	@Mock
+	private Publisher<DataPointEvent> mockPublisher;
+
+	private final List<DataPointEvent> posted = Collections.synchronizedList(new ArrayList<>());
+	private volatile CountDownLatch postBlock = new CountDownLatch(0);
+	private final AtomicBoolean failPost = new AtomicBoolean();
+	private InfluxResource resource;
+	private InfluxParser parser;
+	private UdpListener listener;
+	private DatagramChannel sender;
+
+	@Before
+	public void setup() throws IOException
+	{
+		MockitoAnnotations.initMocks(this);
+		when(mockEventBus.<DataPointEvent>createPublisher(any())).thenReturn(mockPublisher);
+		doAnswer(invocation ->
+		{
+			postBlock.await();
+			if (failPost.compareAndSet(true, false))
+				throw new IllegalStateException("Event bus failed");
+			posted.add(invocation.getArgument(0));
+			return null;
+		}).when(mockPublisher).post(any());
+
+		parser = new InfluxParser();
+		resource = new InfluxResource(new MetricWriter(mockEventBus), parser, "influxdb");
+		sender = DatagramChannel.open();
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		if (listener != null)
+			listener.stop();
+		sender.close();
+	}
+
+	private static int freePort() throws IOException
+	{
+		try (DatagramSocket socket = new DatagramSocket(0))
+		{
+			return socket.getLocalPort();
+		}
+	}
+
+	private void start(int threads, int buffers, int maxDatagramSize) throws Exception
+	{
+		listener = new UdpListener(resource, parser, freePort(), threads, buffers, maxDatagramSize);
+		listener.start();
+	}
+
+	private void send(String lines) throws IOException
+	{
+		InetSocketAddress address = (InetSocketAddress) listener.getLocalAddress();
+		sender.send(ByteBuffer.wrap(lines.getBytes(UTF_8)), new InetSocketAddress("127.0.0.1", address.getPort()));
+	}
+
+	private void waitForPosted(int count) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (posted.size() < count && System.nanoTime() < deadline)
+			Thread.sleep(10);
+	}
+
+	@Test
+	public void testDisabledByDefault() throws Exception
+	{
+		listener = new UdpListener(resource, parser);
+		listener.start();
+
+		assertThat(listener.getLocalAddress()).isNull();
+	}
+
+	@Test
+	public void testLinesWritten() throws Exception
+	{
+		start(2, 16, 64 * 1024);
+
+		send("cpu,host=a usage=1i,idle=2i 1547510150000000000\n\ncpu,host=b usage=3i 1547510150000000000\n");
+		send("cpu,host=c usage= 1547510150000000000\nmem,host=a used=4i 1547510150000000000");
+		waitForPosted(4);
+		listener.stop();
+
+		assertThat(posted).hasSize(4);
+		assertThat(posted).anySatisfy(event ->
+		{
+			assertThat(event.getMetricName()).isEqualTo("influxdb.mem.used");
+			assertThat(event.getTags()).isEqualTo(ImmutableSortedMap.of("host", "a"));
+			assertThat(event.getDataPoint().getLongValue()).isEqualTo(4);
+			assertThat(event.getDataPoint().getTimestamp()).isEqualTo(1547510150000L);
+		});
+	}
+
+	@Test
+	public void testTruncated() throws Exception
+	{
+		start(1, 4, 32);
+
+		send("cpu,host=a usage=1i 1547510150000000000");
+		send("c,h=a v=1i 1547510150000000000");
+		waitForPosted(1);
+		listener.stop();
+
+		assertThat(posted).hasSize(1);
+		assertThat(listener.getTruncated()).isEqualTo(1);
+	}
+
+	@Test
+	public void testOverflow() throws Exception
+	{
+		postBlock = new CountDownLatch(1);
+		start(1, 1, 1024);
+
+		//The parser holds the only buffer while it waits on the event bus
+		send("cpu,host=a usage=1i 1547510150000000000");
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		for (int i = 0; listener.getOverflow() == 0 && System.nanoTime() < deadline; i++)
+		{
+			send("cpu,host=b usage=" + i + "i 1547510150000000000");
+			Thread.sleep(10);
+		}
+
+		postBlock.countDown();
+		listener.stop();
+		assertThat(listener.getOverflow()).isGreaterThan(0);
+		assertThat(posted).isNotEmpty();
+	}
+
+	@Test
+	public void testParserKeepsRunningAfterWriteFails() throws Exception
+	{
+		failPost.set(true);
+		start(1, 2, 1024);
+
+		send("cpu,host=a usage=1i 1547510150000000000\n");
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (failPost.get() && System.nanoTime() < deadline)
+			Thread.sleep(10);
+		assertThat(failPost.get()).isFalse();
+
+		//More datagrams than buffers, so they are only written if the parser hands them back
+		for (int i = 0; i < 5; i++)
+		{
+			send("cpu,host=b usage=" + i + "i 1547510150000000000\n");
+			waitForPosted(i + 1);
+		}
+
+		assertThat(posted).hasSize(5);
+		assertThat(listener.getOverflow()).isEqualTo(0);
+	}
+}
@@ -0,0 +1,182 @@
+package org.kairosdb.influxdb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class WriteRateLimiterTest
+{
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	public void testDisabledByDefault()
+	{
+		WriteRateLimiter limiter = new WriteRateLimiter();
+		assertThat(limiter.isEnabled()).isFalse();
+		assertThat(limiter.getLimit("db")).isNull();
+	}
+
+	@Test
+	public void testPointsLimit()
+	{
+		WriteRateLimiter limiter = new WriteRateLimiter(1000, 0, 1, 10);
+		WriteRateLimiter.Limit limit = limiter.getLimit("db");
+		long now = System.nanoTime();
+
+		//A full bucket lets a request in, the request can take more than the burst
+		assertThat(limit.getRetryAfterSeconds(now)).isEqualTo(0);
+		limit.take(3500, 0, now);
+		assertThat(limit.getRetryAfterSeconds(now)).isEqualTo(3);
+		assertThat(limit.getRetryAfterSeconds(now + 2 * SECOND)).isEqualTo(1);
+
+		//Once the debt is paid back requests are let in again
+		assertThat(limit.getRetryAfterSeconds(now + 3 * SECOND)).isEqualTo(0);
+	}
+
+	@Test
+	public void testBucketsRefill()
+	{
+		WriteRateLimiter limiter = new WriteRateLimiter(1000, 0, 2, 10);
+		WriteRateLimiter.Limit limit = limiter.getLimit("db");
+		long now = System.nanoTime();
+
+		//Writing at the rate never runs out
+		for (int i = 0; i < 100; i++)
+		{
+			assertThat(limit.getRetryAfterSeconds(now + i * SECOND)).isEqualTo(0);
+			limit.take(1000, 0, now + i * SECOND);
+		}
+
+		//An idle bucket refills up to the burst only
+		now += 200 * SECOND;
+		limit.take(2000, 0, now);
+		assertThat(limit.getRetryAfterSeconds(now)).isEqualTo(0);
+		limit.take(1, 0, now);
+		assertThat(limit.getRetryAfterSeconds(now)).isEqualTo(1);
+	}
+
+	@Test
+	public void testBytesLimit()
+	{
+		WriteRateLimiter limiter = new WriteRateLimiter(1000, 1000, 1, 10);
+		WriteRateLimiter.Limit limit = limiter.getLimit("db");
+		long now = System.nanoTime();
+
+		limit.take(10, 5000, now);
+		assertThat(limit.getRetryAfterSeconds(now)).isEqualTo(4);
+	}
+
+	@Test
+	public void testKnownBytesTakenWhenLetIn()
+	{
+		WriteRateLimiter limiter = new WriteRateLimiter(0, 1000, 1, 10);
+		WriteRateLimiter.Limit limit = limiter.getLimit("db");
+		long now = System.nanoTime();
+
+		//Requests arriving together each take their bytes, once the bucket is in debt the rest are refused
+		assertThat(limit.tryAcquire(800, now)).isEqualTo(0);
+		assertThat(limit.tryAcquire(800, now)).isEqualTo(0);
+		assertThat(limit.tryAcquire(800, now)).isEqualTo(1);
+		assertThat(limit.getRetryAfterSeconds(now)).isEqualTo(1);
+
+		//Refused requests take nothing
+		assertThat(limit.tryAcquire(800, now + SECOND)).isEqualTo(0);
+	}
+
+	@Test
+	public void testConcurrentRequestsLetInOnce() throws InterruptedException
+	{
+		WriteRateLimiter limiter = new WriteRateLimiter(0, 1000, 1, 10);
+		WriteRateLimiter.Limit limit = limiter.getLimit("db");
+		long now = System.nanoTime();
+
+		AtomicInteger letIn = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+		{
+			Thread thread = new Thread(() ->
+			{
+				try
+				{
+					start.await();
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				if (limit.tryAcquire(1000, now) == 0)
+					letIn.incrementAndGet();
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+
+		//The first request empties the bucket, the second is let in at no debt and puts it in debt
+		assertThat(letIn.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void testLimitIsPerBucket()
+	{
+		WriteRateLimiter limiter = new WriteRateLimiter(1000, 0, 1, 10);
+		long now = System.nanoTime();
+
+		limiter.getLimit("db").take(5000, 0, now);
+		assertThat(limiter.getLimit("db").getRetryAfterSeconds(now)).isGreaterThan(0);
+		assertThat(limiter.getLimit("other").getRetryAfterSeconds(now)).isEqualTo(0);
+		assertThat(limiter.getLimit(null).getRetryAfterSeconds(now)).isEqualTo(0);
+		assertThat(limiter.getLimit(null).getBucket()).isEqualTo("");
+	}
+
+	@Test
+	public void testBucketsPastMaxShareALimit()
+	{
+		WriteRateLimiter limiter = new WriteRateLimiter(1000, 0, 1, 2);
+
+		assertThat(limiter.getLimit("a").getBucket()).isEqualTo("a");
+		assertThat(limiter.getLimit("b").getBucket()).isEqualTo("b");
+		assertThat(limiter.getLimit("c")).isSameAs(limiter.getLimit("d"));
+		assertThat(limiter.getLimit("c").getBucket()).isEqualTo(WriteRateLimiter.OTHER_BUCKET);
+		assertThat(limiter.getLimit("a").getBucket()).isEqualTo("a");
+	}
+
+	@Test
+	public void testOverrides()
+	{
+		WriteRateLimiter limiter = new WriteRateLimiter(1000, 0, 1, 10);
+		limiter.setupOverrides(Arrays.asList("unlimited:0:0", "host:8086:10:0", "bytes:0:100"));
+
+		assertThat(limiter.getLimit("unlimited")).isNull();
+
+		WriteRateLimiter.Limit limit = limiter.getLimit("host:8086");
+		long now = System.nanoTime();
+		limit.take(50, 0, now);
+		assertThat(limit.getRetryAfterSeconds(now)).isEqualTo(4);
+
+		limit = limiter.getLimit("bytes");
+		limit.take(1_000_000, 50, now);
+		assertThat(limit.getRetryAfterSeconds(now)).isEqualTo(0);
+
+		WriteRateLimiter overridesOnly = new WriteRateLimiter();
+		overridesOnly.setupOverrides(Collections.singletonList("db:10:0"));
+		assertThat(overridesOnly.isEnabled()).isTrue();
+		assertThat(overridesOnly.getLimit("db")).isNotNull();
+		assertThat(overridesOnly.getLimit("other")).isNull();
+
+		assertThatThrownBy(() -> overridesOnly.setupOverrides(Collections.singletonList("db:10")))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+}